@@ -0,0 +1,251 @@
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Admission stage run in front of a handler's {@code handleTxs}. Every proposed transaction first
+ * goes through the checks that need no signature work (structure, UTXO lookups and the input-sum
+ * rule), then the survivors are admitted by decreasing fee-rate, each with the transactions of
+ * the epoch it spends from, until the estimated verification cost of the epoch reaches the
+ * budget. Transactions beyond the budget are deferred, not rejected, and the admitted ones keep
+ * their arrival order.
+ */
+public class AdmissionControl {
+
+    /** Cost charged for an input whose key size cannot be determined */
+    private static final int DEFAULT_KEY_BITS = 2048;
+
+    private long budget;
+
+    /**
+     * Creates an admission stage allowing at most {@code budget} units of verification cost per
+     * epoch, one unit being one bit of key size for one input.
+     */
+    public AdmissionControl(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget must be non-negative");
+        }
+        this.budget = budget;
+    }
+
+    /** @return the verification cost allowed per epoch */
+    public long getBudget() {
+        return budget;
+    }
+
+    /** Outcome of admitting one epoch */
+    public static class Result {
+        private Transaction[] admitted;
+        private Transaction[] rejected;
+        private Transaction[] deferred;
+        private long cost;
+
+        Result(Transaction[] admitted, Transaction[] rejected, Transaction[] deferred, long cost) {
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.deferred = deferred;
+            this.cost = cost;
+        }
+
+        /** @return the transactions to hand to the handler, in arrival order */
+        public Transaction[] getAdmitted() {
+            return admitted;
+        }
+
+        /** @return the transactions that failed a check that needs no signature work */
+        public Transaction[] getRejected() {
+            return rejected;
+        }
+
+        /** @return the valid-looking transactions that did not fit in the budget */
+        public Transaction[] getDeferred() {
+            return deferred;
+        }
+
+        /** @return the estimated verification cost of the admitted transactions */
+        public long getCost() {
+            return cost;
+        }
+    }
+
+    /**
+     * Admits transactions of {@code possibleTxs} spending outputs of {@code pool}, or outputs of
+     * other transactions of the same epoch. A transaction is only admitted together with the
+     * transactions of the epoch it spends from, and is rejected with them.
+     */
+    public Result admit(Transaction[] possibleTxs, UTXOLookup pool) {
+        // Outputs created within the epoch may be spent by later transactions of the same epoch
+        UTXOOverlay epoch = new UTXOOverlay(pool);
+        HashMap<TxId, Integer> indices = new HashMap<TxId, Integer>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            Transaction tx = possibleTxs[i];
+            // Handlers hash the epoch before admission
+            if (tx.getHash() == null) {
+                tx.finalize();
+            }
+            for (int j = 0; j < tx.numOutputs(); ++j) {
+                epoch.addUTXO(new UTXO(tx.getHash(), j), tx.getOutput(j));
+            }
+            TxId id = TxId.of(tx);
+            if (!indices.containsKey(id)) {
+                indices.put(id, i);
+            }
+        }
+
+        boolean[] candidate = new boolean[possibleTxs.length];
+        int[][] parents = new int[possibleTxs.length][];
+        final long[] costs = new long[possibleTxs.length];
+        final double[] feeRates = new double[possibleTxs.length];
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            Transaction tx = possibleTxs[i];
+            parents[i] = parents(tx, i, indices);
+            if (!TxValidator.isWellFormed(tx)) {
+                continue;
+            }
+            Transaction.Output[] spent = TxValidator.resolveInputs(tx, epoch);
+            if (spent == null) {
+                continue;
+            }
+            double fee = TxValidator.inputSum(spent) - TxValidator.outputSum(tx);
+            if (fee < 0) {
+                continue;
+            }
+            costs[i] = estimateCost(spent);
+            feeRates[i] = fee / Math.max(costs[i], 1);
+            candidate[i] = true;
+        }
+        // A transaction spending a rejected one can never be valid in this epoch
+        ArrayList<Integer> candidates = new ArrayList<Integer>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            if (candidate[i]) {
+                for (int a : ancestors(i, parents)) {
+                    if (!candidate[a]) {
+                        candidate[i] = false;
+                        break;
+                    }
+                }
+            }
+            if (candidate[i]) {
+                candidates.add(i);
+            }
+        }
+
+        // Stable sort, so equal fee-rates are admitted in arrival order
+        Integer[] byFeeRate = candidates.toArray(new Integer[candidates.size()]);
+        Arrays.sort(byFeeRate, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(feeRates[i2], feeRates[i1]);
+            }
+        });
+        // Each transaction brings along its ancestors not admitted yet, so a child is never
+        // admitted without the parents it spends from
+        boolean[] admitted = new boolean[possibleTxs.length];
+        long cost = 0;
+        for (int k = 0; k < byFeeRate.length; ++k) {
+            int i = byFeeRate[k];
+            if (admitted[i]) {
+                continue;
+            }
+            ArrayList<Integer> pending = new ArrayList<Integer>();
+            pending.add(i);
+            long packageCost = costs[i];
+            for (int a : ancestors(i, parents)) {
+                if (!admitted[a]) {
+                    pending.add(a);
+                    packageCost += costs[a];
+                }
+            }
+            if (cost + packageCost <= budget) {
+                cost += packageCost;
+                for (int j : pending) {
+                    admitted[j] = true;
+                }
+            }
+        }
+
+        ArrayList<Transaction> admittedTxs = new ArrayList<Transaction>();
+        ArrayList<Transaction> rejected = new ArrayList<Transaction>();
+        ArrayList<Transaction> deferred = new ArrayList<Transaction>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            if (admitted[i]) {
+                admittedTxs.add(possibleTxs[i]);
+            } else if (candidate[i]) {
+                deferred.add(possibleTxs[i]);
+            } else {
+                rejected.add(possibleTxs[i]);
+            }
+        }
+        return new Result(admittedTxs.toArray(new Transaction[admittedTxs.size()]),
+                rejected.toArray(new Transaction[rejected.size()]),
+                deferred.toArray(new Transaction[deferred.size()]), cost);
+    }
+
+    /** @return the indices of the other transactions of the epoch {@code tx} spends from */
+    private static int[] parents(Transaction tx, int index, HashMap<TxId, Integer> indices) {
+        HashSet<Integer> parents = new HashSet<Integer>();
+        for (int j = 0; j < tx.numInputs(); ++j) {
+            byte[] prevTxHash = tx.getInput(j).prevTxHash;
+            Integer parent = prevTxHash == null ? null : indices.get(new TxId(prevTxHash));
+            if (parent != null && parent != index) {
+                parents.add(parent);
+            }
+        }
+        int[] result = new int[parents.size()];
+        int k = 0;
+        for (int parent : parents) {
+            result[k++] = parent;
+        }
+        return result;
+    }
+
+    /** @return the indices of every transaction of the epoch {@code i} depends on */
+    private static HashSet<Integer> ancestors(int i, int[][] parents) {
+        HashSet<Integer> ancestors = new HashSet<Integer>();
+        ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+        stack.push(i);
+        while (!stack.isEmpty()) {
+            for (int parent : parents[stack.pop()]) {
+                if (parent != i && ancestors.add(parent)) {
+                    stack.push(parent);
+                }
+            }
+        }
+        return ancestors;
+    }
+
+    /** @return the estimated cost of verifying the inputs spending {@code spent} */
+    public static long estimateCost(Transaction.Output[] spent) {
+        long cost = 0;
+        HashMap<PublicKey, Integer> keyBits = new HashMap<PublicKey, Integer>();
+        for (int i = 0; i < spent.length; ++i) {
+            Integer bits = keyBits.get(spent[i].address);
+            if (bits == null) {
+                bits = keyBits(spent[i].address);
+                keyBits.put(spent[i].address, bits);
+            }
+            cost += bits;
+        }
+        return cost;
+    }
+
+    /** @return the size in bits of {@code key}, as a proxy for the cost of verifying with it */
+    public static int keyBits(PublicKey key) {
+        if (key instanceof RSAPublicKey) {
+            BigInteger modulus = ((RSAPublicKey) key).getModulus();
+            return modulus.bitLength();
+        }
+        if (key instanceof ECPublicKey) {
+            return ((ECPublicKey) key).getParams().getCurve().getField().getFieldSize();
+        }
+        byte[] encoded = key == null ? null : key.getEncoded();
+        return encoded == null ? DEFAULT_KEY_BITS : encoded.length * 8;
+    }
+}
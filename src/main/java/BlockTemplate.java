@@ -0,0 +1,225 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Persistent selection state for {@code MaxFeeTxHandler}: candidate transactions can be added
+ * and removed one at a time, and the selected set always equals what the handler's greedy pass
+ * would choose over all candidates (by decreasing fee, then by arrival, skipping any transaction
+ * that spends an outpoint claimed by a better one).
+ *
+ * <p>Candidates are indexed by the outpoints they spend. A change only re-evaluates the
+ * candidates that share outpoints with it, transitively and in rank order, so an update costs
+ * time proportional to the conflicts it touches rather than to the number of candidates.
+ * Candidates are validated against the pool when added.
+ */
+public class BlockTemplate {
+
+    /** A candidate and its place in the ranking */
+    private static class Entry {
+        final Transaction tx;
+        final TxId id;
+        final double fee;
+        final long seq;
+        final UTXO[] inputs;
+        boolean selected;
+
+        Entry(Transaction tx, TxId id, double fee, long seq) {
+            this.tx = tx;
+            this.id = id;
+            this.fee = fee;
+            this.seq = seq;
+            this.inputs = new UTXO[tx.numInputs()];
+            for (int i = 0; i < inputs.length; ++i) {
+                Transaction.Input in = tx.getInput(i);
+                inputs[i] = new UTXO(in.prevTxHash, in.outputIndex);
+            }
+        }
+    }
+
+    /** Better candidates first: higher fee, then earlier arrival */
+    private static final Comparator<Entry> BY_RANK = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int byFee = Double.compare(e2.fee, e1.fee);
+            return byFee != 0 ? byFee : Long.compare(e1.seq, e2.seq);
+        }
+    };
+
+    private UTXOLookup pool;
+    private long nextSeq;
+    private double totalFee;
+    private int selectedCount;
+
+    private HashMap<TxId, Entry> byId = new HashMap<TxId, Entry>();
+    /** Candidates spending each outpoint, best first */
+    private HashMap<UTXO, TreeSet<Entry>> bySpent = new HashMap<UTXO, TreeSet<Entry>>();
+    private TreeSet<Entry> ranked = new TreeSet<Entry>(BY_RANK);
+
+    /** Creates an empty template whose candidates spend outputs of {@code pool} */
+    public BlockTemplate(UTXOLookup pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Adds {@code tx} to the candidates and updates the selection.
+     *
+     * @return false if {@code tx} is already a candidate or is not valid against the pool
+     */
+    public boolean add(Transaction tx) {
+        tx.finalize();
+        TxId id = TxId.of(tx);
+        if (byId.containsKey(id) || !TxValidator.isValidTx(tx, pool)) {
+            return false;
+        }
+        Transaction.Output[] resolved = TxValidator.resolveInputs(tx, pool);
+        double fee = Math.max(TxValidator.inputSum(resolved) - TxValidator.outputSum(tx), 0);
+        Entry entry = new Entry(tx, id, fee, nextSeq++);
+        byId.put(id, entry);
+        ranked.add(entry);
+        for (UTXO utxo : entry.inputs) {
+            TreeSet<Entry> spenders = bySpent.get(utxo);
+            if (spenders == null) {
+                spenders = new TreeSet<Entry>(BY_RANK);
+                bySpent.put(utxo, spenders);
+            }
+            spenders.add(entry);
+        }
+        TreeSet<Entry> dirty = new TreeSet<Entry>(BY_RANK);
+        dirty.add(entry);
+        repair(dirty);
+        return true;
+    }
+
+    /**
+     * Removes the candidate with hash {@code id} and updates the selection.
+     *
+     * @return false if there is no such candidate
+     */
+    public boolean remove(TxId id) {
+        Entry entry = byId.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        ranked.remove(entry);
+        TreeSet<Entry> dirty = new TreeSet<Entry>(BY_RANK);
+        for (UTXO utxo : entry.inputs) {
+            TreeSet<Entry> spenders = bySpent.get(utxo);
+            spenders.remove(entry);
+            if (spenders.isEmpty()) {
+                bySpent.remove(utxo);
+            } else if (entry.selected) {
+                dirty.addAll(spenders.tailSet(entry, false));
+            }
+        }
+        if (entry.selected) {
+            setSelected(entry, false);
+        }
+        repair(dirty);
+        return true;
+    }
+
+    /**
+     * Updates the candidates after {@code accepted} was committed to the pool: accepted
+     * transactions and every candidate spending one of their inputs are removed.
+     */
+    public void removeConfirmed(Transaction[] accepted) {
+        for (Transaction tx : accepted) {
+            remove(TxId.of(tx));
+            for (int i = 0; i < tx.numInputs(); ++i) {
+                Transaction.Input in = tx.getInput(i);
+                TreeSet<Entry> spenders = bySpent.get(new UTXO(in.prevTxHash, in.outputIndex));
+                if (spenders != null) {
+                    for (Entry stale : new ArrayList<Entry>(spenders)) {
+                        remove(stale.id);
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return the selected transactions, by decreasing fee then arrival */
+    public Transaction[] getSelected() {
+        Transaction[] txs = new Transaction[selectedCount];
+        int i = 0;
+        for (Entry entry : ranked) {
+            if (entry.selected) {
+                txs[i++] = entry.tx;
+            }
+        }
+        return txs;
+    }
+
+    /** @return true if the candidate with hash {@code id} is selected */
+    public boolean isSelected(TxId id) {
+        Entry entry = byId.get(id);
+        return entry != null && entry.selected;
+    }
+
+    /** @return true if a candidate has hash {@code id} */
+    public boolean contains(TxId id) {
+        return byId.containsKey(id);
+    }
+
+    /** @return the total fee of the selected transactions */
+    public double getTotalFee() {
+        return totalFee;
+    }
+
+    /** @return the number of candidates */
+    public int size() {
+        return byId.size();
+    }
+
+    /** @return the number of selected transactions */
+    public int selectedCount() {
+        return selectedCount;
+    }
+
+    /**
+     * Recomputes the selection of {@code dirty} in rank order. A candidate whose status changes
+     * can only affect worse candidates sharing one of its outpoints, and those are queued behind
+     * it, so every candidate is settled once the better ones it conflicts with are.
+     */
+    private void repair(TreeSet<Entry> dirty) {
+        while (!dirty.isEmpty()) {
+            Entry entry = dirty.pollFirst();
+            boolean selected = !claimedByBetter(entry);
+            if (selected == entry.selected) {
+                continue;
+            }
+            setSelected(entry, selected);
+            Set<Entry> affected = new HashSet<Entry>();
+            for (UTXO utxo : entry.inputs) {
+                affected.addAll(bySpent.get(utxo).tailSet(entry, false));
+            }
+            dirty.addAll(affected);
+        }
+    }
+
+    /** @return true if a selected candidate ranked above {@code entry} spends one of its inputs */
+    private boolean claimedByBetter(Entry entry) {
+        for (UTXO utxo : entry.inputs) {
+            for (Entry other : bySpent.get(utxo).headSet(entry, false)) {
+                if (other.selected) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void setSelected(Entry entry, boolean selected) {
+        entry.selected = selected;
+        if (selected) {
+            totalFee += entry.fee;
+            ++selectedCount;
+        } else {
+            totalFee -= entry.fee;
+            --selectedCount;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Bloom filter over outpoints: answers "definitely absent" or "maybe present", with no false
+ * negatives. Unlike {@code CuckooFilter} it does not support removal, which suits immutable
+ * sets such as the segments of {@code LsmUTXOStore}.
+ */
+public class BloomFilter {
+
+    private long[] bits;
+    private long numBits;
+    private int numHashes;
+
+    /** Creates a filter sized for {@code expectedInsertions} at {@code falsePositiveRate} */
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1)");
+        }
+        int n = Math.max(expectedInsertions, 1);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) ((Math.max(m, 64) + 63) / 64)];
+        this.numBits = bits.length * 64L;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    /** Creates a filter from the state returned by {@link #getBits()} and {@link #getNumHashes()} */
+    public BloomFilter(long[] bits, int numHashes) {
+        if (bits.length == 0 || numHashes <= 0) {
+            throw new IllegalArgumentException("Invalid Bloom filter state");
+        }
+        this.bits = bits;
+        this.numBits = bits.length * 64L;
+        this.numHashes = numHashes;
+    }
+
+    /** Adds the UTXO with index {@code index} in the transaction with hash {@code txHash} */
+    public void add(byte[] txHash, int index) {
+        long h = CuckooFilter.hash(txHash, index);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /** @return false if the UTXO was definitely never added, true if it may have been */
+    public boolean mightContain(byte[] txHash, int index) {
+        long h = CuckooFilter.hash(txHash, index);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Removes every element */
+    public void clear() {
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = 0;
+        }
+    }
+
+    /** @return the bit array, for serialization */
+    public long[] getBits() {
+        return bits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /** @return the memory used by the bit array, in bytes */
+    public long memoryBytes() {
+        return bits.length * 8L;
+    }
+}
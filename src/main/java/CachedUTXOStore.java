@@ -0,0 +1,447 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded write-back cache in front of a slower {@code UTXOStore}, such as an
+ * {@code LsmUTXOStore}. Most inputs spend recently created outputs, so keeping those in memory
+ * hides the latency of the backing store from the handlers.
+ *
+ * <p>Eviction is segmented LRU: an entry enters a probationary segment and moves to a protected
+ * one when it is hit again, so a burst of outputs read once cannot flush out the hot set. The
+ * cache is split into shards by hash, each with its own lock. Updates only mark entries dirty;
+ * dirty entries reach the backing store when they are evicted or on {@link #flush()}, which
+ * {@code UTXOPool#flush()} calls at every epoch boundary.
+ */
+public class CachedUTXOStore implements UTXOStore, Closeable, Flushable {
+
+    /** Default number of cache shards */
+    public static final int DEFAULT_SHARDS = 16;
+
+    /** Share of each shard reserved for entries hit more than once */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /** A cached mapping; a null output records a removal not yet written back */
+    private static class Entry {
+        Transaction.Output txOut;
+        boolean dirty;
+
+        Entry(Transaction.Output txOut, boolean dirty) {
+            this.txOut = txOut;
+            this.dirty = dirty;
+        }
+    }
+
+    private class Shard {
+        final LinkedHashMap<UTXO, Entry> probation = new LinkedHashMap<UTXO, Entry>(16, 0.75f,
+                true);
+        final LinkedHashMap<UTXO, Entry> protect = new LinkedHashMap<UTXO, Entry>(16, 0.75f,
+                true);
+        final int capacity;
+        final int protectedCapacity;
+        /** Bumped by every change, so a miss does not cache a value read before the change */
+        long version;
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (int) (this.capacity * PROTECTED_RATIO);
+        }
+
+        /** @return the cached entry of {@code utxo}, promoting it on a second hit, or null */
+        Entry lookup(UTXO utxo) {
+            Entry entry = protect.get(utxo);
+            if (entry != null) {
+                return entry;
+            }
+            entry = probation.remove(utxo);
+            if (entry != null) {
+                protect.put(utxo, entry);
+                if (protect.size() > protectedCapacity) {
+                    Iterator<Map.Entry<UTXO, Entry>> eldest = protect.entrySet().iterator();
+                    Map.Entry<UTXO, Entry> demoted = eldest.next();
+                    eldest.remove();
+                    probation.put(demoted.getKey(), demoted.getValue());
+                }
+            }
+            return entry;
+        }
+
+        void insert(UTXO utxo, Entry entry) {
+            probation.put(utxo, entry);
+            while (probation.size() + protect.size() > capacity) {
+                LinkedHashMap<UTXO, Entry> victims = probation.isEmpty() ? protect : probation;
+                Iterator<Map.Entry<UTXO, Entry>> eldest = victims.entrySet().iterator();
+                Map.Entry<UTXO, Entry> evicted = eldest.next();
+                if (evicted.getValue().dirty) {
+                    // Written back first, so readers find it in one place or the other
+                    writeBack(evicted.getKey(), evicted.getValue().txOut);
+                    writeBacks.increment();
+                }
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private UTXOStore backing;
+    private Shard[] shards;
+    private int mask;
+    private int capacity;
+    private AtomicInteger size;
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+    private LongAdder writeBacks = new LongAdder();
+
+    /**
+     * Creates a cache of up to {@code capacity} entries over {@code backing}, which it owns, with
+     * fewer shards than the default if {@code capacity} is too small to give each one an entry
+     */
+    public CachedUTXOStore(UTXOStore backing, int capacity) {
+        this(backing, capacity, Integer.highestOneBit(Math.max(Math.min(capacity,
+                DEFAULT_SHARDS), 1)));
+    }
+
+    /**
+     * Creates a cache of up to {@code capacity} entries over {@code backing}, which it owns, split
+     * into {@code shardCount} shards (rounded up to a power of two). The shard capacities add up
+     * to {@code capacity}, which must leave at least one entry per shard.
+     */
+    public CachedUTXOStore(UTXOStore backing, int capacity, int shardCount) {
+        if (capacity <= 0 || shardCount <= 0) {
+            throw new IllegalArgumentException("capacity and shardCount must be positive");
+        }
+        int count = Integer.highestOneBit(shardCount);
+        if (count < shardCount) {
+            count <<= 1;
+        }
+        if (capacity < count) {
+            throw new IllegalArgumentException("capacity must be at least the number of shards");
+        }
+        this.backing = backing;
+        this.capacity = capacity;
+        this.shards = new Shard[count];
+        this.mask = count - 1;
+        for (int i = 0; i < count; ++i) {
+            shards[i] = new Shard(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+        this.size = new AtomicInteger(backing.size());
+    }
+
+    /**
+     * @return an independent cache over a copy of the backing store, with the updates not yet
+     *         written back applied to the copy
+     */
+    public CachedUTXOStore copy() {
+        UTXOStore copied = backing.copy();
+        Map<UTXO, Transaction.Output> added = new HashMap<UTXO, Transaction.Output>();
+        List<UTXO> removed = new ArrayList<UTXO>();
+        collectDirty(added, removed);
+        copied.putAll(added);
+        copied.removeAll(removed);
+        return new CachedUTXOStore(copied, capacity, shards.length);
+    }
+
+    /** @return the previous output mapped to {@code utxo}, or null */
+    public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        Shard shard = shardOf(utxo);
+        synchronized (shard) {
+            Transaction.Output previous = lookupLocked(shard, utxo);
+            update(shard, utxo, txOut);
+            if (previous == null) {
+                size.incrementAndGet();
+            }
+            return previous;
+        }
+    }
+
+    /** @return the output that was mapped to {@code utxo}, or null */
+    public Transaction.Output remove(UTXO utxo) {
+        Shard shard = shardOf(utxo);
+        synchronized (shard) {
+            Transaction.Output previous = lookupLocked(shard, utxo);
+            if (previous != null) {
+                update(shard, utxo, null);
+                size.decrementAndGet();
+            }
+            return previous;
+        }
+    }
+
+    /** @return the output mapped to {@code utxo}, or null */
+    public Transaction.Output get(UTXO utxo) {
+        Shard shard = shardOf(utxo);
+        long version;
+        synchronized (shard) {
+            Entry entry = shard.lookup(utxo);
+            if (entry != null) {
+                hits.increment();
+                return entry.txOut;
+            }
+            version = shard.version;
+        }
+        misses.increment();
+        // Read outside the lock, so a slow backing store does not serialize lookups of the shard
+        Transaction.Output txOut = backing.get(utxo);
+        if (txOut != null) {
+            synchronized (shard) {
+                if (shard.version == version && !shard.probation.containsKey(utxo)
+                        && !shard.protect.containsKey(utxo)) {
+                    shard.insert(utxo, new Entry(txOut, false));
+                }
+            }
+        }
+        return txOut;
+    }
+
+    public boolean contains(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    /**
+     * @return the outputs of the UTXOs of {@code utxos} that are in the store, fetching the
+     *         misses from the backing store as one batch
+     */
+    public Map<UTXO, Transaction.Output> getAll(Collection<UTXO> utxos) {
+        Map<UTXO, Transaction.Output> found = new HashMap<UTXO, Transaction.Output>(
+                utxos.size() * 2);
+        List<UTXO> missed = new ArrayList<UTXO>();
+        Map<Shard, Long> versions = new HashMap<Shard, Long>();
+        for (UTXO utxo : utxos) {
+            Shard shard = shardOf(utxo);
+            synchronized (shard) {
+                Entry entry = shard.lookup(utxo);
+                if (entry != null) {
+                    hits.increment();
+                    if (entry.txOut != null) {
+                        found.put(utxo, entry.txOut);
+                    }
+                    continue;
+                }
+                if (!versions.containsKey(shard)) {
+                    versions.put(shard, shard.version);
+                }
+            }
+            misses.increment();
+            missed.add(utxo);
+        }
+        if (missed.isEmpty()) {
+            return found;
+        }
+        Map<UTXO, Transaction.Output> loaded = backing.getAll(missed);
+        for (Map.Entry<UTXO, Transaction.Output> e : loaded.entrySet()) {
+            UTXO utxo = e.getKey();
+            Shard shard = shardOf(utxo);
+            synchronized (shard) {
+                if (shard.version == versions.get(shard) && !shard.probation.containsKey(utxo)
+                        && !shard.protect.containsKey(utxo)) {
+                    shard.insert(utxo, new Entry(e.getValue(), false));
+                }
+            }
+        }
+        found.putAll(loaded);
+        return found;
+    }
+
+    /** @return true if every UTXO of {@code utxos} is in the store */
+    public boolean containsAll(Collection<UTXO> utxos) {
+        return getAll(utxos).size() == new HashSet<UTXO>(utxos).size();
+    }
+
+    /** Adds every mapping of {@code entries} */
+    public void putAll(Map<UTXO, Transaction.Output> entries) {
+        for (Map.Entry<UTXO, Transaction.Output> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** Removes every UTXO of {@code utxos} */
+    public void removeAll(Collection<UTXO> utxos) {
+        for (UTXO utxo : utxos) {
+            remove(utxo);
+        }
+    }
+
+    /** @return the number of UTXOs in the store */
+    public int size() {
+        return size.get();
+    }
+
+    /** @return all UTXOs in the store, including updates not yet written back */
+    public ArrayList<UTXO> keys() {
+        Map<UTXO, Transaction.Output> added = new HashMap<UTXO, Transaction.Output>();
+        List<UTXO> removed = new ArrayList<UTXO>();
+        collectDirty(added, removed);
+        LinkedHashSet<UTXO> keys = new LinkedHashSet<UTXO>(backing.keys());
+        keys.removeAll(removed);
+        keys.addAll(added.keySet());
+        return new ArrayList<UTXO>(keys);
+    }
+
+    /** Writes every dirty entry back, then flushes the backing store if it buffers updates */
+    public void flush() throws IOException {
+        for (Shard shard : shards) {
+            Map<UTXO, Transaction.Output> added = new HashMap<UTXO, Transaction.Output>();
+            List<UTXO> removed = new ArrayList<UTXO>();
+            // Written back under the shard lock, so that an entry marked clean is never evicted
+            // before the backing store has it
+            synchronized (shard) {
+                collectDirty(shard.probation, added, removed, true);
+                collectDirty(shard.protect, added, removed, true);
+                synchronized (backing) {
+                    backing.putAll(added);
+                    backing.removeAll(removed);
+                }
+            }
+        }
+        if (backing instanceof Flushable) {
+            ((Flushable) backing).flush();
+        }
+    }
+
+    /** Flushes the cache, then closes the backing store if it holds resources */
+    public void close() throws IOException {
+        flush();
+        if (backing instanceof Closeable) {
+            ((Closeable) backing).close();
+        }
+    }
+
+    /** @return the number of lookups answered from memory */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of lookups that went to the backing store */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the share of lookups answered from memory, or 0 before the first lookup */
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /** @return the number of entries evicted to stay within capacity */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** @return the number of dirty entries written back because they were evicted */
+    public long getEvictionWriteBacks() {
+        return writeBacks.sum();
+    }
+
+    /** @return the number of entries currently cached */
+    public int cachedCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.probation.size() + shard.protect.size();
+            }
+        }
+        return count;
+    }
+
+    /** Resets the hit, miss and eviction counters */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+        writeBacks.reset();
+    }
+
+    private Shard shardOf(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        int h = utxo.getIndex();
+        for (int i = 0; i < 4 && i < hash.length; ++i) {
+            h = (h << 8) ^ (hash[i] & 0xff);
+        }
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    /** Looks {@code utxo} up with the shard lock held, counting hits and misses */
+    private Transaction.Output lookupLocked(Shard shard, UTXO utxo) {
+        Entry entry = shard.lookup(utxo);
+        if (entry != null) {
+            hits.increment();
+            return entry.txOut;
+        }
+        misses.increment();
+        return backing.get(utxo);
+    }
+
+    /** Caches {@code txOut}, or a removal if null, as a dirty entry; the shard lock is held */
+    private void update(Shard shard, UTXO utxo, Transaction.Output txOut) {
+        ++shard.version;
+        Entry entry = shard.lookup(utxo);
+        if (entry != null) {
+            entry.txOut = txOut;
+            entry.dirty = true;
+        } else {
+            shard.insert(utxo, new Entry(txOut, true));
+        }
+    }
+
+    /** Collects the dirty entries of every shard into {@code added} and {@code removed} */
+    private void collectDirty(Map<UTXO, Transaction.Output> added, List<UTXO> removed) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                collectDirty(shard.probation, added, removed, false);
+                collectDirty(shard.protect, added, removed, false);
+            }
+        }
+    }
+
+    /**
+     * Collects the dirty entries of {@code segment}; if {@code clean}, also marks them clean and
+     * drops the cached removals, as the caller writes them back.
+     */
+    private static void collectDirty(LinkedHashMap<UTXO, Entry> segment,
+                                     Map<UTXO, Transaction.Output> added, List<UTXO> removed,
+                                     boolean clean) {
+        Iterator<Map.Entry<UTXO, Entry>> it = segment.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<UTXO, Entry> e = it.next();
+            Entry entry = e.getValue();
+            if (!entry.dirty) {
+                continue;
+            }
+            if (entry.txOut != null) {
+                added.put(e.getKey(), entry.txOut);
+            } else {
+                removed.add(e.getKey());
+            }
+            if (clean) {
+                entry.dirty = false;
+                if (entry.txOut == null) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void writeBack(UTXO utxo, Transaction.Output txOut) {
+        synchronized (backing) {
+            if (txOut != null) {
+                backing.put(utxo, txOut);
+            } else {
+                backing.remove(utxo);
+            }
+        }
+    }
+}
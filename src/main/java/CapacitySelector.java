@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Chooses conflict-free candidates of high total fee whose sizes add up to at most a byte
+ * budget, a multidimensional knapsack solved approximately in O(n log n):
+ *
+ * <ol>
+ * <li>Candidates are ranked by fee per byte and taken greedily while they fit, skipping any that
+ *     spends an outpoint claimed by a better one. Smaller candidates further down keep filling
+ *     the space left.</li>
+ * <li>Candidates that were skipped for lack of space are then retried in rank order: each may
+ *     evict the lowest-ranked greedy picks if it brings more fee than they do together.</li>
+ * <li>If the single candidate with the highest fee beats the whole selection, it is chosen
+ *     alone, which bounds the loss of the greedy pass on few large candidates.</li>
+ * </ol>
+ */
+public class CapacitySelector {
+
+    private CapacitySelector() {
+    }
+
+    /**
+     * @param inputs the outpoints spent by each candidate
+     * @param fees the fee of each candidate
+     * @param sizes the serialized size of each candidate, in bytes
+     * @param capacity the maximum total size of the chosen candidates
+     * @return the indices of the chosen candidates, by decreasing fee per byte and then by index
+     */
+    public static int[] select(UTXO[][] inputs, final double[] fees, final int[] sizes,
+                               long capacity) {
+        // Stable sort, so equal fee rates keep their original order
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < fees.length; ++i) {
+            if (sizes[i] <= capacity) {
+                order.add(i);
+            }
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(feeRate(fees, sizes, i2), feeRate(fees, sizes, i1));
+            }
+        });
+
+        // Greedy pass. Claimed outpoints map to the position of their spender in kept, or to -1
+        // for candidates swapped in later, which are never evicted
+        HashMap<UTXO, Integer> owners = new HashMap<UTXO, Integer>();
+        List<Integer> kept = new ArrayList<Integer>();
+        List<Integer> overflow = new ArrayList<Integer>();
+        long remaining = capacity;
+        for (int i : order) {
+            if (claimedBefore(owners, inputs[i], Integer.MAX_VALUE)) {
+                continue;
+            }
+            if (sizes[i] <= remaining) {
+                claim(owners, inputs[i], kept.size());
+                kept.add(i);
+                remaining -= sizes[i];
+            } else {
+                overflow.add(i);
+            }
+        }
+
+        // Swap pass. Evictions always take a suffix of kept, so prefix sums tell in O(log n) how
+        // many picks must go to make room, and each pick is evicted at most once
+        long[] sizeSums = new long[kept.size() + 1];
+        double[] feeSums = new double[kept.size() + 1];
+        for (int k = 0; k < kept.size(); ++k) {
+            sizeSums[k + 1] = sizeSums[k] + sizes[kept.get(k)];
+            feeSums[k + 1] = feeSums[k] + fees[kept.get(k)];
+        }
+        int end = kept.size();
+        List<Integer> swapped = new ArrayList<Integer>();
+        double swappedFee = 0;
+        for (int i : overflow) {
+            long need = sizes[i] - remaining;
+            int from = end;
+            if (need > 0) {
+                from = lastCovering(sizeSums, end, need);
+                if (from < 0 || feeSums[end] - feeSums[from] >= fees[i]) {
+                    continue;
+                }
+            }
+            if (claimedBefore(owners, inputs[i], from)) {
+                continue;
+            }
+            for (int k = from; k < end; ++k) {
+                release(owners, inputs[kept.get(k)]);
+            }
+            remaining += sizeSums[end] - sizeSums[from] - sizes[i];
+            end = from;
+            claim(owners, inputs[i], -1);
+            swapped.add(i);
+            swappedFee += fees[i];
+        }
+
+        boolean[] chosen = new boolean[fees.length];
+        for (int k = 0; k < end; ++k) {
+            chosen[kept.get(k)] = true;
+        }
+        for (int i : swapped) {
+            chosen[i] = true;
+        }
+        int best = -1;
+        for (int i : order) {
+            if (best < 0 || fees[i] > fees[best]) {
+                best = i;
+            }
+        }
+        if (best >= 0 && fees[best] > feeSums[end] + swappedFee) {
+            return new int[] {best};
+        }
+
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i : order) {
+            if (chosen[i]) {
+                result.add(i);
+            }
+        }
+        int[] indices = new int[result.size()];
+        for (int k = 0; k < indices.length; ++k) {
+            indices[k] = result.get(k);
+        }
+        return indices;
+    }
+
+    private static double feeRate(double[] fees, int[] sizes, int i) {
+        return fees[i] / Math.max(sizes[i], 1);
+    }
+
+    /**
+     * @return the largest {@code from} such that the picks in {@code [from, end)} free at least
+     *         {@code need} bytes, or -1 if even all of them do not
+     */
+    private static int lastCovering(long[] sizeSums, int end, long need) {
+        if (sizeSums[end] < need) {
+            return -1;
+        }
+        int lo = 0;
+        int hi = end;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (sizeSums[end] - sizeSums[mid] >= need) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /** @return true if an input of a candidate is claimed by a pick kept before {@code from} */
+    private static boolean claimedBefore(HashMap<UTXO, Integer> owners, UTXO[] inputs, int from) {
+        for (UTXO utxo : inputs) {
+            Integer owner = owners.get(utxo);
+            if (owner != null && owner < from) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void claim(HashMap<UTXO, Integer> owners, UTXO[] inputs, int position) {
+        for (UTXO utxo : inputs) {
+            owners.put(utxo, position);
+        }
+    }
+
+    private static void release(HashMap<UTXO, Integer> owners, UTXO[] inputs) {
+        for (UTXO utxo : inputs) {
+            owners.remove(utxo);
+        }
+    }
+}
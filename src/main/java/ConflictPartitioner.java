@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Splits an epoch into independent components: two transactions end up in the same component if
+ * they spend the same outpoint, or if one spends an output the other creates. Transactions of
+ * different components touch disjoint UTXOs, so components can be validated and applied in any
+ * order or concurrently. Hashes of all transactions must have been computed beforehand.
+ */
+public class ConflictPartitioner {
+
+    private ConflictPartitioner() {
+    }
+
+    /**
+     * @return the components of {@code txs} as arrays of indices into {@code txs}, each sorted in
+     *         ascending order, with components ordered by their smallest index
+     */
+    public static List<int[]> partition(Transaction[] txs) {
+        int[] parent = new int[txs.length];
+        for (int i = 0; i < txs.length; ++i) {
+            parent[i] = i;
+        }
+
+        // First transaction seen touching each outpoint, as a spender or as its creator
+        HashMap<UTXO, Integer> owners = new HashMap<UTXO, Integer>();
+        for (int i = 0; i < txs.length; ++i) {
+            Transaction tx = txs[i];
+            for (int j = 0; j < tx.numInputs(); ++j) {
+                Transaction.Input in = tx.getInput(j);
+                if (in.prevTxHash != null) {
+                    link(parent, owners, new UTXO(in.prevTxHash, in.outputIndex), i);
+                }
+            }
+            if (tx.getHash() != null) {
+                for (int j = 0; j < tx.numOutputs(); ++j) {
+                    link(parent, owners, new UTXO(tx.getHash(), j), i);
+                }
+            }
+        }
+
+        int[] sizes = new int[txs.length];
+        for (int i = 0; i < txs.length; ++i) {
+            ++sizes[find(parent, i)];
+        }
+        int[][] members = new int[txs.length][];
+        int[] filled = new int[txs.length];
+        List<int[]> components = new ArrayList<int[]>();
+        for (int i = 0; i < txs.length; ++i) {
+            int root = find(parent, i);
+            if (members[root] == null) {
+                members[root] = new int[sizes[root]];
+                components.add(members[root]);
+            }
+            members[root][filled[root]++] = i;
+        }
+        return components;
+    }
+
+    private static void link(int[] parent, HashMap<UTXO, Integer> owners, UTXO utxo, int tx) {
+        Integer owner = owners.get(utxo);
+        if (owner == null) {
+            owners.put(utxo, tx);
+        } else {
+            union(parent, owner, tx);
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a);
+        int rb = find(parent, b);
+        if (ra != rb) {
+            // Keep the smaller index as root so component order stays deterministic
+            if (ra < rb) {
+                parent[rb] = ra;
+            } else {
+                parent[ra] = rb;
+            }
+        }
+    }
+}
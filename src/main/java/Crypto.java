@@ -1,37 +1,22 @@
-
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 
 public class Crypto {
 
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
-     *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
-     *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         key {@code pubKey}. The signature algorithm is picked from the type of
+     *         {@code pubKey} among the registered {@code SignatureSchemes} (RSA, ECDSA P-256 or
+     *         Ed25519), but the student does not have to deal with any of the implementation
+     *         details of the specific signature algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+        SignatureScheme scheme = SignatureSchemes.forKey(pubKey);
+        if (scheme == null) {
+            return false;
         }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
-        return false;
-
+        long start = EpochTrace.start();
+        boolean valid = scheme.verify(pubKey, message, signature);
+        EpochTrace.end(EpochTrace.Phase.VERIFY, start);
+        return valid;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,247 @@
+/**
+ * Cuckoo filter over outpoints (transaction hash and output index). Answers "definitely absent"
+ * or "maybe present" by reading at most two buckets of four fingerprints, and unlike a Bloom
+ * filter supports deleting entries. The false-positive rate is bounded by the fingerprint size,
+ * about {@code 8 / 2^fingerprintBits}.
+ */
+public class CuckooFilter {
+
+    private static final int SLOTS_PER_BUCKET = 4;
+    private static final int MAX_KICKS = 500;
+    private static final double MAX_LOAD = 0.95;
+
+    /**
+     * Fingerprints packed {@code fingerprintBits} bits each, {@code SLOTS_PER_BUCKET} consecutive
+     * slots per bucket, 0 meaning empty. A slot may straddle two words.
+     */
+    private long[] table;
+    private int slots;
+    private int bucketMask;
+    private int fingerprintBits;
+    private int fingerprintMask;
+    private int size;
+    private int capacity;
+
+    /** Fingerprint that could not be placed after {@code MAX_KICKS} relocations, or 0 */
+    private int victimFingerprint;
+    private int victimBucket;
+
+    /**
+     * Creates an empty filter sized for {@code capacity} entries with a false-positive rate of at
+     * most about {@code falsePositiveRate}.
+     */
+    public CuckooFilter(int capacity, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1)");
+        }
+        long buckets = (long) Math.ceil(Math.max(capacity, 1) / (SLOTS_PER_BUCKET * MAX_LOAD));
+        int bucketCount = 1;
+        while (bucketCount < buckets) {
+            bucketCount <<= 1;
+        }
+        int bits = (int) Math.ceil(log2(2 * SLOTS_PER_BUCKET / falsePositiveRate));
+        this.fingerprintBits = Math.min(Math.max(bits, 4), 32);
+        this.fingerprintMask = fingerprintBits == 32 ? -1 : (1 << fingerprintBits) - 1;
+        this.slots = bucketCount * SLOTS_PER_BUCKET;
+        this.table = new long[(int) (((long) slots * fingerprintBits + 63) >>> 6)];
+        this.bucketMask = bucketCount - 1;
+        this.capacity = capacity;
+    }
+
+    /** Creates a filter that is a copy of {@code other} */
+    public CuckooFilter(CuckooFilter other) {
+        this.table = other.table.clone();
+        this.slots = other.slots;
+        this.bucketMask = other.bucketMask;
+        this.fingerprintBits = other.fingerprintBits;
+        this.fingerprintMask = other.fingerprintMask;
+        this.size = other.size;
+        this.capacity = other.capacity;
+        this.victimFingerprint = other.victimFingerprint;
+        this.victimBucket = other.victimBucket;
+    }
+
+    /**
+     * Adds the outpoint to the filter. Adding the same outpoint twice requires removing it twice.
+     *
+     * @return false if the filter is too full to take it; the filter must then be rebuilt larger
+     */
+    public boolean add(byte[] txHash, int index) {
+        if (victimFingerprint != 0) {
+            return false;
+        }
+        long h = hash(txHash, index);
+        int fp = fingerprint(h);
+        int i1 = (int) (h >>> 32) & bucketMask;
+        int i2 = altBucket(i1, fp);
+        if (insertInto(i1, fp) || insertInto(i2, fp)) {
+            ++size;
+            return true;
+        }
+        // Both buckets full: relocate existing fingerprints to their alternate bucket
+        int bucket = (h & (1L << 31)) == 0 ? i1 : i2;
+        for (int kick = 0; kick < MAX_KICKS; ++kick) {
+            int slot = bucket * SLOTS_PER_BUCKET + (kick % SLOTS_PER_BUCKET);
+            int evicted = get(slot);
+            set(slot, fp);
+            fp = evicted;
+            bucket = altBucket(bucket, fp);
+            if (insertInto(bucket, fp)) {
+                ++size;
+                return true;
+            }
+        }
+        // Keep the homeless fingerprint so no lookup is ever answered wrongly
+        victimFingerprint = fp;
+        victimBucket = bucket;
+        ++size;
+        return false;
+    }
+
+    /** @return false if the outpoint is definitely not in the filter, true if it may be */
+    public boolean mightContain(byte[] txHash, int index) {
+        long h = hash(txHash, index);
+        int fp = fingerprint(h);
+        int i1 = (int) (h >>> 32) & bucketMask;
+        int i2 = altBucket(i1, fp);
+        if (victimFingerprint == fp && (victimBucket == i1 || victimBucket == i2)) {
+            return true;
+        }
+        return bucketContains(i1, fp) || bucketContains(i2, fp);
+    }
+
+    /**
+     * Removes one occurrence of the outpoint, which must have been added before.
+     *
+     * @return true if a matching fingerprint was found and removed
+     */
+    public boolean remove(byte[] txHash, int index) {
+        long h = hash(txHash, index);
+        int fp = fingerprint(h);
+        int i1 = (int) (h >>> 32) & bucketMask;
+        int i2 = altBucket(i1, fp);
+        if (removeFrom(i1, fp) || removeFrom(i2, fp)) {
+            --size;
+            if (victimFingerprint != 0 && insertInto(victimBucket, victimFingerprint)) {
+                victimFingerprint = 0;
+            }
+            return true;
+        }
+        if (victimFingerprint == fp && (victimBucket == i1 || victimBucket == i2)) {
+            victimFingerprint = 0;
+            --size;
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the number of entries in the filter */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of entries the filter was sized for */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of bits of each fingerprint */
+    public int getFingerprintBits() {
+        return fingerprintBits;
+    }
+
+    /** @return the expected false-positive rate at the current load */
+    public double expectedFalsePositiveRate() {
+        double load = (double) size / slots;
+        return Math.min(1.0, 2 * SLOTS_PER_BUCKET * load / Math.pow(2, fingerprintBits));
+    }
+
+    /** @return the number of bytes used by the fingerprint table */
+    public long memoryBytes() {
+        return (long) table.length * (Long.SIZE / 8);
+    }
+
+    private boolean insertInto(int bucket, int fp) {
+        int base = bucket * SLOTS_PER_BUCKET;
+        for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+            if (get(base + i) == 0) {
+                set(base + i, fp);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean bucketContains(int bucket, int fp) {
+        int base = bucket * SLOTS_PER_BUCKET;
+        return get(base) == fp || get(base + 1) == fp || get(base + 2) == fp
+                || get(base + 3) == fp;
+    }
+
+    private boolean removeFrom(int bucket, int fp) {
+        int base = bucket * SLOTS_PER_BUCKET;
+        for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+            if (get(base + i) == fp) {
+                set(base + i, 0);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int get(int slot) {
+        long bit = (long) slot * fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) bit & 63;
+        long value = table[word] >>> offset;
+        if (offset + fingerprintBits > 64) {
+            value |= table[word + 1] << (64 - offset);
+        }
+        return (int) value & fingerprintMask;
+    }
+
+    private void set(int slot, int fp) {
+        long bit = (long) slot * fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) bit & 63;
+        long mask = fingerprintMask & 0xffffffffL;
+        long value = fp & mask;
+        table[word] = (table[word] & ~(mask << offset)) | (value << offset);
+        if (offset + fingerprintBits > 64) {
+            int shift = 64 - offset;
+            table[word + 1] = (table[word + 1] & ~(mask >>> shift)) | (value >>> shift);
+        }
+    }
+
+    private int fingerprint(long h) {
+        int fp = (int) h & fingerprintMask;
+        return fp == 0 ? 1 : fp;
+    }
+
+    private int altBucket(int bucket, int fp) {
+        return (bucket ^ (int) mix(fp)) & bucketMask;
+    }
+
+    /** 64-bit FNV-1a over the hash bytes and index, finished with a MurmurHash3 mixer */
+    static long hash(byte[] txHash, int index) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < txHash.length; ++i) {
+            h = (h ^ (txHash[i] & 0xff)) * 0x100000001b3L;
+        }
+        h = (h ^ index) * 0x100000001b3L;
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+}
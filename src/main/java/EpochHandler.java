@@ -0,0 +1,10 @@
+/** Something that accepts or rejects the transactions of one epoch at a time */
+public interface EpochHandler {
+
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
+     * transaction for correctness, returning a mutually valid array of accepted transactions, and
+     * updating the current UTXO pool as appropriate.
+     */
+    Transaction[] handleTxs(Transaction[] possibleTxs);
+}
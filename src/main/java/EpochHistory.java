@@ -0,0 +1,58 @@
+import java.util.ArrayDeque;
+
+/**
+ * Bounded stack of the {@code UndoRecord}s of the most recent epochs handled against a
+ * {@code UTXOPool}. Once more than {@code maxDepth} epochs are recorded, the oldest record is
+ * dropped and that epoch can no longer be rolled back.
+ */
+public class EpochHistory {
+
+    /** Default number of epochs that can be rolled back */
+    public static final int DEFAULT_DEPTH = 16;
+
+    private ArrayDeque<UndoRecord> records;
+    private int maxDepth;
+
+    /** Creates a new history keeping at most {@code maxDepth} epochs */
+    public EpochHistory(int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("maxDepth must be non-negative");
+        }
+        this.records = new ArrayDeque<UndoRecord>();
+        this.maxDepth = maxDepth;
+    }
+
+    /** Pushes the undo record of the epoch that was just committed */
+    public void push(UndoRecord record) {
+        records.push(record);
+        while (records.size() > maxDepth) {
+            records.removeLast();
+        }
+    }
+
+    /** @return the undo record of the newest epoch and removes it, or null if there is none */
+    public UndoRecord pop() {
+        return records.poll();
+    }
+
+    /** @return the number of epochs that can currently be rolled back */
+    public int depth() {
+        return records.size();
+    }
+
+    /** @return the maximum number of epochs kept */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** Changes the maximum number of epochs kept, dropping the oldest records if necessary */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("maxDepth must be non-negative");
+        }
+        this.maxDepth = maxDepth;
+        while (records.size() > maxDepth) {
+            records.removeLast();
+        }
+    }
+}
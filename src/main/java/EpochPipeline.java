@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a sequence of epochs so that the signatures of epoch N+1 are verified on worker threads
+ * while epoch N is being committed. Epoch N+1 is resolved against the pool before N commits plus
+ * the outputs every candidate of N and N+1 would create; at commit time only the inputs whose
+ * resolution changed because of N's spends have to be verified again.
+ */
+public class EpochPipeline {
+
+    /** Number of transactions verified by one worker task */
+    private static final int CHUNK_SIZE = 64;
+
+    /** Commits one epoch, given the prevalidation result of each of its transactions */
+    public interface EpochCommitter {
+        Transaction[] commit(Transaction[] possibleTxs, PrevalidatedTx[] prevalidated);
+    }
+
+    private EpochPipeline() {
+    }
+
+    /**
+     * Handles {@code epochs} in order through {@code committer}, prevalidating the next epoch on
+     * {@code executor} while the current one commits.
+     *
+     * @return the accepted transactions of each epoch
+     */
+    public static Transaction[][] run(Transaction[][] epochs, UTXOLookup pool,
+                                      ExecutorService executor, EpochCommitter committer) {
+        Transaction[][] accepted = new Transaction[epochs.length][];
+        if (epochs.length == 0) {
+            return accepted;
+        }
+        PendingEpoch next = prevalidate(epochs[0], null, pool, executor);
+        for (int k = 0; k < epochs.length; ++k) {
+            PrevalidatedTx[] prevalidated = next.await();
+            if (k + 1 < epochs.length) {
+                // Must resolve before committing epoch k: the pool is not touched by the workers
+                next = prevalidate(epochs[k + 1], epochs[k], pool, executor);
+            }
+            accepted[k] = committer.commit(epochs[k], prevalidated);
+        }
+        return accepted;
+    }
+
+    /**
+     * Resolves the inputs of {@code txs} on the calling thread and submits their signature checks
+     * to {@code executor}. {@code pending} is the epoch about to be committed, whose hashes have
+     * already been computed.
+     */
+    private static PendingEpoch prevalidate(final Transaction[] txs, Transaction[] pending,
+                                            UTXOLookup pool, ExecutorService executor) {
+        Map<UTXO, Transaction.Output> overlay = new HashMap<UTXO, Transaction.Output>();
+        if (pending != null) {
+            addOutputs(overlay, pending);
+        }
+        TxHasher.hashAll(txs, executor);
+        addOutputs(overlay, txs);
+
+        final Transaction.Output[][] resolved = new Transaction.Output[txs.length][];
+        for (int i = 0; i < txs.length; ++i) {
+            Transaction tx = txs[i];
+            resolved[i] = new Transaction.Output[tx.numInputs()];
+            for (int j = 0; j < tx.numInputs(); ++j) {
+                Transaction.Input in = tx.getInput(j);
+                if (in.prevTxHash == null) {
+                    continue;
+                }
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                Transaction.Output out = pool.getTxOutput(utxo);
+                resolved[i][j] = out != null ? out : overlay.get(utxo);
+            }
+        }
+
+        final PrevalidatedTx[] results = new PrevalidatedTx[txs.length];
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int start = 0; start < txs.length; start += CHUNK_SIZE) {
+            final int from = start;
+            final int to = Math.min(start + CHUNK_SIZE, txs.length);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; ++i) {
+                        results[i] = PrevalidatedTx.prevalidate(txs[i], resolved[i]);
+                    }
+                }
+            });
+        }
+        return new PendingEpoch(results, ParallelTasks.submitAll(tasks, executor));
+    }
+
+    private static void addOutputs(Map<UTXO, Transaction.Output> overlay, Transaction[] txs) {
+        for (int i = 0; i < txs.length; ++i) {
+            Transaction tx = txs[i];
+            for (int j = 0; j < tx.numOutputs(); ++j) {
+                overlay.put(new UTXO(tx.getHash(), j), tx.getOutput(j));
+            }
+        }
+    }
+
+    /** Prevalidation of an epoch whose signature checks may still be running */
+    private static class PendingEpoch {
+        private PrevalidatedTx[] results;
+        private List<Future<?>> tasks;
+
+        PendingEpoch(PrevalidatedTx[] results, List<Future<?>> tasks) {
+            this.results = results;
+            this.tasks = tasks;
+        }
+
+        PrevalidatedTx[] await() {
+            ParallelTasks.awaitAll(tasks);
+            return results;
+        }
+    }
+}
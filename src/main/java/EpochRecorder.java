@@ -0,0 +1,92 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records epochs (the proposed transactions, what was accepted and when) together with the
+ * initial UTXO pool, so they can be replayed with {@code EpochReplayer}. The recording is a
+ * gzip-compressed stream: the pool entries, then one record per epoch with its transactions in
+ * {@code TransactionCodec} format.
+ */
+public class EpochRecorder implements Closeable {
+
+    static final int MAGIC = 0x45505243;
+    static final int VERSION = 1;
+
+    private DataOutputStream out;
+    private long startNanos;
+
+    /** Starts a recording in {@code file} whose epochs apply to {@code initialPool} */
+    public EpochRecorder(File file, UTXOPool initialPool) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file), 1 << 16)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(initialPool.size());
+        for (UTXO utxo : initialPool.getAllUTXO()) {
+            Transaction.Output txOut = initialPool.getTxOutput(utxo);
+            TransactionCodec.writeBytes(utxo.getTxHash(), out);
+            out.writeInt(utxo.getIndex());
+            out.writeDouble(txOut.value);
+            TransactionCodec.writeAddress(txOut.address, out);
+        }
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Records an epoch proposing {@code possibleTxs}, of which {@code accepted} were accepted, or
+     * null if unknown.
+     */
+    public void record(Transaction[] possibleTxs, Transaction[] accepted) throws IOException {
+        record(System.nanoTime(), possibleTxs, accepted);
+    }
+
+    private synchronized void record(long proposedNanos, Transaction[] possibleTxs,
+                                     Transaction[] accepted) throws IOException {
+        out.writeBoolean(true);
+        out.writeLong(proposedNanos - startNanos);
+        out.writeInt(possibleTxs.length);
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            TransactionCodec.write(possibleTxs[i], out);
+        }
+        if (accepted == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(accepted.length);
+        for (int i = 0; i < accepted.length; ++i) {
+            accepted[i].finalize();
+            TransactionCodec.writeBytes(accepted[i].getHash(), out);
+        }
+    }
+
+    /**
+     * @return a handler delegating to {@code handler} and recording every epoch it handles; a
+     *         failure to record is rethrown as an {@code IllegalStateException}
+     */
+    public EpochHandler recording(final EpochHandler handler) {
+        return new EpochHandler() {
+            @Override
+            public Transaction[] handleTxs(Transaction[] possibleTxs) {
+                long proposedNanos = System.nanoTime();
+                Transaction[] accepted = handler.handleTxs(possibleTxs);
+                try {
+                    record(proposedNanos, possibleTxs, accepted);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to record epoch", e);
+                }
+                return accepted;
+            }
+        };
+    }
+
+    /** Ends the recording */
+    public synchronized void close() throws IOException {
+        out.writeBoolean(false);
+        out.close();
+    }
+}
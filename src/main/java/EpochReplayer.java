@@ -0,0 +1,292 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays epochs recorded by {@code EpochRecorder} against a fresh handler, either back to back
+ * or at the pacing they were recorded with, and reports throughput, per-epoch latency
+ * percentiles and the epochs whose accepted transactions differ from the recording.
+ *
+ * <p>Usage: {@code EpochReplayer <recording> [TxHandler|MaxFeeTxHandler] [--paced]}
+ */
+public class EpochReplayer {
+
+    /** Creates the handler under test from the recorded initial pool */
+    public interface HandlerFactory {
+        EpochHandler create(UTXOPool pool);
+    }
+
+    public static final HandlerFactory TX_HANDLER = new HandlerFactory() {
+        @Override
+        public EpochHandler create(UTXOPool pool) {
+            return new TxHandler(pool);
+        }
+    };
+
+    public static final HandlerFactory MAX_FEE_TX_HANDLER = new HandlerFactory() {
+        @Override
+        public EpochHandler create(UTXOPool pool) {
+            return new MaxFeeTxHandler(pool);
+        }
+    };
+
+    /** One recorded epoch */
+    public static class RecordedEpoch {
+        private long offsetNanos;
+        private Transaction[] possibleTxs;
+        private Set<TxId> accepted;
+
+        RecordedEpoch(long offsetNanos, Transaction[] possibleTxs, Set<TxId> accepted) {
+            this.offsetNanos = offsetNanos;
+            this.possibleTxs = possibleTxs;
+            this.accepted = accepted;
+        }
+
+        /** @return when the epoch was proposed, relative to the start of the recording */
+        public long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        public Transaction[] getPossibleTxs() {
+            return possibleTxs;
+        }
+
+        /** @return the hashes of the transactions accepted when recording, or null if unknown */
+        public Set<TxId> getAccepted() {
+            return accepted;
+        }
+    }
+
+    /** A recording read back from disk */
+    public static class Recording {
+        private UTXOPool pool;
+        private List<RecordedEpoch> epochs;
+
+        Recording(UTXOPool pool, List<RecordedEpoch> epochs) {
+            this.pool = pool;
+            this.epochs = epochs;
+        }
+
+        /** @return the UTXO pool the first epoch applies to */
+        public UTXOPool getPool() {
+            return pool;
+        }
+
+        public List<RecordedEpoch> getEpochs() {
+            return epochs;
+        }
+    }
+
+    /** Outcome of a replay */
+    public static class Report {
+        private int epochs;
+        private long transactions;
+        private long accepted;
+        private long elapsedNanos;
+        private long[] epochNanos;
+        private int divergentEpochs;
+        private long missing;
+        private long extra;
+
+        Report(int epochs, long transactions, long accepted, long elapsedNanos, long[] epochNanos,
+               int divergentEpochs, long missing, long extra) {
+            this.epochs = epochs;
+            this.transactions = transactions;
+            this.accepted = accepted;
+            this.elapsedNanos = elapsedNanos;
+            this.epochNanos = epochNanos;
+            this.divergentEpochs = divergentEpochs;
+            this.missing = missing;
+            this.extra = extra;
+            Arrays.sort(this.epochNanos);
+        }
+
+        public int getEpochs() {
+            return epochs;
+        }
+
+        /** @return the number of proposed transactions replayed */
+        public long getTransactions() {
+            return transactions;
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        /** @return the number of epochs whose accepted transactions differ from the recording */
+        public int getDivergentEpochs() {
+            return divergentEpochs;
+        }
+
+        /** @return the number of transactions accepted when recording but not when replaying */
+        public long getMissing() {
+            return missing;
+        }
+
+        /** @return the number of transactions accepted when replaying but not when recording */
+        public long getExtra() {
+            return extra;
+        }
+
+        /** @return the proposed transactions handled per second of handler time */
+        public double throughput() {
+            long busy = 0;
+            for (int i = 0; i < epochNanos.length; ++i) {
+                busy += epochNanos[i];
+            }
+            return transactions * 1e9 / Math.max(busy, 1);
+        }
+
+        /** @return the epoch latency below which {@code percent} percent of the epochs ran */
+        public long latencyPercentileNanos(double percent) {
+            if (epochNanos.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percent / 100 * epochNanos.length) - 1;
+            return epochNanos[Math.min(Math.max(rank, 0), epochNanos.length - 1)];
+        }
+
+        public String toString() {
+            return String.format("epochs=%d txs=%d accepted=%d elapsed=%.1fms tx/s=%.1f "
+                            + "p50=%.2fms p99=%.2fms max=%.2fms divergent=%d missing=%d extra=%d",
+                    epochs, transactions, accepted, elapsedNanos / 1e6, throughput(),
+                    latencyPercentileNanos(50) / 1e6, latencyPercentileNanos(99) / 1e6,
+                    latencyPercentileNanos(100) / 1e6, divergentEpochs, missing, extra);
+        }
+    }
+
+    private EpochReplayer() {
+    }
+
+    /** Reads the recording in {@code file} */
+    public static Recording read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), 1 << 16)));
+        try {
+            if (in.readInt() != EpochRecorder.MAGIC || in.readInt() != EpochRecorder.VERSION) {
+                throw new IOException("Not an epoch recording");
+            }
+            int size = in.readInt();
+            UTXOPool pool = new UTXOPool(ShardedUTXOStore.DEFAULT_SHARDS, size);
+            Transaction outputs = new Transaction();
+            for (int i = 0; i < size; ++i) {
+                byte[] hash = TransactionCodec.readBytes(in);
+                int index = in.readInt();
+                double value = in.readDouble();
+                if (hash == null) {
+                    throw new IOException("Missing UTXO hash");
+                }
+                pool.addUTXO(new UTXO(hash, index),
+                        outputs.new Output(value, TransactionCodec.readAddress(in)));
+            }
+
+            List<RecordedEpoch> epochs = new ArrayList<RecordedEpoch>();
+            while (in.readBoolean()) {
+                long offsetNanos = in.readLong();
+                Transaction[] possibleTxs = new Transaction[in.readInt()];
+                for (int i = 0; i < possibleTxs.length; ++i) {
+                    possibleTxs[i] = TransactionCodec.read(in);
+                }
+                int acceptedCount = in.readInt();
+                Set<TxId> accepted = null;
+                if (acceptedCount >= 0) {
+                    accepted = new HashSet<TxId>();
+                    for (int i = 0; i < acceptedCount; ++i) {
+                        accepted.add(new TxId(TransactionCodec.readBytes(in)));
+                    }
+                }
+                epochs.add(new RecordedEpoch(offsetNanos, possibleTxs, accepted));
+            }
+            return new Recording(pool, epochs);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replays {@code recording} against a handler created by {@code factory}, waiting for the
+     * recorded offset of each epoch if {@code paced} and running them back to back otherwise.
+     */
+    public static Report replay(Recording recording, HandlerFactory factory, boolean paced)
+            throws InterruptedException {
+        EpochHandler handler = factory.create(recording.getPool());
+        List<RecordedEpoch> epochs = recording.getEpochs();
+        long[] epochNanos = new long[epochs.size()];
+        long transactions = 0;
+        long accepted = 0;
+        int divergent = 0;
+        long missing = 0;
+        long extra = 0;
+
+        long start = System.nanoTime();
+        for (int e = 0; e < epochs.size(); ++e) {
+            RecordedEpoch epoch = epochs.get(e);
+            if (paced) {
+                long wait = start + epoch.getOffsetNanos() - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            // Handlers may reorder their input, so each replay gets its own copy
+            Transaction[] possibleTxs = Arrays.copyOf(epoch.getPossibleTxs(),
+                    epoch.getPossibleTxs().length);
+            long epochStart = System.nanoTime();
+            Transaction[] result = handler.handleTxs(possibleTxs);
+            epochNanos[e] = System.nanoTime() - epochStart;
+            transactions += possibleTxs.length;
+            accepted += result.length;
+
+            if (epoch.getAccepted() != null) {
+                Set<TxId> replayed = new HashSet<TxId>();
+                for (int i = 0; i < result.length; ++i) {
+                    replayed.add(TxId.of(result[i]));
+                }
+                int epochExtra = 0;
+                for (TxId id : replayed) {
+                    if (!epoch.getAccepted().contains(id)) {
+                        ++epochExtra;
+                    }
+                }
+                int epochMissing = epoch.getAccepted().size() - (replayed.size() - epochExtra);
+                if (epochExtra != 0 || epochMissing != 0) {
+                    ++divergent;
+                    extra += epochExtra;
+                    missing += epochMissing;
+                }
+            }
+        }
+        return new Report(epochs.size(), transactions, accepted, System.nanoTime() - start,
+                epochNanos, divergent, missing, extra);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: EpochReplayer <recording> [TxHandler|MaxFeeTxHandler] "
+                    + "[--paced]");
+            System.exit(2);
+        }
+        HandlerFactory factory = TX_HANDLER;
+        boolean paced = false;
+        for (int i = 1; i < args.length; ++i) {
+            if (args[i].equals("--paced")) {
+                paced = true;
+            } else if (args[i].equals("MaxFeeTxHandler")) {
+                factory = MAX_FEE_TX_HANDLER;
+            } else if (!args[i].equals("TxHandler")) {
+                System.err.println("Unknown argument " + args[i]);
+                System.exit(2);
+            }
+        }
+        System.out.println(replay(read(new File(args[0])), factory, paced));
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead tracing of where the time of an epoch goes. Disabled by default, in which case
+ * every probe costs one volatile read. When enabled, the handlers, {@code TxValidator} and
+ * {@code Crypto} accumulate per-phase timers, and each epoch is reported as Java Flight Recorder
+ * events (see {@code JfrEpochEvents}) if the JVM supports JFR: one event for the epoch, one per
+ * phase with the time spent in it, and one per transaction slower to validate than the
+ * configured threshold.
+ *
+ * <p>Timers are global, so epochs handled concurrently by several handlers are attributed each
+ * other's phase times.
+ */
+public class EpochTrace {
+
+    /** The traced phases of an epoch */
+    public enum Phase {
+        /** Building the data to sign with {@code getRawDataToSign} */
+        SERIALIZE,
+        /** Resolving inputs against the UTXO pool */
+        LOOKUP,
+        /** Verifying signatures in {@code Crypto} */
+        VERIFY,
+        /** Sorting candidates by fee in {@code MaxFeeTxHandler} */
+        SORT,
+        /** Applying accepted transactions to the UTXO pool */
+        COMMIT
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final boolean JFR_AVAILABLE = jfrAvailable();
+
+    private static volatile boolean enabled;
+    private static volatile long slowTxNanos = Long.MAX_VALUE;
+
+    private static final LongAdder[] NANOS = new LongAdder[PHASES.length];
+    private static final LongAdder[] COUNTS = new LongAdder[PHASES.length];
+
+    static {
+        for (int i = 0; i < PHASES.length; ++i) {
+            NANOS[i] = new LongAdder();
+            COUNTS[i] = new LongAdder();
+        }
+    }
+
+    /** An epoch being traced, with the phase totals when it started */
+    public static class Epoch {
+        final long[] startTotals;
+        final Object event;
+
+        Epoch(String handler, int proposed) {
+            this.startTotals = totals();
+            this.event = JFR_AVAILABLE ? JfrEpochEvents.beginEpoch(handler, proposed) : null;
+        }
+    }
+
+    private EpochTrace() {
+    }
+
+    /** Turns tracing on or off */
+    public static void setEnabled(boolean enabled) {
+        EpochTrace.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @return true if traced epochs are also reported as JFR events */
+    public static boolean isJfrAvailable() {
+        return JFR_AVAILABLE;
+    }
+
+    /**
+     * Reports transactions taking more than {@code thresholdMillis} to validate as slow, or none
+     * if {@code thresholdMillis} is negative.
+     */
+    public static void setSlowTxThresholdMillis(long thresholdMillis) {
+        slowTxNanos = thresholdMillis < 0 ? Long.MAX_VALUE : thresholdMillis * 1000000;
+    }
+
+    /** @return the total time spent in {@code phase} since the last reset, in nanoseconds */
+    public static long getPhaseNanos(Phase phase) {
+        return NANOS[phase.ordinal()].sum();
+    }
+
+    /** @return the number of times {@code phase} was entered since the last reset */
+    public static long getPhaseCount(Phase phase) {
+        return COUNTS[phase.ordinal()].sum();
+    }
+
+    /** Resets the phase timers */
+    public static void reset() {
+        for (int i = 0; i < PHASES.length; ++i) {
+            NANOS[i].reset();
+            COUNTS[i].reset();
+        }
+    }
+
+    /** @return a start timestamp to pass to {@link #end(Phase, long)}, or 0 if disabled */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Charges the time since {@code start} to {@code phase} */
+    public static void end(Phase phase, long start) {
+        if (start != 0) {
+            NANOS[phase.ordinal()].add(System.nanoTime() - start);
+            COUNTS[phase.ordinal()].increment();
+        }
+    }
+
+    /** Reports {@code tx} if its validation, started at {@code start}, was slow */
+    public static void endTx(Transaction tx, long start, boolean valid) {
+        if (start == 0) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        if (duration > slowTxNanos && JFR_AVAILABLE) {
+            JfrEpochEvents.slowTx(tx, duration, valid);
+        }
+    }
+
+    /** @return the epoch to pass to {@link #endEpoch(Epoch, int)}, or null if disabled */
+    public static Epoch beginEpoch(String handler, int proposed) {
+        return enabled ? new Epoch(handler, proposed) : null;
+    }
+
+    /** Reports {@code epoch}, which accepted {@code accepted} transactions */
+    public static void endEpoch(Epoch epoch, int accepted) {
+        if (epoch == null || epoch.event == null) {
+            return;
+        }
+        long[] totals = totals();
+        long[] phaseNanos = new long[PHASES.length];
+        long[] phaseCounts = new long[PHASES.length];
+        for (int i = 0; i < PHASES.length; ++i) {
+            phaseNanos[i] = totals[i] - epoch.startTotals[i];
+            phaseCounts[i] = totals[PHASES.length + i] - epoch.startTotals[PHASES.length + i];
+        }
+        JfrEpochEvents.endEpoch(epoch.event, accepted, PHASES, phaseNanos, phaseCounts);
+    }
+
+    /** @return the phase times followed by the phase counts */
+    private static long[] totals() {
+        long[] totals = new long[2 * PHASES.length];
+        for (int i = 0; i < PHASES.length; ++i) {
+            totals[i] = NANOS[i].sum();
+            totals[PHASES.length + i] = COUNTS[i].sum();
+        }
+        return totals;
+    }
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
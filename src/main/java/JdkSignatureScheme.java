@@ -0,0 +1,145 @@
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+
+/**
+ * {@code SignatureScheme} backed by a JCA {@code Signature} algorithm of the installed providers.
+ * One {@code Signature} object is kept per thread, since looking up the provider on every call
+ * costs about as much as verifying a small signature.
+ */
+public class JdkSignatureScheme implements SignatureScheme {
+
+    /** RSA with SHA-256, the original scheme of all addresses */
+    public static final JdkSignatureScheme RSA =
+            new JdkSignatureScheme("RSA", "SHA256withRSA", new String[] {"RSA"}, null);
+
+    /** ECDSA with SHA-256 over the NIST P-256 curve */
+    public static final JdkSignatureScheme ECDSA_P256 =
+            new JdkSignatureScheme("ECDSA-P256", "SHA256withECDSA", new String[] {"EC", "ECDSA"},
+                    "secp256r1");
+
+    /** Ed25519, available from the JDK 15 providers on */
+    public static final JdkSignatureScheme ED25519 =
+            new JdkSignatureScheme("Ed25519", "Ed25519", new String[] {"Ed25519", "EdDSA"}, null);
+
+    private String name;
+    private String algorithm;
+    private String[] keyAlgorithms;
+    private String curve;
+    /** Parameters of {@code curve}, looked up on first use */
+    private volatile ECParameterSpec curveParams;
+    private ThreadLocal<Signature> signatures;
+
+    /**
+     * Creates a scheme verifying with JCA algorithm {@code algorithm} the keys whose
+     * {@code getAlgorithm()} is one of {@code keyAlgorithms}. If {@code curve} is not null,
+     * elliptic curve keys must also be on the named curve, such as {@code "secp256r1"}, with all
+     * of its parameters.
+     */
+    public JdkSignatureScheme(String name, String algorithm, String[] keyAlgorithms,
+                              String curve) {
+        this.name = name;
+        this.algorithm = algorithm;
+        this.keyAlgorithms = keyAlgorithms.clone();
+        this.curve = curve;
+        this.signatures = new ThreadLocal<Signature>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean supports(PublicKey pubKey) {
+        if (pubKey == null) {
+            return false;
+        }
+        String keyAlgorithm = pubKey.getAlgorithm();
+        for (int i = 0; i < keyAlgorithms.length; ++i) {
+            if (keyAlgorithms[i].equalsIgnoreCase(keyAlgorithm)) {
+                return curve == null || isOnCurve(pubKey);
+            }
+        }
+        return false;
+    }
+
+    public boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        Signature sig = signature();
+        if (sig == null) {
+            return false;
+        }
+        try {
+            sig.initVerify(pubKey);
+            sig.update(message);
+            return sig.verify(signature);
+        } catch (InvalidKeyException e) {
+            return false;
+        } catch (SignatureException e) {
+            // Malformed signature encoding
+            return false;
+        }
+    }
+
+    /** @return true if the installed providers implement this scheme */
+    public boolean isAvailable() {
+        return signature() != null;
+    }
+
+    /** @return a {@code Signature} object of this scheme, ready to be initialized for signing */
+    public Signature newSignature() throws GeneralSecurityException {
+        return Signature.getInstance(algorithm);
+    }
+
+    private Signature signature() {
+        Signature sig = signatures.get();
+        if (sig == null) {
+            try {
+                sig = Signature.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+            signatures.set(sig);
+        }
+        return sig;
+    }
+
+    /**
+     * @return true if {@code pubKey} is an elliptic curve key whose curve, generator, order and
+     *         cofactor are those of {@code curve}; the field size alone would also let other
+     *         curves of the same size through
+     */
+    private boolean isOnCurve(PublicKey pubKey) {
+        if (!(pubKey instanceof ECPublicKey)) {
+            return false;
+        }
+        ECParameterSpec expected = curveParams();
+        ECParameterSpec actual = ((ECPublicKey) pubKey).getParams();
+        return expected != null && actual != null
+                && expected.getCurve().equals(actual.getCurve())
+                && expected.getGenerator().equals(actual.getGenerator())
+                && expected.getOrder().equals(actual.getOrder())
+                && expected.getCofactor() == actual.getCofactor();
+    }
+
+    /** @return the parameters of {@code curve}, or null if no provider knows it */
+    private ECParameterSpec curveParams() {
+        ECParameterSpec params = curveParams;
+        if (params == null) {
+            try {
+                AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+                parameters.init(new ECGenParameterSpec(curve));
+                params = parameters.getParameterSpec(ECParameterSpec.class);
+            } catch (GeneralSecurityException e) {
+                return null;
+            }
+            curveParams = params;
+        }
+        return params;
+    }
+}
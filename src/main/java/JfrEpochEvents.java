@@ -0,0 +1,124 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by {@code EpochTrace}. Only loaded once tracing is enabled
+ * on a JVM that has JFR, so the rest of the code does not depend on {@code jdk.jfr}.
+ */
+class JfrEpochEvents {
+
+    private JfrEpochEvents() {
+    }
+
+    @Name("scrooge.Epoch")
+    @Label("Epoch")
+    @Description("One call to handleTxs")
+    @Category({"Scrooge", "Epoch"})
+    @StackTrace(false)
+    static class EpochEvent extends Event {
+        @Label("Handler")
+        String handler;
+
+        @Label("Proposed Transactions")
+        int proposed;
+
+        @Label("Accepted Transactions")
+        int accepted;
+    }
+
+    @Name("scrooge.EpochPhase")
+    @Label("Epoch Phase")
+    @Description("Time spent in one phase during an epoch, summed over its occurrences")
+    @Category({"Scrooge", "Epoch"})
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+        @Label("Handler")
+        String handler;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Time Spent")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+
+        @Label("Occurrences")
+        long count;
+    }
+
+    @Name("scrooge.SlowTransaction")
+    @Label("Slow Transaction")
+    @Description("Transaction that took longer than the threshold to validate")
+    @Category({"Scrooge", "Epoch"})
+    static class SlowTxEvent extends Event {
+        @Label("Transaction Hash")
+        String hash;
+
+        @Label("Inputs")
+        int inputs;
+
+        @Label("Outputs")
+        int outputs;
+
+        @Label("Valid")
+        boolean valid;
+
+        @Label("Validation Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+    }
+
+    /** @return a started epoch event, to pass to {@link #endEpoch} */
+    static Object beginEpoch(String handler, int proposed) {
+        EpochEvent event = new EpochEvent();
+        event.handler = handler;
+        event.proposed = proposed;
+        event.begin();
+        return event;
+    }
+
+    static void endEpoch(Object started, int accepted, EpochTrace.Phase[] phases,
+                         long[] phaseNanos, long[] phaseCounts) {
+        EpochEvent event = (EpochEvent) started;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.accepted = accepted;
+        event.commit();
+        for (int i = 0; i < phases.length; ++i) {
+            if (phaseCounts[i] == 0) {
+                continue;
+            }
+            PhaseEvent phase = new PhaseEvent();
+            phase.handler = event.handler;
+            phase.phase = phases[i].name();
+            phase.nanos = phaseNanos[i];
+            phase.count = phaseCounts[i];
+            phase.commit();
+        }
+    }
+
+    static void slowTx(Transaction tx, long duration, boolean valid) {
+        SlowTxEvent event = new SlowTxEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        byte[] hash = tx.getHash();
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; hash != null && i < hash.length; ++i) {
+            hex.append(String.format("%02x", hash[i]));
+        }
+        event.hash = hex.toString();
+        event.inputs = tx.numInputs();
+        event.outputs = tx.numOutputs();
+        event.valid = valid;
+        event.nanos = duration;
+        event.commit();
+    }
+}
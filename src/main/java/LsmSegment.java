@@ -0,0 +1,448 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable sorted run of {@code LsmUTXOStore} entries on disk. Entries are sorted in
+ * {@link UTXO#HASH_ORDER} and packed into small blocks; a spent UTXO is kept as a tombstone so
+ * that it hides older segments. The block index (first key of each block), the address table
+ * and a Bloom filter stay in memory, so a lookup of a missing UTXO usually costs no I/O and a
+ * present one costs a single block read.
+ *
+ * <p>Layout: blocks, address table, block index, Bloom filter, then a footer with the offset of
+ * the address table, the entry count, the range of flush sequence numbers merged into the
+ * segment and a magic number.
+ */
+class LsmSegment {
+
+    static final int MAGIC = 0x4c534d31;
+    private static final int FOOTER_LENGTH = 8 + 8 + 8 + 8 + 4;
+
+    /** Entries per block */
+    static final int BLOCK_SIZE = 32;
+
+    private File file;
+    private FileChannel channel;
+    private long id;
+    private long minSeq;
+    private long maxSeq;
+    private long entryCount;
+    private PublicKey[] addresses;
+    private UTXO[] firstKeys;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] counts;
+    private BloomFilter bloom;
+
+    /** Owners and readers currently using the segment; the file is closed at zero */
+    private AtomicInteger refs = new AtomicInteger(1);
+    private volatile boolean obsolete;
+
+    private LsmSegment() {
+    }
+
+    /** @return the unique id of the segment, from its file name */
+    long getId() {
+        return id;
+    }
+
+    /** @return the oldest flush merged into this segment */
+    long getMinSeq() {
+        return minSeq;
+    }
+
+    /** @return the newest flush merged into this segment; newer segments have a higher value */
+    long getMaxSeq() {
+        return maxSeq;
+    }
+
+    /** @return the number of entries, tombstones included */
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /** @return false if the UTXO is definitely not in this segment */
+    boolean mightContain(UTXO utxo) {
+        return bloom.mightContain(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /**
+     * @return the output of {@code utxo}, {@code LsmUTXOStore.TOMBSTONE} if the segment records
+     *         it as spent, or null if the segment does not know it
+     */
+    Transaction.Output get(UTXO utxo) throws IOException {
+        if (!mightContain(utxo)) {
+            return null;
+        }
+        int block = findBlock(utxo);
+        if (block < 0) {
+            return null;
+        }
+        List<Map.Entry<UTXO, Transaction.Output>> entries = readBlock(block);
+        for (Map.Entry<UTXO, Transaction.Output> entry : entries) {
+            int cmp = UTXO.HASH_ORDER.compare(entry.getKey(), utxo);
+            if (cmp == 0) {
+                return entry.getValue();
+            }
+            if (cmp > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up {@code sorted}, in {@link UTXO#HASH_ORDER}, reading each block at most once, and
+     * puts the outputs or tombstones the segment knows into {@code found}.
+     */
+    void getAll(List<UTXO> sorted, Map<UTXO, Transaction.Output> found) throws IOException {
+        int readBlock = -1;
+        List<Map.Entry<UTXO, Transaction.Output>> entries = null;
+        int next = 0;
+        for (UTXO utxo : sorted) {
+            if (!mightContain(utxo)) {
+                continue;
+            }
+            int block = findBlock(utxo);
+            if (block < 0) {
+                continue;
+            }
+            if (block != readBlock) {
+                entries = readBlock(block);
+                readBlock = block;
+                next = 0;
+            }
+            // Keys are sorted, so the scan of a block resumes where the previous key stopped
+            while (next < entries.size()) {
+                int cmp = UTXO.HASH_ORDER.compare(entries.get(next).getKey(), utxo);
+                if (cmp == 0) {
+                    found.put(utxo, entries.get(next).getValue());
+                }
+                if (cmp >= 0) {
+                    break;
+                }
+                ++next;
+            }
+        }
+    }
+
+    /** @return the entries of the segment in order; the caller holds a reference meanwhile */
+    Iterator<Map.Entry<UTXO, Transaction.Output>> iterator() {
+        return new Iterator<Map.Entry<UTXO, Transaction.Output>>() {
+            private int block;
+            private Iterator<Map.Entry<UTXO, Transaction.Output>> current =
+                    Collections.<Map.Entry<UTXO, Transaction.Output>>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && block < offsets.length) {
+                    try {
+                        current = readBlock(block++).iterator();
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Failed to read " + file, e);
+                    }
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<UTXO, Transaction.Output> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Takes a reference for reading; false if the segment was already closed */
+    boolean acquire() {
+        while (true) {
+            int count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Drops a reference; the last one closes the file, and deletes it if obsolete */
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (obsolete && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /** Marks the segment as replaced by a compaction, so its file goes away once unused */
+    void retire() {
+        obsolete = true;
+        release();
+    }
+
+    /** @return the last block whose first key is not greater than {@code utxo}, or -1 */
+    private int findBlock(UTXO utxo) {
+        int lo = 0;
+        int hi = firstKeys.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (UTXO.HASH_ORDER.compare(firstKeys[mid], utxo) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private List<Map.Entry<UTXO, Transaction.Output>> readBlock(int block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(lengths[block]);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offsets[block] + buffer.position()) < 0) {
+                throw new EOFException("Truncated segment " + file);
+            }
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+        Transaction outputs = new Transaction();
+        List<Map.Entry<UTXO, Transaction.Output>> entries =
+                new ArrayList<Map.Entry<UTXO, Transaction.Output>>(counts[block]);
+        for (int i = 0; i < counts[block]; ++i) {
+            UTXO utxo = readKey(in);
+            Transaction.Output txOut = LsmUTXOStore.TOMBSTONE;
+            if (in.readBoolean()) {
+                double value = in.readDouble();
+                int addressId = in.readInt();
+                if (addressId < 0 || addressId >= addresses.length) {
+                    throw new IOException("Invalid address id in " + file);
+                }
+                txOut = outputs.new Output(value, addresses[addressId]);
+            }
+            entries.add(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(utxo,
+                    txOut));
+        }
+        return entries;
+    }
+
+    /**
+     * Writes {@code entries}, sorted in {@link UTXO#HASH_ORDER}, to a new segment file
+     * {@code file} covering flushes {@code minSeq} to {@code maxSeq}, dropping tombstones if
+     * {@code dropTombstones}, and opens it. The file appears atomically once complete.
+     */
+    static LsmSegment write(File file, long id, long minSeq, long maxSeq,
+                            Iterator<Map.Entry<UTXO, Transaction.Output>> entries,
+                            int expectedCount, boolean dropTombstones, double bloomRate)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        BloomFilter bloom = new BloomFilter(expectedCount, bloomRate);
+        HashMap<PublicKey, Integer> addressIds = new HashMap<PublicKey, Integer>();
+        List<PublicKey> addresses = new ArrayList<PublicKey>();
+        List<UTXO> firstKeys = new ArrayList<UTXO>();
+        List<Long> offsets = new ArrayList<Long>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        List<Integer> counts = new ArrayList<Integer>();
+        long entryCount = 0;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16));
+        try {
+            long offset = 0;
+            ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+            DataOutputStream block = new DataOutputStream(blockBytes);
+            int inBlock = 0;
+            while (entries.hasNext()) {
+                Map.Entry<UTXO, Transaction.Output> entry = entries.next();
+                Transaction.Output txOut = entry.getValue();
+                boolean tombstone = txOut == LsmUTXOStore.TOMBSTONE;
+                if (tombstone && dropTombstones) {
+                    continue;
+                }
+                UTXO utxo = entry.getKey();
+                if (inBlock == 0) {
+                    firstKeys.add(utxo);
+                }
+                writeKey(utxo, block);
+                block.writeBoolean(!tombstone);
+                if (!tombstone) {
+                    Integer addressId = addressIds.get(txOut.address);
+                    if (addressId == null) {
+                        addressId = addresses.size();
+                        addressIds.put(txOut.address, addressId);
+                        addresses.add(txOut.address);
+                    }
+                    block.writeDouble(txOut.value);
+                    block.writeInt(addressId);
+                }
+                bloom.add(utxo.getTxHash(), utxo.getIndex());
+                ++entryCount;
+                if (++inBlock == BLOCK_SIZE || !entries.hasNext()) {
+                    block.flush();
+                    blockBytes.writeTo(out);
+                    offsets.add(offset);
+                    lengths.add(blockBytes.size());
+                    counts.add(inBlock);
+                    offset += blockBytes.size();
+                    blockBytes.reset();
+                    inBlock = 0;
+                }
+            }
+            if (inBlock > 0) {
+                // The last entries were followed by dropped tombstones only
+                block.flush();
+                blockBytes.writeTo(out);
+                offsets.add(offset);
+                lengths.add(blockBytes.size());
+                counts.add(inBlock);
+                offset += blockBytes.size();
+            }
+
+            long metaOffset = offset;
+            out.writeInt(addresses.size());
+            for (PublicKey address : addresses) {
+                TransactionCodec.writeAddress(address, out);
+            }
+            out.writeInt(firstKeys.size());
+            for (int b = 0; b < firstKeys.size(); ++b) {
+                writeKey(firstKeys.get(b), out);
+                out.writeLong(offsets.get(b));
+                out.writeInt(lengths.get(b));
+                out.writeInt(counts.get(b));
+            }
+            long[] bits = bloom.getBits();
+            out.writeInt(bloom.getNumHashes());
+            out.writeInt(bits.length);
+            for (int i = 0; i < bits.length; ++i) {
+                out.writeLong(bits[i]);
+            }
+            out.writeLong(metaOffset);
+            out.writeLong(entryCount);
+            out.writeLong(minSeq);
+            out.writeLong(maxSeq);
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return open(file, id);
+    }
+
+    /** Opens the segment in {@code file}, loading its index, address table and Bloom filter */
+    static LsmSegment open(File file, long id) throws IOException {
+        LsmSegment segment = new LsmSegment();
+        segment.file = file;
+        segment.id = id;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        segment.channel = raf.getChannel();
+        try {
+            long length = segment.channel.size();
+            if (length < FOOTER_LENGTH) {
+                throw new IOException("Truncated segment " + file);
+            }
+            raf.seek(length - FOOTER_LENGTH);
+            long metaOffset = raf.readLong();
+            segment.entryCount = raf.readLong();
+            segment.minSeq = raf.readLong();
+            segment.maxSeq = raf.readLong();
+            if (raf.readInt() != MAGIC || metaOffset < 0 || metaOffset > length - FOOTER_LENGTH) {
+                throw new IOException("Not a segment: " + file);
+            }
+
+            segment.channel.position(metaOffset);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(segment.channel)));
+            segment.addresses = new PublicKey[readCount(in)];
+            for (int i = 0; i < segment.addresses.length; ++i) {
+                segment.addresses[i] = TransactionCodec.readAddress(in);
+            }
+            int blocks = readCount(in);
+            segment.firstKeys = new UTXO[blocks];
+            segment.offsets = new long[blocks];
+            segment.lengths = new int[blocks];
+            segment.counts = new int[blocks];
+            for (int b = 0; b < blocks; ++b) {
+                segment.firstKeys[b] = readKey(in);
+                segment.offsets[b] = in.readLong();
+                segment.lengths[b] = in.readInt();
+                segment.counts[b] = in.readInt();
+                if (segment.lengths[b] < 0 || segment.counts[b] < 0) {
+                    throw new IOException("Corrupt block index in " + file);
+                }
+            }
+            int numHashes = in.readInt();
+            long[] bits = new long[readCount(in)];
+            for (int i = 0; i < bits.length; ++i) {
+                bits[i] = in.readLong();
+            }
+            segment.bloom = new BloomFilter(bits, numHashes);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (IllegalArgumentException e) {
+            raf.close();
+            throw new IOException("Corrupt segment " + file, e);
+        }
+        return segment;
+    }
+
+    private static void writeKey(UTXO utxo, DataOutputStream out) throws IOException {
+        TransactionCodec.writeBytes(utxo.getTxHash(), out);
+        out.writeInt(utxo.getIndex());
+    }
+
+    private static UTXO readKey(DataInputStream in) throws IOException {
+        byte[] hash = TransactionCodec.readBytes(in);
+        if (hash == null) {
+            throw new IOException("Missing UTXO hash");
+        }
+        return new UTXO(hash, in.readInt());
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+}
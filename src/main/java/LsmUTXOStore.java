@@ -0,0 +1,760 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk-backed UTXO store organized as a log-structured merge tree, for UTXO sets larger than
+ * memory. Updates go to an in-memory sorted memtable; when it fills up it is written out as an
+ * immutable sorted segment, and a background thread merges runs of similarly sized segments
+ * (size-tiered compaction) so that lookups touch few of them. A spent UTXO is recorded as a
+ * tombstone until a compaction reaches the oldest segment.
+ *
+ * <p>Lookups read the memtable and then the segments from newest to oldest. Each segment keeps
+ * a Bloom filter and its block index in memory, so a segment that does not hold the UTXO is
+ * skipped without I/O and one that does costs a single block read. Reads never block; updates
+ * come from one thread at a time, as for any {@code UTXOStore}.
+ *
+ * <p>There is no write-ahead log: updates since the last {@link #flush()} are lost if the
+ * process dies, so callers flush at epoch boundaries, as {@code UTXOPool#flush()} does.
+ * {@link #close()} flushes, and opening the directory again restores the store. Only the store
+ * opened on a directory writes to it: a {@link #copy()}, such as the one a handler makes when
+ * given a {@code UTXOPool}, lives in a temporary directory that is deleted when it is closed.
+ */
+public class LsmUTXOStore implements UTXOStore, Closeable, Flushable {
+
+    /** Default number of memtable entries that triggers a flush */
+    public static final int DEFAULT_MEMTABLE_SIZE = 1 << 16;
+
+    /** Default number of same-tier segments merged by a compaction */
+    public static final int DEFAULT_TIER_WIDTH = 4;
+
+    /** False positive rate of the segment Bloom filters */
+    public static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    /** Marks a spent UTXO in the memtable and in segments; compared by identity */
+    static final Transaction.Output TOMBSTONE = new Transaction().new Output(0, null);
+
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".sst";
+
+    private File directory;
+    private boolean deleteOnClose;
+    private int memtableLimit;
+    private int tierWidth;
+
+    private volatile ConcurrentSkipListMap<UTXO, Transaction.Output> memtable;
+    private int memtableEntries;
+    /** The memtable being written out, still visible to readers, or null */
+    private volatile ConcurrentSkipListMap<UTXO, Transaction.Output> flushing;
+    /** Segments, newest first; replaced as a whole while holding {@code segmentsLock} */
+    private volatile List<LsmSegment> segments;
+    private volatile int size;
+
+    private final Object segmentsLock = new Object();
+    /** Guarded by {@code segmentsLock} */
+    private long nextId;
+    private boolean compacting;
+    private boolean closed;
+
+    private ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "lsm-compaction");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Opens the store in {@code directory}, creating it if needed, with default settings */
+    public LsmUTXOStore(File directory) throws IOException {
+        this(directory, DEFAULT_MEMTABLE_SIZE, DEFAULT_TIER_WIDTH);
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed, flushing the memtable every
+     * {@code memtableLimit} entries and merging {@code tierWidth} segments of a tier at a time.
+     */
+    public LsmUTXOStore(File directory, int memtableLimit, int tierWidth) throws IOException {
+        open(directory, memtableLimit, tierWidth);
+        int count = 0;
+        Iterator<Map.Entry<UTXO, Transaction.Output>> it = liveEntries(segments);
+        while (it.hasNext()) {
+            it.next();
+            ++count;
+        }
+        size = count;
+    }
+
+    private LsmUTXOStore() {
+    }
+
+    private void open(File directory, int memtableLimit, int tierWidth) throws IOException {
+        if (memtableLimit <= 0 || tierWidth < 2) {
+            throw new IllegalArgumentException("memtableLimit must be positive and tierWidth "
+                    + "at least 2");
+        }
+        this.directory = directory;
+        this.memtableLimit = memtableLimit;
+        this.tierWidth = tierWidth;
+        this.memtable = newMemtable();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        List<LsmSegment> found = new ArrayList<LsmSegment>();
+        File[] files = directory.listFiles();
+        try {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_PREFIX)) {
+                    continue;
+                }
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    // Left over from an interrupted flush or compaction
+                    file.delete();
+                    continue;
+                }
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                found.add(LsmSegment.open(file, id));
+                nextId = Math.max(nextId, id + 1);
+            }
+        } catch (IOException e) {
+            for (LsmSegment segment : found) {
+                segment.release();
+            }
+            throw e;
+        }
+
+        // A compaction that died before deleting its inputs leaves segments whose flushes are
+        // all covered by its output
+        List<LsmSegment> live = new ArrayList<LsmSegment>();
+        for (LsmSegment segment : found) {
+            boolean covered = false;
+            for (LsmSegment other : found) {
+                if (other != segment && other.getMinSeq() <= segment.getMinSeq()
+                        && other.getMaxSeq() >= segment.getMaxSeq()
+                        && other.getMaxSeq() - other.getMinSeq()
+                        > segment.getMaxSeq() - segment.getMinSeq()) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (covered) {
+                segment.retire();
+            } else {
+                live.add(segment);
+            }
+        }
+        Collections.sort(live, new Comparator<LsmSegment>() {
+            @Override
+            public int compare(LsmSegment a, LsmSegment b) {
+                return Long.compare(b.getMaxSeq(), a.getMaxSeq());
+            }
+        });
+        for (LsmSegment segment : live) {
+            nextId = Math.max(nextId, segment.getMaxSeq() + 1);
+        }
+        segments = Collections.unmodifiableList(live);
+    }
+
+    /**
+     * @return an independent store in a new directory next to this one, deleted when the copy is
+     *         closed; segment files are shared through hard links where the file system allows
+     */
+    public LsmUTXOStore copy() {
+        LsmUTXOStore copy = new LsmUTXOStore();
+        try {
+            File parent = directory.getAbsoluteFile().getParentFile();
+            File target = Files.createTempDirectory(parent.toPath(),
+                    directory.getName() + "-copy").toFile();
+            ConcurrentSkipListMap<UTXO, Transaction.Output> entries = newMemtable();
+            synchronized (this) {
+                synchronized (segmentsLock) {
+                    for (LsmSegment segment : segments) {
+                        File link = new File(target, segment.getFile().getName());
+                        try {
+                            Files.createLink(link.toPath(), segment.getFile().toPath());
+                        } catch (UnsupportedOperationException e) {
+                            Files.copy(segment.getFile().toPath(), link.toPath());
+                        } catch (IOException e) {
+                            Files.copy(segment.getFile().toPath(), link.toPath());
+                        }
+                    }
+                }
+                if (flushing != null) {
+                    entries.putAll(flushing);
+                }
+                entries.putAll(memtable);
+                copy.open(target, memtableLimit, tierWidth);
+                copy.size = size;
+            }
+            copy.memtable = entries;
+            copy.memtableEntries = entries.size();
+            copy.deleteOnClose = true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to copy " + directory, e);
+        }
+        return copy;
+    }
+
+    /** @return the previous output mapped to {@code utxo}, or null */
+    public synchronized Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        Transaction.Output previous = get(utxo);
+        if (memtable.put(utxo, txOut) == null) {
+            ++memtableEntries;
+        }
+        if (previous == null) {
+            ++size;
+        }
+        flushIfFull();
+        return previous;
+    }
+
+    /** @return the output that was mapped to {@code utxo}, or null */
+    public synchronized Transaction.Output remove(UTXO utxo) {
+        Transaction.Output previous = get(utxo);
+        if (previous == null) {
+            return null;
+        }
+        if (mightBeOnDisk(utxo)) {
+            if (memtable.put(utxo, TOMBSTONE) == null) {
+                ++memtableEntries;
+            }
+        } else if (memtable.remove(utxo) != null) {
+            // Created since the last flush: no older version needs hiding
+            --memtableEntries;
+        }
+        --size;
+        flushIfFull();
+        return previous;
+    }
+
+    /** @return the output mapped to {@code utxo}, or null */
+    public Transaction.Output get(UTXO utxo) {
+        Transaction.Output txOut = memtable.get(utxo);
+        if (txOut == null) {
+            ConcurrentSkipListMap<UTXO, Transaction.Output> frozen = flushing;
+            if (frozen != null) {
+                txOut = frozen.get(utxo);
+            }
+        }
+        if (txOut == null) {
+            txOut = getFromSegments(utxo);
+        }
+        return txOut == TOMBSTONE ? null : txOut;
+    }
+
+    public boolean contains(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    /**
+     * @return the outputs of the UTXOs of {@code utxos} that are in the store. The UTXOs are
+     *         looked up in key order, segment by segment, so each block is read once per batch.
+     */
+    public Map<UTXO, Transaction.Output> getAll(Collection<UTXO> utxos) {
+        Map<UTXO, Transaction.Output> found = new HashMap<UTXO, Transaction.Output>(
+                utxos.size() * 2);
+        // Same order as get(): a flush swapping the memtable in between leaves the entries in
+        // the frozen one, and the segment list is read after both
+        ConcurrentSkipListMap<UTXO, Transaction.Output> active = memtable;
+        ConcurrentSkipListMap<UTXO, Transaction.Output> frozen = flushing;
+        List<UTXO> pending = new ArrayList<UTXO>(utxos.size());
+        for (UTXO utxo : new HashSet<UTXO>(utxos)) {
+            Transaction.Output txOut = active.get(utxo);
+            if (txOut == null && frozen != null) {
+                txOut = frozen.get(utxo);
+            }
+            if (txOut != null) {
+                found.put(utxo, txOut);
+            } else {
+                pending.add(utxo);
+            }
+        }
+        Collections.sort(pending, UTXO.HASH_ORDER);
+
+        Map<UTXO, Transaction.Output> onDisk = new HashMap<UTXO, Transaction.Output>();
+        retry:
+        while (true) {
+            onDisk.clear();
+            List<UTXO> remaining = pending;
+            for (LsmSegment segment : segments) {
+                if (remaining.isEmpty()) {
+                    break;
+                }
+                if (!segment.acquire()) {
+                    // Replaced by a compaction since the list was read
+                    continue retry;
+                }
+                try {
+                    segment.getAll(remaining, onDisk);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to read " + segment.getFile(), e);
+                } finally {
+                    segment.release();
+                }
+                List<UTXO> unresolved = new ArrayList<UTXO>(remaining.size());
+                for (UTXO utxo : remaining) {
+                    if (!onDisk.containsKey(utxo)) {
+                        unresolved.add(utxo);
+                    }
+                }
+                remaining = unresolved;
+            }
+            break;
+        }
+        found.putAll(onDisk);
+
+        Iterator<Transaction.Output> it = found.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() == TOMBSTONE) {
+                it.remove();
+            }
+        }
+        return found;
+    }
+
+    /** @return true if every UTXO of {@code utxos} is in the store */
+    public boolean containsAll(Collection<UTXO> utxos) {
+        return getAll(utxos).size() == new HashSet<UTXO>(utxos).size();
+    }
+
+    /** Adds every mapping of {@code entries} */
+    public synchronized void putAll(Map<UTXO, Transaction.Output> entries) {
+        for (Map.Entry<UTXO, Transaction.Output> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** Removes every UTXO of {@code utxos} */
+    public synchronized void removeAll(Collection<UTXO> utxos) {
+        for (UTXO utxo : utxos) {
+            remove(utxo);
+        }
+    }
+
+    /** @return the number of UTXOs in the store */
+    public int size() {
+        return size;
+    }
+
+    /** @return all UTXOs in the store, in {@link UTXO#HASH_ORDER} */
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        while (true) {
+            List<LsmSegment> current;
+            ConcurrentSkipListMap<UTXO, Transaction.Output> frozen;
+            ConcurrentSkipListMap<UTXO, Transaction.Output> active;
+            synchronized (segmentsLock) {
+                current = segments;
+                frozen = flushing;
+                active = memtable;
+            }
+            if (!acquireAll(current)) {
+                continue;
+            }
+            try {
+                List<Iterator<Map.Entry<UTXO, Transaction.Output>>> sources =
+                        new ArrayList<Iterator<Map.Entry<UTXO, Transaction.Output>>>();
+                sources.add(active.entrySet().iterator());
+                if (frozen != null) {
+                    sources.add(frozen.entrySet().iterator());
+                }
+                for (LsmSegment segment : current) {
+                    sources.add(segment.iterator());
+                }
+                Iterator<Map.Entry<UTXO, Transaction.Output>> it = new MergeIterator(sources);
+                while (it.hasNext()) {
+                    Map.Entry<UTXO, Transaction.Output> entry = it.next();
+                    if (entry.getValue() != TOMBSTONE) {
+                        keys.add(entry.getKey());
+                    }
+                }
+                return keys;
+            } finally {
+                releaseAll(current);
+            }
+        }
+    }
+
+    /** @return the number of segments on disk */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /** Writes the memtable out as a new segment, making the updates so far durable */
+    public synchronized void flush() throws IOException {
+        if (memtableEntries == 0) {
+            return;
+        }
+        ConcurrentSkipListMap<UTXO, Transaction.Output> frozen = memtable;
+        long id;
+        boolean first;
+        synchronized (segmentsLock) {
+            if (closed) {
+                throw new IOException("Store is closed");
+            }
+            flushing = frozen;
+            memtable = newMemtable();
+            id = nextId++;
+            first = segments.isEmpty();
+        }
+        LsmSegment segment;
+        try {
+            segment = LsmSegment.write(segmentFile(id), id, id, id, frozen.entrySet().iterator(),
+                    memtableEntries, first, BLOOM_FALSE_POSITIVE_RATE);
+        } catch (IOException e) {
+            synchronized (segmentsLock) {
+                memtable = frozen;
+                flushing = null;
+            }
+            throw e;
+        }
+        memtableEntries = 0;
+        synchronized (segmentsLock) {
+            List<LsmSegment> updated = new ArrayList<LsmSegment>(segments.size() + 1);
+            updated.add(segment);
+            updated.addAll(segments);
+            segments = Collections.unmodifiableList(updated);
+            flushing = null;
+        }
+        scheduleCompaction();
+    }
+
+    /** Waits until no compaction is running or pending */
+    public void awaitCompaction() throws InterruptedException {
+        synchronized (segmentsLock) {
+            while (compacting) {
+                segmentsLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Flushes the memtable and closes the segment files. A store created by {@link #copy()}
+     * deletes its directory instead.
+     */
+    public synchronized void close() throws IOException {
+        if (!deleteOnClose) {
+            flush();
+        }
+        synchronized (segmentsLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (LsmSegment segment : segments) {
+            if (deleteOnClose) {
+                segment.retire();
+            } else {
+                segment.release();
+            }
+        }
+        if (deleteOnClose && !directory.delete()) {
+            directory.deleteOnExit();
+        }
+    }
+
+    private void flushIfFull() {
+        if (memtableEntries >= memtableLimit) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to flush " + directory, e);
+            }
+        }
+    }
+
+    /** @return true if an older version of {@code utxo} may exist outside the memtable */
+    private boolean mightBeOnDisk(UTXO utxo) {
+        ConcurrentSkipListMap<UTXO, Transaction.Output> frozen = flushing;
+        if (frozen != null && frozen.containsKey(utxo)) {
+            return true;
+        }
+        for (LsmSegment segment : segments) {
+            if (segment.mightContain(utxo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the newest version of {@code utxo} on disk, possibly a tombstone, or null */
+    private Transaction.Output getFromSegments(UTXO utxo) {
+        retry:
+        while (true) {
+            for (LsmSegment segment : segments) {
+                if (!segment.mightContain(utxo)) {
+                    continue;
+                }
+                if (!segment.acquire()) {
+                    // Replaced by a compaction since the list was read
+                    continue retry;
+                }
+                try {
+                    Transaction.Output txOut = segment.get(utxo);
+                    if (txOut != null) {
+                        return txOut;
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to read " + segment.getFile(), e);
+                } finally {
+                    segment.release();
+                }
+            }
+            return null;
+        }
+    }
+
+    private void scheduleCompaction() {
+        synchronized (segmentsLock) {
+            if (compacting || closed || pickCompaction(segments) == null) {
+                return;
+            }
+            compacting = true;
+        }
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (compactOnce()) {
+                        // Merging may complete a run of the next tier
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (segmentsLock) {
+                        compacting = false;
+                        segmentsLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /** Merges one run of same-tier segments; returns false if there was none */
+    private boolean compactOnce() throws IOException {
+        List<LsmSegment> group;
+        boolean oldest;
+        long id;
+        synchronized (segmentsLock) {
+            group = closed ? null : pickCompaction(segments);
+            if (group == null) {
+                return false;
+            }
+            // Only compactions remove segments, so nothing older can appear meanwhile
+            oldest = group.get(group.size() - 1) == segments.get(segments.size() - 1);
+            id = nextId++;
+        }
+
+        long minSeq = Long.MAX_VALUE;
+        long maxSeq = Long.MIN_VALUE;
+        long entries = 0;
+        List<Iterator<Map.Entry<UTXO, Transaction.Output>>> sources =
+                new ArrayList<Iterator<Map.Entry<UTXO, Transaction.Output>>>();
+        for (LsmSegment segment : group) {
+            minSeq = Math.min(minSeq, segment.getMinSeq());
+            maxSeq = Math.max(maxSeq, segment.getMaxSeq());
+            entries += segment.getEntryCount();
+            sources.add(segment.iterator());
+        }
+        LsmSegment merged = LsmSegment.write(segmentFile(id), id, minSeq, maxSeq,
+                new MergeIterator(sources), (int) Math.min(entries, Integer.MAX_VALUE), oldest,
+                BLOOM_FALSE_POSITIVE_RATE);
+
+        synchronized (segmentsLock) {
+            List<LsmSegment> updated = new ArrayList<LsmSegment>(segments);
+            int from = updated.indexOf(group.get(0));
+            updated.subList(from, from + group.size()).clear();
+            updated.add(from, merged);
+            segments = Collections.unmodifiableList(updated);
+        }
+        for (LsmSegment segment : group) {
+            segment.retire();
+        }
+        return true;
+    }
+
+    /** @return the first run of at least {@code tierWidth} adjacent same-tier segments, or null */
+    private List<LsmSegment> pickCompaction(List<LsmSegment> current) {
+        int start = 0;
+        for (int i = 1; i <= current.size(); ++i) {
+            if (i == current.size() || tier(current.get(i)) != tier(current.get(start))) {
+                if (i - start >= tierWidth) {
+                    return new ArrayList<LsmSegment>(current.subList(start, i));
+                }
+                start = i;
+            }
+        }
+        return null;
+    }
+
+    /** @return the tier of {@code segment}: each tier holds segments {@code tierWidth} times larger */
+    private int tier(LsmSegment segment) {
+        int tier = 0;
+        long capacity = memtableLimit;
+        while (segment.getEntryCount() > capacity) {
+            capacity *= tierWidth;
+            ++tier;
+        }
+        return tier;
+    }
+
+    /** @return the live entries of {@code current}, which must not change meanwhile */
+    private Iterator<Map.Entry<UTXO, Transaction.Output>> liveEntries(List<LsmSegment> current) {
+        List<Iterator<Map.Entry<UTXO, Transaction.Output>>> sources =
+                new ArrayList<Iterator<Map.Entry<UTXO, Transaction.Output>>>();
+        for (LsmSegment segment : current) {
+            sources.add(segment.iterator());
+        }
+        final Iterator<Map.Entry<UTXO, Transaction.Output>> merged = new MergeIterator(sources);
+        return new Iterator<Map.Entry<UTXO, Transaction.Output>>() {
+            private Map.Entry<UTXO, Transaction.Output> next = advance();
+
+            private Map.Entry<UTXO, Transaction.Output> advance() {
+                while (merged.hasNext()) {
+                    Map.Entry<UTXO, Transaction.Output> entry = merged.next();
+                    if (entry.getValue() != TOMBSTONE) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<UTXO, Transaction.Output> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<UTXO, Transaction.Output> entry = next;
+                next = advance();
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private boolean acquireAll(List<LsmSegment> current) {
+        for (int i = 0; i < current.size(); ++i) {
+            if (!current.get(i).acquire()) {
+                releaseAll(current.subList(0, i));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseAll(List<LsmSegment> current) {
+        for (LsmSegment segment : current) {
+            segment.release();
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static ConcurrentSkipListMap<UTXO, Transaction.Output> newMemtable() {
+        return new ConcurrentSkipListMap<UTXO, Transaction.Output>(UTXO.HASH_ORDER);
+    }
+
+    /**
+     * Merges sorted sources, given newest first, into one sorted sequence; when several sources
+     * hold the same UTXO only the newest version is returned.
+     */
+    private static class MergeIterator implements Iterator<Map.Entry<UTXO, Transaction.Output>> {
+
+        private static class Head {
+            final Iterator<Map.Entry<UTXO, Transaction.Output>> source;
+            final int rank;
+            Map.Entry<UTXO, Transaction.Output> entry;
+
+            Head(Iterator<Map.Entry<UTXO, Transaction.Output>> source, int rank) {
+                this.source = source;
+                this.rank = rank;
+            }
+        }
+
+        private PriorityQueue<Head> heads;
+
+        MergeIterator(List<Iterator<Map.Entry<UTXO, Transaction.Output>>> sources) {
+            heads = new PriorityQueue<Head>(Math.max(sources.size(), 1), new Comparator<Head>() {
+                @Override
+                public int compare(Head a, Head b) {
+                    int cmp = UTXO.HASH_ORDER.compare(a.entry.getKey(), b.entry.getKey());
+                    return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+                }
+            });
+            for (int i = 0; i < sources.size(); ++i) {
+                advance(new Head(sources.get(i), i));
+            }
+        }
+
+        private void advance(Head head) {
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                heads.add(head);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<UTXO, Transaction.Output> next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<UTXO, Transaction.Output> entry = head.entry;
+            while (!heads.isEmpty()
+                    && UTXO.HASH_ORDER.compare(heads.peek().entry.getKey(), entry.getKey()) == 0) {
+                advance(heads.poll());
+            }
+            advance(head);
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
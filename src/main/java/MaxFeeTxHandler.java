@@ -1,12 +1,23 @@
-
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
-public class MaxFeeTxHandler {
+public class MaxFeeTxHandler implements EpochHandler, Closeable {
     private UTXOPool pool;
+    private EpochHistory history;
+    private AdmissionControl admission;
+    private AdmissionControl.Result lastAdmission;
+    private MerkleTree merkleTree = new MerkleTree();
+
+    /** Minimum number of transactions validated by one task of {@link #handleTxsParallel} */
+    private static final int PARALLEL_BATCH_SIZE = 64;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -15,6 +26,17 @@ public class MaxFeeTxHandler {
      */
     public MaxFeeTxHandler(UTXOPool utxoPool) {
         pool = new UTXOPool(utxoPool);
+        history = new EpochHistory(EpochHistory.DEFAULT_DEPTH);
+    }
+
+    /**
+     * Creates a public ledger that takes ownership of {@code store}, which may already hold UTXOs,
+     * and applies every epoch to it directly instead of to a copy. This is how a disk-backed store
+     * keeps its durable state in its own directory; {@link #close()} closes it.
+     */
+    public MaxFeeTxHandler(UTXOStore store) {
+        pool = new UTXOPool(store);
+        history = new EpochHistory(EpochHistory.DEFAULT_DEPTH);
     }
 
     /**
@@ -27,75 +49,195 @@ public class MaxFeeTxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        // Check if all outputs claimed by {@code tx} are in the current UTXO pool
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (!pool.contains(utxo)) {
-                return false;
-            }
-        }
+        return TxValidator.isValidTx(tx, pool);
+    }
 
-        // Check if the signatures on each input of {@code tx} are valid
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            byte[] data = tx.getRawDataToSign(i);
-            Transaction.Input in = tx.getInput(i);
-            if (in.signature == null) {
-                return false;
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
+     * transaction for correctness, returning a mutually valid array of accepted transactions, and
+     * updating the current UTXO pool as appropriate.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        return handleTxs(admit(possibleTxs, null), null, false);
+    }
+
+    /**
+     * Handles an epoch made of the pending transactions of {@code mempool}, which are already
+     * ordered by fee so no sorting is needed, then removes the accepted transactions and the ones
+     * conflicting with them from {@code mempool}.
+     */
+    public Transaction[] handleTxs(Mempool mempool) {
+        Transaction[] accepted = handleTxs(admit(mempool.candidates(), null), null, true);
+        mempool.removeConfirmed(accepted);
+        return accepted;
+    }
+
+    /**
+     * Handles an epoch like {@link #handleTxs(Transaction[])}, but the accepted transactions take
+     * at most {@code capacityBytes} bytes of {@code getRawTx()} in total. They are chosen by
+     * {@link CapacitySelector} and returned by decreasing fee per byte.
+     */
+    public Transaction[] handleTxs(Transaction[] proposedTxs, long capacityBytes) {
+        Transaction[] possibleTxs = admit(proposedTxs, null);
+        EpochTrace.Epoch trace = EpochTrace.beginEpoch("MaxFeeTxHandler", possibleTxs.length);
+        pool.beginUndoRecord();
+        merkleTree = new MerkleTree();
+        pool.prefetchInputs(possibleTxs, null);
+
+        ArrayList<Transaction> valid = new ArrayList<Transaction>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            if (TxValidator.isValidTx(possibleTxs[i], pool)) {
+                valid.add(possibleTxs[i]);
             }
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(out.address, data, in.signature)) {
-                return false;
+        }
+        UTXO[][] inputs = new UTXO[valid.size()][];
+        double[] fees = new double[valid.size()];
+        int[] sizes = new int[valid.size()];
+        for (int k = 0; k < valid.size(); ++k) {
+            Transaction tx = valid.get(k);
+            inputs[k] = new UTXO[tx.numInputs()];
+            for (int i = 0; i < tx.numInputs(); ++i) {
+                Transaction.Input in = tx.getInput(i);
+                inputs[k][i] = new UTXO(in.prevTxHash, in.outputIndex);
             }
+            fees[k] = transactionFee(tx);
+            sizes[k] = tx.getRawSize();
         }
+        long sort = EpochTrace.start();
+        int[] chosen = CapacitySelector.select(inputs, fees, sizes, capacityBytes);
+        EpochTrace.end(EpochTrace.Phase.SORT, sort);
 
-        // No UTXO is claimed multiple times by {@code tx}
-        Set<Integer> hashCodes = new HashSet<Integer>();
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (hashCodes.contains(utxo.hashCode())) {
-                return false;
-            }
-            hashCodes.add(utxo.hashCode());
+        Transaction[] accepted = new Transaction[chosen.length];
+        for (int k = 0; k < chosen.length; ++k) {
+            accepted[k] = valid.get(chosen[k]);
+            acceptTransaction(accepted[k]);
         }
+        history.push(pool.endUndoRecord());
+        pool.releasePrefetch();
+        pool.flush();
+        EpochTrace.endEpoch(trace, accepted.length);
+        return accepted;
+    }
 
-        // All of {@code tx}s output values are non-negative
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            Transaction.Output out = tx.getOutput(i);
-            if (out.value < 0) {
-                return false;
+    /**
+     * Handles an epoch like {@link #handleTxs(Transaction[])}, but ranks the transactions by fee
+     * per byte of {@code getRawTx()} and stops at the first one reached after
+     * {@code System.nanoTime()} passes {@code deadlineNanos}, so the most profitable work is done
+     * first. Ranking only resolves inputs; signatures are verified in rank order. The
+     * transactions selected until then are committed as a regular epoch and the rest are
+     * reported as deferred without touching the pool.
+     */
+    public PartialEpochResult handleTxsUntil(Transaction[] proposedTxs, long deadlineNanos) {
+        Transaction[] possibleTxs = admit(proposedTxs, null);
+        EpochTrace.Epoch trace = EpochTrace.beginEpoch("MaxFeeTxHandler", possibleTxs.length);
+        pool.beginUndoRecord();
+        merkleTree = new MerkleTree();
+        pool.prefetchInputs(possibleTxs, null);
+
+        // Transactions spending outputs that are not in the pool can never be valid, so they are
+        // rejected before ranking
+        final double[] feeRates = new double[possibleTxs.length];
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            Transaction.Output[] resolved = TxValidator.resolveInputs(possibleTxs[i], pool);
+            if (resolved != null) {
+                double fee = TxValidator.inputSum(resolved) - TxValidator.outputSum(possibleTxs[i]);
+                feeRates[i] = Math.max(fee, 0) / Math.max(possibleTxs[i].getRawSize(), 1);
+                order.add(i);
             }
         }
+        // Stable sort, so equal fee rates keep their original order
+        long sort = EpochTrace.start();
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(feeRates[i2], feeRates[i1]);
+            }
+        });
+        EpochTrace.end(EpochTrace.Phase.SORT, sort);
 
-        // the sum of {@code tx}s input values is greater than or equal to the
-        // sum of its output values; and false otherwise.
-        double outputSum = 0;
-        double inputSum = 0;
-        for (int i = 0; i < tx.numOutputs(); ++i) {
-            Transaction.Output out = tx.getOutput(i);
-            outputSum += out.value;
-        }
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            inputSum += out.value;
+        // Everything is validated against the pool as it was at the start of the epoch, and the
+        // selection is only committed once the loop is over
+        ArrayList<Transaction> transactions = new ArrayList<Transaction>();
+        ArrayList<Transaction> deferred = new ArrayList<Transaction>();
+        Set<UTXO> utxos = new HashSet<UTXO>();
+        for (int k = 0; k < order.size(); ++k) {
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                for (int i : order.subList(k, order.size())) {
+                    deferred.add(possibleTxs[i]);
+                }
+                break;
+            }
+            Transaction tx = possibleTxs[order.get(k)];
+            if (!containDuplicateUTXOs(utxos, tx) && TxValidator.isValidTx(tx, pool)) {
+                transactions.add(tx);
+                insertUTXOs(utxos, tx);
+            }
         }
-        if (inputSum < outputSum) {
-            return false;
+        for (Transaction tx : transactions) {
+            acceptTransaction(tx);
         }
 
-        return true;
+        Transaction[] accepted = transactions.toArray(new Transaction[transactions.size()]);
+        history.push(pool.endUndoRecord());
+        pool.releasePrefetch();
+        pool.flush();
+        EpochTrace.endEpoch(trace, accepted.length);
+        return new PartialEpochResult(accepted, deferred.toArray(new Transaction[deferred.size()]));
+    }
+
+    /** @return an empty {@code BlockTemplate} over the current UTXO pool */
+    public BlockTemplate newBlockTemplate() {
+        return new BlockTemplate(pool);
     }
 
     /**
-     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
-     * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * Handles an epoch made of the transactions selected by {@code template}, which were
+     * validated and freed of conflicts as they were added, so only their inputs are checked
+     * again; then removes the accepted transactions and the ones conflicting with them from
+     * {@code template}.
      */
-    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+    public Transaction[] handleTxs(BlockTemplate template) {
+        Transaction[] selected = template.getSelected();
+        EpochTrace.Epoch trace = EpochTrace.beginEpoch("MaxFeeTxHandler", selected.length);
+        pool.beginUndoRecord();
+        merkleTree = new MerkleTree();
+        ArrayList<Transaction> transactions = new ArrayList<Transaction>();
+        for (Transaction tx : selected) {
+            if (inputsUnspent(tx)) {
+                transactions.add(tx);
+                acceptTransaction(tx);
+            }
+        }
+        Transaction[] accepted = transactions.toArray(new Transaction[transactions.size()]);
+        history.push(pool.endUndoRecord());
+        pool.flush();
+        EpochTrace.endEpoch(trace, accepted.length);
+        template.removeConfirmed(accepted);
+        return accepted;
+    }
+
+    /**
+     * Handles {@code epochs} one after the other like {@link #handleTxs(Transaction[])}, but
+     * verifies the signatures of each epoch on {@code executor} while the previous one commits.
+     *
+     * @return the accepted transactions of each epoch
+     */
+    public Transaction[][] handleEpochs(Transaction[][] epochs, ExecutorService executor) {
+        return EpochPipeline.run(epochs, pool, executor, new EpochPipeline.EpochCommitter() {
+            @Override
+            public Transaction[] commit(Transaction[] possibleTxs, PrevalidatedTx[] prevalidated) {
+                return handleTxs(possibleTxs, prevalidated, false);
+            }
+        });
+    }
+
+    private Transaction[] handleTxs(Transaction[] possibleTxs, PrevalidatedTx[] prevalidated,
+                                    boolean sortedByFee) {
+        EpochTrace.Epoch trace = EpochTrace.beginEpoch("MaxFeeTxHandler", possibleTxs.length);
+        pool.beginUndoRecord();
+        merkleTree = new MerkleTree();
+        pool.prefetchInputs(possibleTxs, null);
         ArrayList<Transaction> transactions = new ArrayList<Transaction>();
 
         // We use an approximation algorithm for multidimensional knapsack
@@ -108,7 +250,8 @@ public class MaxFeeTxHandler {
         ArrayList<Transaction> _txs = new ArrayList<Transaction>();
         // Filter non valid transactions
         for (int i = 0; i < possibleTxs.length; ++i) {
-            if (isValidTx(possibleTxs[i])) {
+            PrevalidatedTx pre = prevalidated == null ? null : prevalidated[i];
+            if (TxValidator.isValidTx(possibleTxs[i], pool, pre)) {
                 _txs.add(possibleTxs[i]);
             }
         }
@@ -132,7 +275,11 @@ public class MaxFeeTxHandler {
                 }
             }
         };
-        Arrays.sort(txs, transactionComparator);
+        if (!sortedByFee) {
+            long sort = EpochTrace.start();
+            Arrays.sort(txs, transactionComparator);
+            EpochTrace.end(EpochTrace.Phase.SORT, sort);
+        }
 
         Set<UTXO> utxos = new HashSet<UTXO>();
 
@@ -148,11 +295,194 @@ public class MaxFeeTxHandler {
         for (int i = 0; i < transactions.size(); ++i) {
             _transactions[i] = transactions.get(i);
         }
+        history.push(pool.endUndoRecord());
+        pool.releasePrefetch();
+        pool.flush();
+        EpochTrace.endEpoch(trace, _transactions.length);
         return _transactions;
     }
 
+    /**
+     * Same as {@link #handleTxs(Transaction[])}, but splits {@code possibleTxs} into components of
+     * transactions touching the same outpoints and selects the transactions of each component on
+     * {@code executor}. Since conflicts never cross components, running the fee-ordered selection
+     * per component and merging by fee gives the same result as {@link #handleTxs(Transaction[])}.
+     */
+    public Transaction[] handleTxsParallel(Transaction[] proposedTxs, ExecutorService executor) {
+        final Transaction[] possibleTxs = admit(proposedTxs, executor);
+        EpochTrace.Epoch trace = EpochTrace.beginEpoch("MaxFeeTxHandler", possibleTxs.length);
+        pool.beginUndoRecord();
+        merkleTree = new MerkleTree();
+        pool.prefetchInputs(possibleTxs, executor);
+
+        List<int[]> components = ConflictPartitioner.partition(possibleTxs);
+        final boolean[] selected = new boolean[possibleTxs.length];
+        final double[] fees = new double[possibleTxs.length];
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        int from = 0;
+        int batchSize = 0;
+        for (int c = 0; c < components.size(); ++c) {
+            batchSize += components.get(c).length;
+            if (batchSize >= PARALLEL_BATCH_SIZE || c == components.size() - 1) {
+                final List<int[]> batch = components.subList(from, c + 1);
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int[] component : batch) {
+                            selectComponent(possibleTxs, component, fees, selected);
+                        }
+                    }
+                });
+                from = c + 1;
+                batchSize = 0;
+            }
+        }
+        ParallelTasks.runAll(tasks, executor);
+
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            if (selected[i]) {
+                order.add(i);
+            }
+        }
+        long sort = EpochTrace.start();
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                int byFee = Double.compare(fees[i2], fees[i1]);
+                return byFee != 0 ? byFee : Integer.compare(i1, i2);
+            }
+        });
+        EpochTrace.end(EpochTrace.Phase.SORT, sort);
+        Transaction[] transactions = new Transaction[order.size()];
+        for (int i = 0; i < order.size(); ++i) {
+            transactions[i] = possibleTxs[order.get(i)];
+            acceptTransaction(transactions[i]);
+        }
+        history.push(pool.endUndoRecord());
+        pool.releasePrefetch();
+        pool.flush();
+        EpochTrace.endEpoch(trace, transactions.length);
+        return transactions;
+    }
+
+    /**
+     * Runs the fee-ordered selection of {@link #handleTxs(Transaction[])} on the transactions of
+     * {@code component}, marking the chosen ones in {@code selected}. The pool is only read.
+     */
+    private void selectComponent(Transaction[] possibleTxs, int[] component, final double[] fees,
+                                 boolean[] selected) {
+        ArrayList<Integer> valid = new ArrayList<Integer>();
+        for (int i : component) {
+            if (isValidTx(possibleTxs[i])) {
+                fees[i] = transactionFee(possibleTxs[i]);
+                valid.add(i);
+            }
+        }
+        // Stable sort, so equal fees keep their original order
+        Collections.sort(valid, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(fees[i2], fees[i1]);
+            }
+        });
+        Set<UTXO> utxos = new HashSet<UTXO>();
+        for (int i : valid) {
+            if (!containDuplicateUTXOs(utxos, possibleTxs[i])) {
+                insertUTXOs(utxos, possibleTxs[i]);
+                selected[i] = true;
+            }
+        }
+    }
+
+    /**
+     * Runs every epoch given to {@link #handleTxs(Transaction[])} and
+     * {@link #handleTxsParallel(Transaction[], ExecutorService)} through {@code admission} first,
+     * or disables admission control if it is null.
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+        this.lastAdmission = null;
+    }
+
+    /** @return the admission outcome of the last epoch, or null if admission control is off */
+    public AdmissionControl.Result getLastAdmission() {
+        return lastAdmission;
+    }
+
+    /**
+     * Hashes {@code possibleTxs}, on {@code executor} if not null, then runs them through
+     * admission control, which reuses the hashes
+     */
+    private Transaction[] admit(Transaction[] possibleTxs, ExecutorService executor) {
+        TxHasher.hashAll(possibleTxs, executor);
+        if (admission == null) {
+            return possibleTxs;
+        }
+        lastAdmission = admission.admit(possibleTxs, pool);
+        return lastAdmission.getAdmitted();
+    }
+
+    /**
+     * @return the Merkle tree over the transactions accepted by the last epoch, in the order they
+     *         were returned
+     */
+    public MerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    /** @return a read-only view of the current UTXO pool */
+    public UTXOLookup getUTXOLookup() {
+        return pool;
+    }
+
+    /**
+     * Keeps a {@code UTXOSetCommitment} to the UTXO pool up to date across epochs and rollbacks,
+     * so that {@link #getUTXOCommitment()} costs nothing.
+     */
+    public void enableUTXOCommitment() {
+        pool.enableCommitment();
+    }
+
+    /**
+     * @return the 32-byte commitment to the UTXO pool after the last epoch, or null if
+     *         {@link #enableUTXOCommitment()} was not called
+     */
+    public byte[] getUTXOCommitment() {
+        return pool.getCommitment();
+    }
+
+    /**
+     * Reverts the most recent epoch handled by {@link #handleTxs(Transaction[])}, restoring the
+     * outputs it spent and removing the ones it created.
+     *
+     * @return true if an epoch was rolled back, false if no undo record is left
+     */
+    public boolean rollbackEpoch() {
+        UndoRecord record = history.pop();
+        if (record == null) {
+            return false;
+        }
+        pool.rollback(record);
+        return true;
+    }
+
+    /** Sets how many epochs can be rolled back with {@link #rollbackEpoch()} */
+    public void setHistoryDepth(int depth) {
+        history.setMaxDepth(depth);
+    }
+
+    /**
+     * Closes the UTXO store of the handler, flushing a disk-backed one, or deleting the temporary
+     * copy of one made by {@link #MaxFeeTxHandler(UTXOPool)}.
+     */
+    public void close() throws IOException {
+        pool.close();
+    }
+
     private void acceptTransaction(Transaction tx) {
-        tx.finalize();
+        long start = EpochTrace.start();
+        merkleTree.add(tx.getHash());
 
         // Remove used coins from UTXO
         for (int i = 0; i < tx.numInputs(); ++i) {
@@ -167,6 +497,7 @@ public class MaxFeeTxHandler {
           UTXO utxo = new UTXO(tx.getHash(), i);
           pool.addUTXO(utxo, out);
         }
+        EpochTrace.end(EpochTrace.Phase.COMMIT, start);
     }
 
     private double transactionFee(Transaction tx) {
@@ -185,6 +516,17 @@ public class MaxFeeTxHandler {
         return Math.max(inputSum - outputSum, 0);
     }
 
+    /** @return true if every input of {@code tx} is still in the pool */
+    private boolean inputsUnspent(Transaction tx) {
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            if (!pool.contains(new UTXO(in.prevTxHash, in.outputIndex))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static boolean containDuplicateUTXOs(Set<UTXO> utxos, Transaction tx) {
         for (int i = 0; i < tx.numInputs(); ++i) {
             Transaction.Input in = tx.getInput(i);
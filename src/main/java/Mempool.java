@@ -0,0 +1,441 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+/**
+ * Bounded set of pending transactions waiting to be handed to a handler. Pending transactions
+ * are indexed by hash, by the outpoints they spend and by fee-rate (fee per serialized byte), and
+ * kept ordered by fee so {@code MaxFeeTxHandler} gets its candidates already sorted. When the
+ * estimated memory use exceeds the cap, the package with the lowest fee-rate is evicted: a
+ * transaction together with its descendants (pending transactions spending its outputs, directly
+ * or not), rated by their total fee over their total size. A cheap parent with a well-paying
+ * child is thus kept as long as the pair pays enough. Package totals are updated along the
+ * ancestors of every transaction added or removed.
+ *
+ * <p>Transactions may spend outputs of the UTXO pool or of other pending transactions. Signatures
+ * are not checked here; that is left to the handler.
+ *
+ * <p>With replace-by-fee enabled, a transaction spending outpoints already spent by pending
+ * transactions replaces them (and their descendants) if it pays at least their total fee plus a
+ * minimum bump. Conflicts are found through the index by spent outpoint, so a replacement costs
+ * time proportional to the number of transactions it affects.
+ */
+public class Mempool {
+
+    /** Estimated bookkeeping bytes per pending transaction, on top of its serialized size */
+    static final int ENTRY_OVERHEAD = 256;
+
+    /** A pending transaction and what the indexes know about it */
+    static class Entry {
+        final Transaction tx;
+        final TxId id;
+        final double fee;
+        final long size;
+        final long seq;
+        /** Total fee and size of the transaction and its pending descendants */
+        double packageFee;
+        long packageSize;
+
+        Entry(Transaction tx, TxId id, double fee, long size, long seq) {
+            this.tx = tx;
+            this.id = id;
+            this.fee = fee;
+            this.size = size;
+            this.seq = seq;
+        }
+
+        double packageFeeRate() {
+            return packageFee / packageSize;
+        }
+    }
+
+    private static final Comparator<Entry> BY_PACKAGE_FEE_RATE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int byRate = Double.compare(e1.packageFeeRate(), e2.packageFeeRate());
+            return byRate != 0 ? byRate : Long.compare(e1.seq, e2.seq);
+        }
+    };
+
+    private static final Comparator<Entry> BY_FEE_DESCENDING = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int byFee = Double.compare(e2.fee, e1.fee);
+            return byFee != 0 ? byFee : Long.compare(e1.seq, e2.seq);
+        }
+    };
+
+    private UTXOLookup pool;
+    private long maxBytes;
+    private long totalBytes;
+    private long nextSeq;
+
+    /** Minimum fee a replacement must add over what it replaces, or negative if RBF is off */
+    private double minFeeBump = -1;
+    private ArrayList<Transaction> lastReplaced = new ArrayList<Transaction>();
+
+    private HashMap<TxId, Entry> byHash;
+    private HashMap<UTXO, Entry> bySpent;
+    private TreeSet<Entry> byPackageFeeRate;
+    private TreeSet<Entry> byFee;
+
+    /**
+     * Creates an empty mempool whose transactions spend outputs of {@code pool}, holding at most
+     * about {@code maxBytes} bytes of pending transactions.
+     */
+    public Mempool(UTXOLookup pool, long maxBytes) {
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+        this.byHash = new HashMap<TxId, Entry>();
+        this.bySpent = new HashMap<UTXO, Entry>();
+        this.byPackageFeeRate = new TreeSet<Entry>(BY_PACKAGE_FEE_RATE);
+        this.byFee = new TreeSet<Entry>(BY_FEE_DESCENDING);
+    }
+
+    /**
+     * Adds {@code tx} to the pending transactions, replacing conflicting pending transactions if
+     * replace-by-fee is enabled and {@code tx} pays enough. The replaced transactions are available
+     * from {@link #getLastReplaced()}.
+     *
+     * @return false if {@code tx} is already pending, malformed, spends an unknown outpoint or one
+     *         already spent by a pending transaction it cannot replace, pays a negative fee, or was
+     *         evicted right away because its fee-rate is too low for the memory cap, in which
+     *         case the transactions it would have replaced stay pending
+     */
+    public boolean add(Transaction tx) {
+        lastReplaced = new ArrayList<Transaction>();
+        tx.finalize();
+        TxId id = TxId.of(tx);
+        if (byHash.containsKey(id) || !TxValidator.isWellFormed(tx)) {
+            return false;
+        }
+        LinkedHashSet<Entry> conflicts = new LinkedHashSet<Entry>();
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            Entry conflict = bySpent.get(new UTXO(in.prevTxHash, in.outputIndex));
+            if (conflict != null) {
+                if (minFeeBump < 0) {
+                    return false;
+                }
+                conflicts.addAll(withDescendants(conflict));
+            }
+        }
+        if (!conflicts.isEmpty() && !replaces(tx, conflicts)) {
+            return false;
+        }
+        unindexAll(conflicts);
+        if (insert(tx, id)) {
+            for (Entry replaced : conflicts) {
+                lastReplaced.add(replaced.tx);
+            }
+            return true;
+        }
+        restore(conflicts);
+        return false;
+    }
+
+    /**
+     * Puts back the transactions a replacement removed after the memory cap evicted the
+     * replacement itself. Parents are restored before their children; a transaction whose parent
+     * the cap evicted in the meantime stays out, as it would have been evicted with it.
+     */
+    private void restore(LinkedHashSet<Entry> replaced) {
+        ArrayList<Entry> bySeq = new ArrayList<Entry>(replaced);
+        Collections.sort(bySeq, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e1.seq, e2.seq);
+            }
+        });
+        for (Entry entry : bySeq) {
+            if (!Double.isNaN(fee(entry.tx))) {
+                index(entry);
+            }
+        }
+    }
+
+    /**
+     * Enables replace-by-fee: a replacement must pay at least {@code minFeeBump} more than the
+     * total fee of the transactions it evicts.
+     */
+    public void enableReplaceByFee(double minFeeBump) {
+        if (minFeeBump < 0) {
+            throw new IllegalArgumentException("minFeeBump must be non-negative");
+        }
+        this.minFeeBump = minFeeBump;
+    }
+
+    /** Disables replace-by-fee: transactions conflicting with pending ones are refused */
+    public void disableReplaceByFee() {
+        this.minFeeBump = -1;
+    }
+
+    /** @return the transactions replaced by the last call to {@link #add(Transaction)} */
+    public ArrayList<Transaction> getLastReplaced() {
+        return lastReplaced;
+    }
+
+    /**
+     * @return true if {@code tx} may evict {@code conflicts}: it must not spend outputs of the
+     *         transactions it evicts, and must outbid them by the minimum fee bump
+     */
+    private boolean replaces(Transaction tx, LinkedHashSet<Entry> conflicts) {
+        double replacedFees = 0;
+        for (Entry conflict : conflicts) {
+            replacedFees += conflict.fee;
+        }
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Entry parent = byHash.get(new TxId(tx.getInput(i).prevTxHash));
+            if (parent != null && conflicts.contains(parent)) {
+                return false;
+            }
+        }
+        double fee = fee(tx);
+        return !Double.isNaN(fee) && fee >= replacedFees + minFeeBump;
+    }
+
+    /**
+     * Indexes {@code tx}, whose inputs are known not to conflict with any pending transaction,
+     * and enforces the memory cap.
+     */
+    private boolean insert(Transaction tx, TxId id) {
+        double fee = fee(tx);
+        if (Double.isNaN(fee) || fee < 0) {
+            return false;
+        }
+        Entry entry = new Entry(tx, id, fee, serializedSize(tx) + ENTRY_OVERHEAD, nextSeq++);
+        index(entry);
+
+        while (totalBytes > maxBytes && !byPackageFeeRate.isEmpty()) {
+            removeWithDescendants(byPackageFeeRate.first());
+        }
+        return byHash.containsKey(id);
+    }
+
+    /**
+     * Removes the pending transaction with hash {@code id} and every pending transaction that
+     * depends on it.
+     *
+     * @return the removed transactions, empty if {@code id} was not pending
+     */
+    public ArrayList<Transaction> remove(TxId id) {
+        Entry entry = byHash.get(id);
+        if (entry == null) {
+            return new ArrayList<Transaction>();
+        }
+        return removeWithDescendants(entry);
+    }
+
+    /**
+     * Updates the mempool after {@code accepted} was committed to the pool: accepted transactions
+     * leave the mempool (their pending children stay), and pending transactions spending the same
+     * outpoints as an accepted one are removed with their descendants.
+     */
+    public void removeConfirmed(Transaction[] accepted) {
+        for (int k = 0; k < accepted.length; ++k) {
+            Transaction tx = accepted[k];
+            Entry confirmed = byHash.get(TxId.of(tx));
+            if (confirmed != null) {
+                // Its children stay pending but no longer count in the packages of its ancestors
+                LinkedHashSet<Entry> ancestors = ancestors(confirmed);
+                unindex(confirmed);
+                for (Entry ancestor : ancestors) {
+                    recomputePackage(ancestor);
+                }
+            }
+            for (int i = 0; i < tx.numInputs(); ++i) {
+                Transaction.Input in = tx.getInput(i);
+                Entry conflict = bySpent.get(new UTXO(in.prevTxHash, in.outputIndex));
+                if (conflict != null) {
+                    removeWithDescendants(conflict);
+                }
+            }
+        }
+    }
+
+    /** @return the pending transactions ordered by decreasing fee, then by arrival */
+    public Transaction[] candidates() {
+        Transaction[] txs = new Transaction[byFee.size()];
+        int i = 0;
+        for (Entry entry : byFee) {
+            txs[i++] = entry.tx;
+        }
+        return txs;
+    }
+
+    /** @return the pending transaction with hash {@code id}, or null */
+    public Transaction get(TxId id) {
+        Entry entry = byHash.get(id);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** @return true if a transaction with hash {@code id} is pending */
+    public boolean contains(TxId id) {
+        return byHash.containsKey(id);
+    }
+
+    /** @return the pending transaction spending {@code utxo}, or null */
+    public Transaction getSpender(UTXO utxo) {
+        Entry entry = bySpent.get(utxo);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** @return the fee paid by the pending transaction with hash {@code id}, or NaN */
+    public double getFee(TxId id) {
+        Entry entry = byHash.get(id);
+        return entry == null ? Double.NaN : entry.fee;
+    }
+
+    /** @return the number of pending transactions */
+    public int size() {
+        return byHash.size();
+    }
+
+    /** @return the estimated memory used by the pending transactions, in bytes */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /** @return the memory cap, in bytes */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** @return {@code entry} followed by all pending transactions depending on it */
+    private LinkedHashSet<Entry> withDescendants(Entry entry) {
+        LinkedHashSet<Entry> found = new LinkedHashSet<Entry>();
+        ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+        found.add(entry);
+        queue.add(entry);
+        while (!queue.isEmpty()) {
+            Entry parent = queue.poll();
+            for (int i = 0; i < parent.tx.numOutputs(); ++i) {
+                Entry child = bySpent.get(new UTXO(parent.id.getHash(), i));
+                if (child != null && found.add(child)) {
+                    queue.add(child);
+                }
+            }
+        }
+        return found;
+    }
+
+    /** @return the pending transactions {@code entry} depends on, directly or not */
+    private LinkedHashSet<Entry> ancestors(Entry entry) {
+        LinkedHashSet<Entry> found = new LinkedHashSet<Entry>();
+        ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+        queue.add(entry);
+        while (!queue.isEmpty()) {
+            Entry child = queue.poll();
+            for (int i = 0; i < child.tx.numInputs(); ++i) {
+                Entry parent = byHash.get(new TxId(child.tx.getInput(i).prevTxHash));
+                if (parent != null && parent != entry && found.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return found;
+    }
+
+    /** Adds {@code fee} and {@code size} to the package of every ancestor of {@code entry} */
+    private void addToAncestors(Entry entry, double fee, long size) {
+        for (Entry ancestor : ancestors(entry)) {
+            byPackageFeeRate.remove(ancestor);
+            ancestor.packageFee += fee;
+            ancestor.packageSize += size;
+            byPackageFeeRate.add(ancestor);
+        }
+    }
+
+    private void recomputePackage(Entry entry) {
+        byPackageFeeRate.remove(entry);
+        entry.packageFee = 0;
+        entry.packageSize = 0;
+        for (Entry e : withDescendants(entry)) {
+            entry.packageFee += e.fee;
+            entry.packageSize += e.size;
+        }
+        byPackageFeeRate.add(entry);
+    }
+
+    private ArrayList<Transaction> removeWithDescendants(Entry entry) {
+        LinkedHashSet<Entry> members = withDescendants(entry);
+        unindexAll(members);
+        ArrayList<Transaction> removed = new ArrayList<Transaction>();
+        for (Entry e : members) {
+            removed.add(e.tx);
+        }
+        return removed;
+    }
+
+    /**
+     * Unindexes {@code entries}, which must include the descendants of each of them, taking them
+     * out of the packages of their ancestors first
+     */
+    private void unindexAll(LinkedHashSet<Entry> entries) {
+        for (Entry e : entries) {
+            addToAncestors(e, -e.fee, -e.size);
+        }
+        for (Entry e : entries) {
+            unindex(e);
+        }
+    }
+
+    private void index(Entry entry) {
+        entry.packageFee = entry.fee;
+        entry.packageSize = entry.size;
+        byHash.put(entry.id, entry);
+        for (int i = 0; i < entry.tx.numInputs(); ++i) {
+            Transaction.Input in = entry.tx.getInput(i);
+            bySpent.put(new UTXO(in.prevTxHash, in.outputIndex), entry);
+        }
+        byPackageFeeRate.add(entry);
+        byFee.add(entry);
+        totalBytes += entry.size;
+        addToAncestors(entry, entry.fee, entry.size);
+    }
+
+    private void unindex(Entry entry) {
+        byHash.remove(entry.id);
+        for (int i = 0; i < entry.tx.numInputs(); ++i) {
+            Transaction.Input in = entry.tx.getInput(i);
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (bySpent.get(utxo) == entry) {
+                bySpent.remove(utxo);
+            }
+        }
+        byPackageFeeRate.remove(entry);
+        byFee.remove(entry);
+        totalBytes -= entry.size;
+    }
+
+    /**
+     * @return the fee of {@code tx}, with inputs resolved against the pool or pending
+     *         transactions, or NaN if an input cannot be resolved
+     */
+    private double fee(Transaction tx) {
+        double inputSum = 0;
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            Transaction.Output out = pool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+            if (out == null) {
+                Entry parent = byHash.get(new TxId(in.prevTxHash));
+                if (parent != null && in.outputIndex >= 0) {
+                    out = parent.tx.getOutput(in.outputIndex);
+                }
+            }
+            if (out == null) {
+                return Double.NaN;
+            }
+            inputSum += out.value;
+        }
+        return inputSum - TxValidator.outputSum(tx);
+    }
+
+    private static long serializedSize(Transaction tx) {
+        return tx.getRawSize();
+    }
+}
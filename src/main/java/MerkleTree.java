@@ -0,0 +1,220 @@
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Merkle tree over transaction hashes, built incrementally as leaves are appended. Hashing
+ * follows RFC 6962: a leaf is {@code SHA-256(0x00 || txHash)}, an inner node
+ * {@code SHA-256(0x01 || left || right)}, and a node without a sibling moves up a level
+ * unchanged, so the tree needs no padding and second-preimage tricks with duplicated leaves do
+ * not apply.
+ *
+ * <p>Only complete pairs are hashed on {@link #add(byte[])}, which costs amortized O(1) hashes;
+ * the root and inclusion proofs fold in the O(log n) unpaired right-most nodes on demand.
+ */
+public class MerkleTree {
+
+    /** Number of hashes computed per task when building a tree level in parallel */
+    private static final int PARALLEL_CHUNK = 1024;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    /** Nodes of each level whose subtree is complete; level 0 holds the leaves */
+    private List<ArrayList<byte[]>> levels = new ArrayList<ArrayList<byte[]>>();
+
+    /** One step of an inclusion proof: the sibling hash and the side it sits on */
+    public static class ProofStep {
+        private byte[] sibling;
+        private boolean left;
+
+        ProofStep(byte[] sibling, boolean left) {
+            this.sibling = sibling;
+            this.left = left;
+        }
+
+        /** @return the hash of the sibling node */
+        public byte[] getSibling() {
+            return sibling;
+        }
+
+        /** @return true if the sibling is the left child of the parent */
+        public boolean isLeft() {
+            return left;
+        }
+    }
+
+    /** Creates an empty tree */
+    public MerkleTree() {
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /**
+     * Builds the tree over {@code txs}, hashing each level in parallel on {@code executor} when it
+     * is large enough to be worth it.
+     */
+    public static MerkleTree build(final Transaction[] txs, ExecutorService executor) {
+        MerkleTree tree = new MerkleTree();
+        final byte[][] leaves = new byte[txs.length][];
+        hashInParallel(leaves.length, executor, new Hasher() {
+            @Override
+            public void hash(int i) {
+                leaves[i] = leafHash(txs[i].getHash());
+            }
+        });
+        tree.levels.get(0).addAll(Arrays.asList(leaves));
+
+        ArrayList<byte[]> level = tree.levels.get(0);
+        while (level.size() > 1) {
+            final ArrayList<byte[]> children = level;
+            final byte[][] parents = new byte[children.size() / 2][];
+            hashInParallel(parents.length, executor, new Hasher() {
+                @Override
+                public void hash(int i) {
+                    parents[i] = nodeHash(children.get(2 * i), children.get(2 * i + 1));
+                }
+            });
+            level = new ArrayList<byte[]>(Arrays.asList(parents));
+            tree.levels.add(level);
+        }
+        return tree;
+    }
+
+    /** Appends the leaf for the transaction with hash {@code txHash} */
+    public void add(byte[] txHash) {
+        byte[] node = leafHash(txHash);
+        for (int l = 0; ; ++l) {
+            if (l == levels.size()) {
+                levels.add(new ArrayList<byte[]>());
+            }
+            ArrayList<byte[]> level = levels.get(l);
+            level.add(node);
+            if (level.size() % 2 != 0) {
+                return;
+            }
+            node = nodeHash(level.get(level.size() - 2), node);
+        }
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** @return the root hash, or null if the tree is empty */
+    public byte[] root() {
+        if (size() == 0) {
+            return null;
+        }
+        return tails()[levels.size()];
+    }
+
+    /**
+     * @return the inclusion proof of the leaf at {@code index}, from the leaf up, in O(log n)
+     * @throws IndexOutOfBoundsException if there is no such leaf
+     */
+    public List<ProofStep> proof(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("No leaf " + index);
+        }
+        byte[][] tails = tails();
+        List<ProofStep> proof = new ArrayList<ProofStep>();
+        int j = index;
+        for (int l = 0; l < levels.size(); ++l) {
+            int width = levels.get(l).size() + (tails[l] != null ? 1 : 0);
+            if (width <= 1) {
+                break;
+            }
+            int sibling = j ^ 1;
+            if (sibling < width) {
+                proof.add(new ProofStep(node(l, sibling, tails), sibling < j));
+            }
+            j >>= 1;
+        }
+        return proof;
+    }
+
+    /**
+     * @return true if {@code proof} shows that the transaction with hash {@code txHash} is a leaf
+     *         of the tree with root {@code root}
+     */
+    public static boolean verify(byte[] txHash, List<ProofStep> proof, byte[] root) {
+        byte[] node = leafHash(txHash);
+        for (ProofStep step : proof) {
+            node = step.isLeft() ? nodeHash(step.getSibling(), node)
+                    : nodeHash(node, step.getSibling());
+        }
+        return MessageDigest.isEqual(node, root);
+    }
+
+    /** @return the node at {@code index} of level {@code l}, including the folded tail */
+    private byte[] node(int l, int index, byte[][] tails) {
+        ArrayList<byte[]> level = levels.get(l);
+        return index < level.size() ? level.get(index) : tails[l];
+    }
+
+    /**
+     * @return for each level, the node made of the unpaired nodes of the levels below, which
+     *         follows the complete nodes of that level, or null; the entry past the highest level
+     *         is the root
+     */
+    private byte[][] tails() {
+        byte[][] tails = new byte[levels.size() + 1][];
+        for (int l = 0; l < levels.size(); ++l) {
+            ArrayList<byte[]> level = levels.get(l);
+            if (level.size() % 2 == 0) {
+                tails[l + 1] = tails[l];
+            } else if (tails[l] == null) {
+                tails[l + 1] = level.get(level.size() - 1);
+            } else {
+                tails[l + 1] = nodeHash(level.get(level.size() - 1), tails[l]);
+            }
+        }
+        return tails;
+    }
+
+    private static byte[] leafHash(byte[] txHash) {
+        MessageDigest md = TxHasher.sha256();
+        md.update(LEAF_PREFIX);
+        md.update(txHash);
+        return md.digest();
+    }
+
+    private static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest md = TxHasher.sha256();
+        md.update(NODE_PREFIX);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    private interface Hasher {
+        void hash(int i);
+    }
+
+    /** Calls {@code hasher} for 0 to {@code count} - 1, in chunks on {@code executor} if large */
+    private static void hashInParallel(int count, ExecutorService executor, final Hasher hasher) {
+        if (count < 2 * PARALLEL_CHUNK || executor == null) {
+            for (int i = 0; i < count; ++i) {
+                hasher.hash(i);
+            }
+            return;
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int start = 0; start < count; start += PARALLEL_CHUNK) {
+            final int from = start;
+            final int to = Math.min(start + PARALLEL_CHUNK, count);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; ++i) {
+                        hasher.hash(i);
+                    }
+                }
+            });
+        }
+        ParallelTasks.runAll(tasks, executor);
+    }
+}
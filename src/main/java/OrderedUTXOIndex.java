@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * UTXOs kept sorted in {@link UTXO#HASH_ORDER}, answering range queries the hash-partitioned
+ * store cannot: all unspent outputs of a transaction, all UTXOs whose transaction hash starts
+ * with a prefix, and ordered iteration. Backed by a skip list, so scans may run concurrently with
+ * updates.
+ */
+public class OrderedUTXOIndex {
+
+    private ConcurrentSkipListSet<UTXO> utxos;
+
+    /** Creates an empty index */
+    public OrderedUTXOIndex() {
+        utxos = new ConcurrentSkipListSet<UTXO>(UTXO.HASH_ORDER);
+    }
+
+    /** Creates an index of {@code initial} */
+    public OrderedUTXOIndex(Collection<UTXO> initial) {
+        this();
+        utxos.addAll(initial);
+    }
+
+    public void add(UTXO utxo) {
+        utxos.add(utxo);
+    }
+
+    public void remove(UTXO utxo) {
+        utxos.remove(utxo);
+    }
+
+    public int size() {
+        return utxos.size();
+    }
+
+    /** @return the indexed UTXOs of the transaction with hash {@code txHash}, by index */
+    public List<UTXO> outputsOf(byte[] txHash) {
+        NavigableSet<UTXO> outputs = utxos.subSet(new UTXO(txHash, Integer.MIN_VALUE), true,
+                new UTXO(txHash, Integer.MAX_VALUE), true);
+        return new ArrayList<UTXO>(outputs);
+    }
+
+    /**
+     * @return up to {@code limit} indexed UTXOs whose transaction hash starts with
+     *         {@code prefix}, in order
+     */
+    public List<UTXO> scanPrefix(byte[] prefix, int limit) {
+        List<UTXO> found = new ArrayList<UTXO>();
+        for (UTXO utxo : utxos.tailSet(new UTXO(prefix, Integer.MIN_VALUE), true)) {
+            if (found.size() >= limit || !startsWith(utxo.getTxHash(), prefix)) {
+                break;
+            }
+            found.add(utxo);
+        }
+        return found;
+    }
+
+    /** @return the indexed UTXOs from {@code from} inclusive to {@code to} exclusive, in order */
+    public List<UTXO> range(UTXO from, UTXO to) {
+        return new ArrayList<UTXO>(utxos.subSet(from, true, to, false));
+    }
+
+    /** @return all indexed UTXOs, in order */
+    public ArrayList<UTXO> all() {
+        return new ArrayList<UTXO>(utxos);
+    }
+
+    private static boolean startsWith(byte[] hash, byte[] prefix) {
+        if (hash.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (hash[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
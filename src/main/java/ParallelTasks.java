@@ -0,0 +1,43 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Helpers to fan work out to an {@code ExecutorService} and wait for all of it */
+public class ParallelTasks {
+
+    private ParallelTasks() {
+    }
+
+    /** Submits every task of {@code tasks} to {@code executor} */
+    public static List<Future<?>> submitAll(List<Runnable> tasks, ExecutorService executor) {
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        for (Runnable task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for all of {@code futures} to complete, rethrowing the first failure as an
+     * {@code IllegalStateException}.
+     */
+    public static void awaitAll(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for parallel tasks", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parallel task failed", e.getCause());
+        }
+    }
+
+    /** Runs every task of {@code tasks} on {@code executor} and waits for all of them */
+    public static void runAll(List<Runnable> tasks, ExecutorService executor) {
+        awaitAll(submitAll(tasks, executor));
+    }
+}
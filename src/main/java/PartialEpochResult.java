@@ -0,0 +1,31 @@
+/**
+ * Outcome of an epoch handled under a deadline: the transactions accepted before it expired,
+ * which were committed to the pool, and the ones never looked at, which left it untouched.
+ */
+public class PartialEpochResult {
+    private Transaction[] accepted;
+    private Transaction[] deferred;
+
+    PartialEpochResult(Transaction[] accepted, Transaction[] deferred) {
+        this.accepted = accepted;
+        this.deferred = deferred;
+    }
+
+    /** @return the accepted transactions, in the order they were processed */
+    public Transaction[] getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * @return the transactions left when the deadline expired, in the order they would have been
+     *         processed; they can be proposed again in a later epoch
+     */
+    public Transaction[] getDeferred() {
+        return deferred;
+    }
+
+    /** @return true if every transaction was processed before the deadline */
+    public boolean isComplete() {
+        return deferred.length == 0;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Result of validating the signatures of a transaction ahead of time, against the outputs its
+ * inputs were expected to resolve to. At commit time an input only has to be re-checked if it
+ * now resolves to an output with a different address.
+ */
+public class PrevalidatedTx {
+
+    /** Output each input resolved to when the transaction was prevalidated, or null */
+    private Transaction.Output[] resolved;
+
+    /** Whether the signature of each resolved input verified against its address */
+    private boolean[] signatureValid;
+
+    private PrevalidatedTx(Transaction.Output[] resolved, boolean[] signatureValid) {
+        this.resolved = resolved;
+        this.signatureValid = signatureValid;
+    }
+
+    /**
+     * Verifies the signature of every input of {@code tx} against the address of the output in
+     * {@code resolved} at the same position. Inputs that could not be resolved are skipped.
+     */
+    public static PrevalidatedTx prevalidate(Transaction tx, Transaction.Output[] resolved) {
+        boolean[] valid = new boolean[resolved.length];
+        for (int i = 0; i < resolved.length; ++i) {
+            Transaction.Input in = tx.getInput(i);
+            if (resolved[i] == null || in.signature == null) {
+                continue;
+            }
+            valid[i] = Crypto.verifySignature(resolved[i].address, tx.getRawDataToSign(i),
+                    in.signature);
+        }
+        return new PrevalidatedTx(resolved, valid);
+    }
+
+    /**
+     * @return true if input {@code index} was prevalidated against an output paying the same
+     *         address as {@code current}
+     */
+    public boolean isResolvedTo(int index, Transaction.Output current) {
+        if (index >= resolved.length || resolved[index] == null || current == null) {
+            return false;
+        }
+        Transaction.Output out = resolved[index];
+        return out == current || out.address.equals(current.address);
+    }
+
+    /** @return true if the signature of input {@code index} was found valid */
+    public boolean isSignatureValid(int index) {
+        return signatureValid[index];
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.HashSet;
+
+/**
+ * Bounded set of recently seen transaction hashes, used by {@code TxHandler} to drop relayed
+ * copies of transactions it already accepted or rejected for good before validating them again.
+ *
+ * <p>The last {@code capacity} hashes are kept exactly in a ring, so a transaction is only ever
+ * dropped on an exact match. In front of it, two generations of {@code BloomFilter} rotating
+ * every {@code capacity} insertions answer most lookups of new transactions without touching
+ * the ring; together they always cover every hash still in the ring.
+ */
+public class SeenTxFilter {
+
+    /** False positive rate of each Bloom generation */
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private int capacity;
+    private BloomFilter current;
+    private BloomFilter previous;
+    private int currentCount;
+
+    private TxId[] ring;
+    private int next;
+    private HashSet<TxId> recent;
+
+    private long dropped;
+
+    /** Creates a filter remembering the last {@code capacity} hashes added */
+    public SeenTxFilter(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.current = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+        this.previous = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+        this.ring = new TxId[capacity];
+        this.recent = new HashSet<TxId>(capacity * 2);
+    }
+
+    /** Remembers the transaction with hash {@code id}, forgetting the oldest one if full */
+    public void add(TxId id) {
+        if (recent.contains(id)) {
+            return;
+        }
+        if (currentCount == capacity) {
+            BloomFilter retired = previous;
+            previous = current;
+            current = retired;
+            current.clear();
+            currentCount = 0;
+        }
+        current.add(id.getHash(), 0);
+        ++currentCount;
+
+        if (ring[next] != null) {
+            recent.remove(ring[next]);
+        }
+        ring[next] = id;
+        recent.add(id);
+        next = (next + 1) % capacity;
+    }
+
+    /** @return true if the transaction with hash {@code id} is one of the last ones added */
+    public boolean contains(TxId id) {
+        byte[] hash = id.getHash();
+        if (!current.mightContain(hash, 0) && !previous.mightContain(hash, 0)) {
+            return false;
+        }
+        return recent.contains(id);
+    }
+
+    /**
+     * @return true if the transaction with hash {@code id} was seen recently, counting it as
+     *         dropped
+     */
+    public boolean drop(TxId id) {
+        if (contains(id)) {
+            ++dropped;
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the number of transactions dropped by {@link #drop(TxId)} */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /** @return the number of hashes remembered */
+    public int size() {
+        return recent.size();
+    }
+
+    /** Forgets every hash */
+    public void clear() {
+        current.clear();
+        previous.clear();
+        currentCount = 0;
+        for (int i = 0; i < ring.length; ++i) {
+            ring[i] = null;
+        }
+        next = 0;
+        recent.clear();
+    }
+}
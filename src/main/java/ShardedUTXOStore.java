@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory mapping from UTXO to transaction output, split into independently sized shards by
+ * the leading bytes of the transaction hash. Each shard is a {@code ConcurrentHashMap}, so
+ * lookups from parallel validators never block, a resize only ever rehashes one shard, and that
+ * rehash is spread over the threads writing to the shard while readers keep going.
+ */
+public class ShardedUTXOStore implements UTXOStore {
+
+    /** Default number of shards */
+    public static final int DEFAULT_SHARDS = 16;
+
+    private ConcurrentHashMap<UTXO, Transaction.Output>[] shards;
+    private int mask;
+
+    /** Creates an empty store with {@code DEFAULT_SHARDS} shards */
+    public ShardedUTXOStore() {
+        this(DEFAULT_SHARDS, 0);
+    }
+
+    /**
+     * Creates an empty store with {@code shardCount} shards (rounded up to a power of two), each
+     * presized for its share of {@code expectedSize} entries.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedUTXOStore(int shardCount, int expectedSize) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        int count = Integer.highestOneBit(shardCount);
+        if (count < shardCount) {
+            count <<= 1;
+        }
+        shards = new ConcurrentHashMap[count];
+        mask = count - 1;
+        int perShard = Math.max(expectedSize / count, 16);
+        for (int i = 0; i < count; ++i) {
+            shards[i] = new ConcurrentHashMap<UTXO, Transaction.Output>(perShard);
+        }
+    }
+
+    /** Creates a store that is a copy of {@code other}, with the same number of shards */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedUTXOStore(ShardedUTXOStore other) {
+        shards = new ConcurrentHashMap[other.shards.length];
+        mask = other.mask;
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i] = new ConcurrentHashMap<UTXO, Transaction.Output>(other.shards[i]);
+        }
+    }
+
+    public ShardedUTXOStore copy() {
+        return new ShardedUTXOStore(this);
+    }
+
+    /** @return the index of the shard holding {@code utxo} */
+    public int shardOf(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        int prefix = 0;
+        for (int i = 0; i < 4 && i < hash.length; ++i) {
+            prefix = (prefix << 8) | (hash[i] & 0xff);
+        }
+        // Spread so that small shard counts still use the highest-entropy bits of the prefix
+        return (prefix ^ (prefix >>> 16)) & mask;
+    }
+
+    /** @return the number of shards */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /** @return the previous output mapped to {@code utxo}, or null */
+    public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        return shards[shardOf(utxo)].put(utxo, txOut);
+    }
+
+    /** @return the output that was mapped to {@code utxo}, or null */
+    public Transaction.Output remove(UTXO utxo) {
+        return shards[shardOf(utxo)].remove(utxo);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return shards[shardOf(utxo)].get(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return shards[shardOf(utxo)].containsKey(utxo);
+    }
+
+    /** @return the outputs of the UTXOs of {@code utxos} that are in the store */
+    public Map<UTXO, Transaction.Output> getAll(Collection<UTXO> utxos) {
+        Map<UTXO, Transaction.Output> found = new HashMap<UTXO, Transaction.Output>(
+                utxos.size() * 2);
+        List<List<UTXO>> routed = route(utxos);
+        for (int s = 0; s < shards.length; ++s) {
+            ConcurrentHashMap<UTXO, Transaction.Output> shard = shards[s];
+            for (UTXO utxo : routed.get(s)) {
+                Transaction.Output txOut = shard.get(utxo);
+                if (txOut != null) {
+                    found.put(utxo, txOut);
+                }
+            }
+        }
+        return found;
+    }
+
+    /** @return true if every UTXO of {@code utxos} is in the store */
+    public boolean containsAll(Collection<UTXO> utxos) {
+        List<List<UTXO>> routed = route(utxos);
+        for (int s = 0; s < shards.length; ++s) {
+            ConcurrentHashMap<UTXO, Transaction.Output> shard = shards[s];
+            for (UTXO utxo : routed.get(s)) {
+                if (!shard.containsKey(utxo)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Adds every mapping of {@code entries}, shard by shard */
+    public void putAll(Map<UTXO, Transaction.Output> entries) {
+        List<List<UTXO>> routed = route(entries.keySet());
+        for (int s = 0; s < shards.length; ++s) {
+            ConcurrentHashMap<UTXO, Transaction.Output> shard = shards[s];
+            for (UTXO utxo : routed.get(s)) {
+                shard.put(utxo, entries.get(utxo));
+            }
+        }
+    }
+
+    /** Removes every UTXO of {@code utxos}, shard by shard */
+    public void removeAll(Collection<UTXO> utxos) {
+        List<List<UTXO>> routed = route(utxos);
+        for (int s = 0; s < shards.length; ++s) {
+            ConcurrentHashMap<UTXO, Transaction.Output> shard = shards[s];
+            for (UTXO utxo : routed.get(s)) {
+                shard.remove(utxo);
+            }
+        }
+    }
+
+    /** @return the number of UTXOs in the store */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < shards.length; ++i) {
+            size += shards[i].size();
+        }
+        return size;
+    }
+
+    /** @return the number of UTXOs in each shard */
+    public int[] shardSizes() {
+        int[] sizes = new int[shards.length];
+        for (int i = 0; i < shards.length; ++i) {
+            sizes[i] = shards[i].size();
+        }
+        return sizes;
+    }
+
+    /** @return all UTXOs in the store, shard by shard */
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size());
+        for (int i = 0; i < shards.length; ++i) {
+            keys.addAll(shards[i].keySet());
+        }
+        return keys;
+    }
+
+    /** Groups {@code utxos} by shard, so each shard is visited once */
+    private List<List<UTXO>> route(Collection<UTXO> utxos) {
+        List<List<UTXO>> routed = new ArrayList<List<UTXO>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            routed.add(new ArrayList<UTXO>());
+        }
+        for (UTXO utxo : utxos) {
+            routed.get(shardOf(utxo)).add(utxo);
+        }
+        return routed;
+    }
+}
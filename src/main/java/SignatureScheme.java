@@ -0,0 +1,20 @@
+import java.security.PublicKey;
+
+/**
+ * A digital signature algorithm that outputs can be locked to. The scheme used to check an input
+ * is chosen from the type of the address ({@code PublicKey}) of the output it spends.
+ */
+public interface SignatureScheme {
+
+    /** @return a short name identifying the scheme, e.g. {@code "RSA"} */
+    String getName();
+
+    /** @return true if addresses of the type of {@code pubKey} are verified by this scheme */
+    boolean supports(PublicKey pubKey);
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under
+     *         {@code pubKey}, and false otherwise (including malformed keys or signatures)
+     */
+    boolean verify(PublicKey pubKey, byte[] message, byte[] signature);
+}
@@ -0,0 +1,36 @@
+import java.security.PublicKey;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the {@code SignatureScheme}s addresses can use. RSA, ECDSA over P-256 and Ed25519
+ * are registered by default; further schemes can be added with {@link #register}.
+ */
+public class SignatureSchemes {
+
+    private static final CopyOnWriteArrayList<SignatureScheme> SCHEMES =
+            new CopyOnWriteArrayList<SignatureScheme>();
+
+    static {
+        SCHEMES.add(JdkSignatureScheme.RSA);
+        SCHEMES.add(JdkSignatureScheme.ECDSA_P256);
+        SCHEMES.add(JdkSignatureScheme.ED25519);
+    }
+
+    private SignatureSchemes() {
+    }
+
+    /** Registers {@code scheme}, taking precedence over the schemes registered before it */
+    public static void register(SignatureScheme scheme) {
+        SCHEMES.add(0, scheme);
+    }
+
+    /** @return the scheme verifying signatures for address {@code pubKey}, or null if none does */
+    public static SignatureScheme forKey(PublicKey pubKey) {
+        for (SignatureScheme scheme : SCHEMES) {
+            if (scheme.supports(pubKey)) {
+                return scheme;
+            }
+        }
+        return null;
+    }
+}
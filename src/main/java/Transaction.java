@@ -2,8 +2,6 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
 public class Transaction {
@@ -29,6 +27,7 @@ public class Transaction {
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
+            hash = null;
         }
     }
 
@@ -55,23 +54,35 @@ public class Transaction {
     }
 
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        hash = tx.hash != null ? tx.hash.clone() : null;
+        // The copy owns its inputs, so that signing them clears its own hash only
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.signature = in.signature != null ? in.signature.clone() : null;
+            inputs.add(copy);
+        }
+        outputs = new ArrayList<Output>(tx.outputs.size());
+        for (Output op : tx.outputs) {
+            outputs.add(new Output(op.value, op.address));
+        }
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        hash = null;
     }
 
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        hash = null;
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        hash = null;
     }
 
     public void removeInput(UTXO ut) {
@@ -80,6 +91,7 @@ public class Transaction {
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
+                hash = null;
                 return;
             }
         }
@@ -87,35 +99,25 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        byte[][] addresses = new byte[outputs.size()][];
+        int size = (prevTxHash != null ? prevTxHash.length : 0) + Integer.SIZE / 8;
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = outputs.get(i).address.getEncoded();
+            size += Double.SIZE / 8 + addresses[i].length;
+        }
+        ByteBuffer sigData = ByteBuffer.allocate(size);
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        for (int i = 0; i < addresses.length; i++) {
+            sigData.putDouble(outputs.get(i).value);
+            sigData.put(addresses[i]);
         }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -123,50 +125,59 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        int size = 0;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            size += Integer.SIZE / 8;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
+        byte[][] addresses = new byte[outputs.size()][];
+        for (int i = 0; i < addresses.length; i++) {
+            PublicKey address = outputs.get(i).address;
+            addresses[i] = address != null ? address.getEncoded() : new byte[0];
+            size += Double.SIZE / 8 + addresses[i].length;
+        }
+        ByteBuffer rawTx = ByteBuffer.allocate(size);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
+        }
+        for (int i = 0; i < addresses.length; i++) {
+            rawTx.putDouble(outputs.get(i).value);
+            rawTx.put(addresses[i]);
+        }
+        return rawTx.array();
+    }
 
+    /**
+     * @return the length of {@link #getRawTx()}, computed without serializing the transaction;
+     *         callers needing it repeatedly within an epoch should keep it
+     */
+    public int getRawSize() {
+        int size = 0;
+        for (Input in : inputs) {
+            size += Integer.SIZE / 8;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
+        }
+        for (Output op : outputs) {
+            size += Double.SIZE / 8;
+            if (op.address != null)
+                size += op.address.getEncoded().length;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return size;
     }
 
+    /** Computes the hash of the transaction, see {@code TxHasher#hash(Transaction)} */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        hash = TxHasher.hash(this);
     }
 
     public void setHash(byte[] h) {
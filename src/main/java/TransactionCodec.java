@@ -0,0 +1,156 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary wire format of a {@code Transaction}: its inputs (previous hash, output index,
+ * signature) followed by its outputs (value and address). Addresses are written as their key
+ * algorithm and X.509 encoding; decoded addresses are cached, since the same few keys show up in
+ * most transactions.
+ */
+public class TransactionCodec {
+
+    /** Largest byte array accepted while decoding, to bound memory on hostile input */
+    public static final int MAX_FIELD_LENGTH = 1 << 16;
+
+    private static final ConcurrentHashMap<ByteBuffer, PublicKey> ADDRESSES =
+            new ConcurrentHashMap<ByteBuffer, PublicKey>();
+    private static final int MAX_CACHED_ADDRESSES = 1 << 16;
+
+    private TransactionCodec() {
+    }
+
+    /** @return the encoding of {@code tx} */
+    public static byte[] encode(Transaction tx) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            write(tx, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the transaction encoded in {@code data}, finalized
+     * @throws IOException if {@code data} is not a valid encoding
+     */
+    public static Transaction decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Transaction tx = read(in);
+        if (in.available() > 0) {
+            throw new IOException("Trailing bytes after transaction");
+        }
+        return tx;
+    }
+
+    /** Writes {@code tx} to {@code out} */
+    public static void write(Transaction tx, DataOutputStream out) throws IOException {
+        out.writeInt(tx.numInputs());
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            writeBytes(in.prevTxHash, out);
+            out.writeInt(in.outputIndex);
+            writeBytes(in.signature, out);
+        }
+        out.writeInt(tx.numOutputs());
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            Transaction.Output op = tx.getOutput(i);
+            out.writeDouble(op.value);
+            writeAddress(op.address, out);
+        }
+    }
+
+    /** @return the next transaction read from {@code in}, finalized */
+    public static Transaction read(DataInputStream in) throws IOException {
+        Transaction tx = new Transaction();
+        int numInputs = readCount(in);
+        for (int i = 0; i < numInputs; ++i) {
+            byte[] prevTxHash = readBytes(in);
+            int outputIndex = in.readInt();
+            byte[] signature = readBytes(in);
+            tx.addInput(prevTxHash, outputIndex);
+            tx.getInput(i).addSignature(signature);
+        }
+        int numOutputs = readCount(in);
+        for (int i = 0; i < numOutputs; ++i) {
+            double value = in.readDouble();
+            tx.addOutput(value, readAddress(in));
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** Writes the key algorithm and X.509 encoding of {@code address} to {@code out} */
+    public static void writeAddress(PublicKey address, DataOutputStream out) throws IOException {
+        out.writeUTF(address.getAlgorithm());
+        writeBytes(address.getEncoded(), out);
+    }
+
+    /** @return the address read from {@code in} */
+    public static PublicKey readAddress(DataInputStream in) throws IOException {
+        String algorithm = in.readUTF();
+        byte[] encoded = readBytes(in);
+        if (encoded == null) {
+            throw new IOException("Missing address");
+        }
+        return decodeAddress(algorithm, encoded);
+    }
+
+    /** @return the public key of algorithm {@code algorithm} with X.509 encoding {@code encoded} */
+    public static PublicKey decodeAddress(String algorithm, byte[] encoded) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(encoded);
+        PublicKey address = ADDRESSES.get(key);
+        if (address != null && address.getAlgorithm().equals(algorithm)) {
+            return address;
+        }
+        try {
+            address = KeyFactory.getInstance(algorithm).generatePublic(
+                    new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid " + algorithm + " address", e);
+        }
+        if (ADDRESSES.size() < MAX_CACHED_ADDRESSES) {
+            ADDRESSES.put(key, address);
+        }
+        return address;
+    }
+
+    static void writeBytes(byte[] data, DataOutputStream out) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new IOException("Invalid field length " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FIELD_LENGTH) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates synthetic epochs of signed transactions for load testing. Each epoch spends outputs
+ * of the genesis pool or of earlier epochs, with one or two inputs and outputs per transaction
+ * and a small fee; a configurable share of the transactions double-spend an input of another
+ * transaction of the same epoch. Transactions are built sequentially from a seeded random
+ * source, then signed and hashed in parallel.
+ *
+ * <p>Usage: {@code TxGenerator <recording> <epochs> <txsPerEpoch> [threads]} writes a recording
+ * that {@code EpochReplayer} can replay.
+ */
+public class TxGenerator {
+
+    /** Number of transactions signed per task */
+    private static final int SIGN_CHUNK = 256;
+
+    /** An output the generator may spend, with the key that owns it */
+    private static class Spendable {
+        final UTXO utxo;
+        final double value;
+        final int key;
+
+        Spendable(UTXO utxo, double value, int key) {
+            this.utxo = utxo;
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    private KeyPair[] keys;
+    private Random random;
+    private double doubleSpendRate;
+    private ArrayList<Spendable> unspent = new ArrayList<Spendable>();
+
+    /**
+     * Creates a generator owning {@code keyCount} RSA keys of {@code keyBits} bits, deterministic
+     * for a given {@code seed}.
+     */
+    public TxGenerator(int keyCount, int keyBits, long seed) throws GeneralSecurityException {
+        SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        keyRandom.setSeed(seed);
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(keyBits, keyRandom);
+        keys = new KeyPair[keyCount];
+        for (int i = 0; i < keyCount; ++i) {
+            keys[i] = keyGen.generateKeyPair();
+        }
+        random = new Random(seed);
+    }
+
+    /** Makes {@code rate} of the generated transactions double-spend another one (default 0) */
+    public void setDoubleSpendRate(double rate) {
+        this.doubleSpendRate = rate;
+    }
+
+    /** @return the number of outputs available to later epochs */
+    public int unspentCount() {
+        return unspent.size();
+    }
+
+    /** @return a pool of {@code outputs} outputs worth {@code value} each, spread over the keys */
+    public UTXOPool genesis(int outputs, double value) {
+        Transaction coinbase = new Transaction();
+        coinbase.addInput(null, 0);
+        for (int i = 0; i < outputs; ++i) {
+            coinbase.addOutput(value, keys[i % keys.length].getPublic());
+        }
+        coinbase.finalize();
+        UTXOPool pool = new UTXOPool(ShardedUTXOStore.DEFAULT_SHARDS, outputs);
+        for (int i = 0; i < outputs; ++i) {
+            UTXO utxo = new UTXO(coinbase.getHash(), i);
+            pool.addUTXO(utxo, coinbase.getOutput(i));
+            unspent.add(new Spendable(utxo, value, i % keys.length));
+        }
+        return pool;
+    }
+
+    /**
+     * @return an epoch of up to {@code size} transactions, signed on {@code executor}; fewer if
+     *         the unspent outputs run out
+     */
+    public Transaction[] nextEpoch(int size, ExecutorService executor) {
+        final List<Transaction> txs = new ArrayList<Transaction>(size);
+        final List<Spendable[]> inputs = new ArrayList<Spendable[]>(size);
+        final List<int[]> outputKeys = new ArrayList<int[]>(size);
+        boolean[] conflicted = new boolean[size];
+        for (int t = 0; t < size; ++t) {
+            Spendable[] spent;
+            if (t > 0 && random.nextDouble() < doubleSpendRate) {
+                int victim = random.nextInt(t);
+                spent = new Spendable[] {inputs.get(victim)[0]};
+                conflicted[victim] = true;
+                conflicted[t] = true;
+            } else {
+                int count = Math.min(unspent.size(), 1 + random.nextInt(2));
+                if (count == 0) {
+                    break;
+                }
+                spent = new Spendable[count];
+                for (int i = 0; i < count; ++i) {
+                    spent[i] = takeRandomUnspent();
+                }
+            }
+            double inputSum = 0;
+            Transaction tx = new Transaction();
+            for (int i = 0; i < spent.length; ++i) {
+                tx.addInput(spent[i].utxo.getTxHash(), spent[i].utxo.getIndex());
+                inputSum += spent[i].value;
+            }
+            double available = inputSum * (1 - 0.01 * random.nextDouble());
+            int[] owners = new int[1 + random.nextInt(2)];
+            for (int i = 0; i < owners.length; ++i) {
+                owners[i] = random.nextInt(keys.length);
+                tx.addOutput(available / owners.length, keys[owners[i]].getPublic());
+            }
+            txs.add(tx);
+            inputs.add(spent);
+            outputKeys.add(owners);
+        }
+
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int start = 0; start < txs.size(); start += SIGN_CHUNK) {
+            final int from = start;
+            final int to = Math.min(start + SIGN_CHUNK, txs.size());
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    sign(txs.subList(from, to), inputs.subList(from, to));
+                }
+            });
+        }
+        ParallelTasks.runAll(tasks, executor);
+
+        // Only outputs of transactions sure to be accepted are spent by later epochs
+        for (int t = 0; t < txs.size(); ++t) {
+            if (conflicted[t]) {
+                continue;
+            }
+            Transaction tx = txs.get(t);
+            for (int i = 0; i < tx.numOutputs(); ++i) {
+                unspent.add(new Spendable(new UTXO(tx.getHash(), i), tx.getOutput(i).value,
+                        outputKeys.get(t)[i]));
+            }
+        }
+        return txs.toArray(new Transaction[txs.size()]);
+    }
+
+    private Spendable takeRandomUnspent() {
+        int i = random.nextInt(unspent.size());
+        Spendable taken = unspent.get(i);
+        unspent.set(i, unspent.get(unspent.size() - 1));
+        unspent.remove(unspent.size() - 1);
+        return taken;
+    }
+
+    private void sign(List<Transaction> txs, List<Spendable[]> inputs) {
+        try {
+            Signature sig = JdkSignatureScheme.RSA.newSignature();
+            for (int t = 0; t < txs.size(); ++t) {
+                Transaction tx = txs.get(t);
+                Spendable[] spent = inputs.get(t);
+                for (int i = 0; i < spent.length; ++i) {
+                    sig.initSign(keys[spent[i].key].getPrivate());
+                    sig.update(tx.getRawDataToSign(i));
+                    tx.addSignature(sig.sign(), i);
+                }
+                tx.finalize();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 3) {
+            System.err.println("Usage: TxGenerator <recording> <epochs> <txsPerEpoch> [threads]");
+            System.exit(2);
+        }
+        int epochs = Integer.parseInt(args[1]);
+        int perEpoch = Integer.parseInt(args[2]);
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+
+        TxGenerator generator = new TxGenerator(64, 2048, 42);
+        generator.setDoubleSpendRate(0.01);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            EpochRecorder recorder = new EpochRecorder(new File(args[0]),
+                    generator.genesis(2 * perEpoch, 1000000));
+            try {
+                for (int e = 0; e < epochs; ++e) {
+                    recorder.record(generator.nextEpoch(perEpoch, executor), null);
+                }
+            } finally {
+                recorder.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
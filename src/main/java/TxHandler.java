@@ -1,9 +1,21 @@
-import java.util.Set;
-import java.util.HashSet;
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
-public class TxHandler {
+public class TxHandler implements EpochHandler, Closeable {
     private UTXOPool pool;
+    private EpochHistory history;
+    private AdmissionControl admission;
+    private AdmissionControl.Result lastAdmission;
+    private SeenTxFilter seenFilter;
+    private MerkleTree merkleTree = new MerkleTree();
+
+    /** Minimum number of transactions validated by one task of {@link #handleTxsParallel} */
+    private static final int PARALLEL_BATCH_SIZE = 64;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -12,6 +24,17 @@ public class TxHandler {
      */
     public TxHandler(UTXOPool utxoPool) {
         pool = new UTXOPool(utxoPool);
+        history = new EpochHistory(EpochHistory.DEFAULT_DEPTH);
+    }
+
+    /**
+     * Creates a public ledger that takes ownership of {@code store}, which may already hold UTXOs,
+     * and applies every epoch to it directly instead of to a copy. This is how a disk-backed store
+     * keeps its durable state in its own directory; {@link #close()} closes it.
+     */
+    public TxHandler(UTXOStore store) {
+        pool = new UTXOPool(store);
+        history = new EpochHistory(EpochHistory.DEFAULT_DEPTH);
     }
 
     /**
@@ -24,107 +47,323 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        // Check if all outputs claimed by {@code tx} are in the current UTXO pool
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (!pool.contains(utxo)) {
-                return false;
+        return TxValidator.isValidTx(tx, pool);
+    }
+
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
+     * transaction for correctness, returning a mutually valid array of accepted transactions, and
+     * updating the current UTXO pool as appropriate.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        return handleTxs(admit(possibleTxs, null), null, 0, null);
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])}, but stops at the first transaction reached after
+     * {@code System.nanoTime()} passes {@code deadlineNanos}. Transactions are processed in
+     * arrival order, the ones accepted until then are committed as a regular epoch, and the rest
+     * are reported as deferred without touching the pool.
+     */
+    public PartialEpochResult handleTxsUntil(Transaction[] possibleTxs, long deadlineNanos) {
+        ArrayList<Transaction> deferred = new ArrayList<Transaction>();
+        Transaction[] admitted = admit(possibleTxs, null);
+        Transaction[] accepted = handleTxs(admitted, null, deadlineNanos, deferred);
+        return new PartialEpochResult(accepted, deferred.toArray(new Transaction[deferred.size()]));
+    }
+
+    /**
+     * Handles {@code epochs} one after the other like {@link #handleTxs(Transaction[])}, but
+     * verifies the signatures of each epoch on {@code executor} while the previous one commits.
+     *
+     * @return the accepted transactions of each epoch
+     */
+    public Transaction[][] handleEpochs(Transaction[][] epochs, ExecutorService executor) {
+        return EpochPipeline.run(epochs, pool, executor, new EpochPipeline.EpochCommitter() {
+            @Override
+            public Transaction[] commit(Transaction[] possibleTxs, PrevalidatedTx[] prevalidated) {
+                if (seenFilter != null) {
+                    // Signatures were verified ahead, but lookups can still be saved
+                    boolean[] fresh = unseen(possibleTxs);
+                    possibleTxs = keep(possibleTxs, fresh);
+                    prevalidated = keep(prevalidated, fresh);
+                }
+                return handleTxs(possibleTxs, prevalidated, 0, null);
             }
-        }
+        });
+    }
 
-        // Check if the signatures on each input of {@code tx} are valid
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            byte[] data = tx.getRawDataToSign(i);
-            Transaction.Input in = tx.getInput(i);
-            if (in.signature == null) {
-                return false;
+    /**
+     * Handles one epoch. If {@code deferred} is not null, the transactions not yet processed once
+     * {@code deadlineNanos} has passed are added to it instead.
+     */
+    private Transaction[] handleTxs(Transaction[] possibleTxs, PrevalidatedTx[] prevalidated,
+                                    long deadlineNanos, List<Transaction> deferred) {
+        EpochTrace.Epoch trace = EpochTrace.beginEpoch("TxHandler", possibleTxs.length);
+        pool.beginUndoRecord();
+        merkleTree = new MerkleTree();
+        pool.prefetchInputs(possibleTxs, null);
+        ArrayList<Transaction> transactions = new ArrayList<Transaction>();
+
+        // Outputs created and spent within the epoch net out in the overlay and never reach
+        // the pool
+        UTXOOverlay overlay = new UTXOOverlay(pool);
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            if (deferred != null && System.nanoTime() - deadlineNanos >= 0) {
+                deferred.addAll(Arrays.asList(possibleTxs).subList(i, possibleTxs.length));
+                break;
             }
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(out.address, data, in.signature)) {
-                return false;
+            PrevalidatedTx pre = prevalidated == null ? null : prevalidated[i];
+            if (TxValidator.isValidTx(possibleTxs[i], overlay, pre)) {
+                transactions.add(possibleTxs[i]);
+                acceptTransaction(possibleTxs[i], overlay);
+                if (seenFilter != null) {
+                    seenFilter.add(TxId.of(possibleTxs[i]));
+                }
+            } else if (seenFilter != null && isPermanentlyInvalid(possibleTxs[i], overlay)) {
+                seenFilter.add(TxId.of(possibleTxs[i]));
             }
         }
+        long commit = EpochTrace.start();
+        overlay.applyTo(pool);
+        EpochTrace.end(EpochTrace.Phase.COMMIT, commit);
 
-        // No UTXO is claimed multiple times by {@code tx}
-        Set<Integer> hashCodes = new HashSet<Integer>();
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (hashCodes.contains(utxo.hashCode())) {
-                return false;
-            }
-            hashCodes.add(utxo.hashCode());
+        Transaction[] _transactions = new Transaction[transactions.size()];
+        for (int i = 0; i < transactions.size(); ++i) {
+          _transactions[i] = transactions.get(i);
         }
+        history.push(pool.endUndoRecord());
+        pool.releasePrefetch();
+        pool.flush();
+        EpochTrace.endEpoch(trace, _transactions.length);
+        return _transactions;
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])}, but splits {@code possibleTxs} into components of
+     * transactions touching the same outpoints and validates each component on {@code executor}
+     * against its own overlay. Within a component transactions are processed in their original
+     * order, so the accepted transactions are the same as with {@link #handleTxs(Transaction[])}.
+     */
+    public Transaction[] handleTxsParallel(Transaction[] proposedTxs, ExecutorService executor) {
+        final Transaction[] possibleTxs = admit(proposedTxs, executor);
+        EpochTrace.Epoch trace = EpochTrace.beginEpoch("TxHandler", possibleTxs.length);
+        pool.beginUndoRecord();
+        merkleTree = new MerkleTree();
+        pool.prefetchInputs(possibleTxs, executor);
 
-        // All of {@code tx}s output values are non-negative
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            Transaction.Output out = tx.getOutput(i);
-            if (out.value < 0) {
-                return false;
+        List<int[]> components = ConflictPartitioner.partition(possibleTxs);
+        final boolean[] accepted = new boolean[possibleTxs.length];
+        // Rejected for good, so remembered by the seen filter
+        final boolean[] invalid = new boolean[possibleTxs.length];
+        final UTXOOverlay[] overlays = new UTXOOverlay[components.size()];
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        int from = 0;
+        int batchSize = 0;
+        for (int c = 0; c < components.size(); ++c) {
+            batchSize += components.get(c).length;
+            if (batchSize >= PARALLEL_BATCH_SIZE || c == components.size() - 1) {
+                final List<int[]> batch = components.subList(from, c + 1);
+                final int offset = from;
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int k = 0; k < batch.size(); ++k) {
+                            UTXOOverlay overlay = new UTXOOverlay(pool);
+                            for (int i : batch.get(k)) {
+                                if (TxValidator.isValidTx(possibleTxs[i], overlay)) {
+                                    overlay.applyTransaction(possibleTxs[i]);
+                                    accepted[i] = true;
+                                } else if (seenFilter != null) {
+                                    invalid[i] = isPermanentlyInvalid(possibleTxs[i], overlay);
+                                }
+                            }
+                            overlays[offset + k] = overlay;
+                        }
+                    }
+                });
+                from = c + 1;
+                batchSize = 0;
             }
         }
+        ParallelTasks.runAll(tasks, executor);
 
-        // the sum of {@code tx}s input values is greater than or equal to the
-        // sum of its output values; and false otherwise.
-        double outputSum = 0;
-        double inputSum = 0;
-        for (int i = 0; i < tx.numOutputs(); ++i) {
-            Transaction.Output out = tx.getOutput(i);
-            outputSum += out.value;
+        // Components touch disjoint UTXOs, so their deltas can be merged in any order
+        long commit = EpochTrace.start();
+        for (int c = 0; c < overlays.length; ++c) {
+            overlays[c].applyTo(pool);
         }
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            inputSum += out.value;
-        }
-        if (inputSum < outputSum) {
-            return false;
+        EpochTrace.end(EpochTrace.Phase.COMMIT, commit);
+        ArrayList<Transaction> transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            if (accepted[i]) {
+                transactions.add(possibleTxs[i]);
+            }
+            if (seenFilter != null && (accepted[i] || invalid[i])) {
+                seenFilter.add(TxId.of(possibleTxs[i]));
+            }
         }
+        Transaction[] result = transactions.toArray(new Transaction[transactions.size()]);
+        merkleTree = MerkleTree.build(result, executor);
+        history.push(pool.endUndoRecord());
+        pool.releasePrefetch();
+        pool.flush();
+        EpochTrace.endEpoch(trace, result.length);
+        return result;
+    }
 
-        return true;
+    /**
+     * Runs every epoch given to {@link #handleTxs(Transaction[])} and
+     * {@link #handleTxsParallel(Transaction[], ExecutorService)} through {@code admission} first,
+     * or disables admission control if it is null.
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+        this.lastAdmission = null;
+    }
+
+    /** @return the admission outcome of the last epoch, or null if admission control is off */
+    public AdmissionControl.Result getLastAdmission() {
+        return lastAdmission;
     }
 
     /**
-     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
-     * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * Makes every way of handling an epoch drop the transactions {@code filter} has seen, and
+     * repeated copies within an epoch, right after hashing them and before admission control or
+     * any lookup, and remember the ones it accepts or rejects for good; or stops filtering if
+     * {@code filter} is null. {@link #handleEpochs} verifies the signatures of an epoch while the
+     * previous one commits, so it can only drop transactions before looking up their inputs.
+     * Transactions rejected because an input is missing are not remembered, since it may show up
+     * later.
      */
-    public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        ArrayList<Transaction> transactions = new ArrayList<Transaction>();
+    public void setSeenTxFilter(SeenTxFilter filter) {
+        this.seenFilter = filter;
+    }
 
-        for (int i = 0; i < possibleTxs.length; ++i) {
-            if (isValidTx(possibleTxs[i])) {
-                transactions.add(possibleTxs[i]);
-                acceptTransaction(possibleTxs[i]);
-            }
+    /**
+     * @return which transactions of {@code txs} to handle: not those the seen filter knows, nor
+     *         copies of a transaction appearing earlier in {@code txs}
+     */
+    private boolean[] unseen(Transaction[] txs) {
+        boolean[] fresh = new boolean[txs.length];
+        HashSet<TxId> epoch = new HashSet<TxId>(txs.length * 2);
+        for (int i = 0; i < txs.length; ++i) {
+            TxId id = TxId.of(txs[i]);
+            fresh[i] = !seenFilter.drop(id) && epoch.add(id);
         }
+        return fresh;
+    }
 
-        Transaction[] _transactions = new Transaction[transactions.size()];
-        for (int i = 0; i < transactions.size(); ++i) {
-          _transactions[i] = transactions.get(i);
+    /** @return the items of {@code items} whose flag in {@code mask} is set, in order */
+    private static <T> T[] keep(T[] items, boolean[] mask) {
+        int count = 0;
+        for (int i = 0; i < mask.length; ++i) {
+            if (mask[i]) {
+                ++count;
+            }
         }
-        return _transactions;
+        T[] kept = Arrays.copyOf(items, count);
+        int k = 0;
+        for (int i = 0; i < mask.length; ++i) {
+            if (mask[i]) {
+                kept[k++] = items[i];
+            }
+        }
+        return kept;
     }
 
-    private void acceptTransaction(Transaction tx) {
-        tx.finalize();
+    /**
+     * @return true if {@code tx}, which was just found invalid against {@code lookup}, can never
+     *         become valid: it is malformed, or its inputs resolve and the values or signatures
+     *         are wrong, which does not depend on when it is proposed
+     */
+    private static boolean isPermanentlyInvalid(Transaction tx, UTXOLookup lookup) {
+        return !TxValidator.isWellFormed(tx) || TxValidator.resolveInputs(tx, lookup) != null;
+    }
 
-        // Remove used coins from UTXO
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            pool.removeUTXO(utxo);
+    /**
+     * Hashes {@code possibleTxs}, on {@code executor} if not null, drops the ones the seen filter
+     * knows, then runs the rest through admission control, which reuses the hashes
+     */
+    private Transaction[] admit(Transaction[] possibleTxs, ExecutorService executor) {
+        TxHasher.hashAll(possibleTxs, executor);
+        if (seenFilter != null) {
+            // Settled transactions are dropped before any admission, lookup or signature work
+            possibleTxs = keep(possibleTxs, unseen(possibleTxs));
         }
+        if (admission == null) {
+            return possibleTxs;
+        }
+        lastAdmission = admission.admit(possibleTxs, pool);
+        return lastAdmission.getAdmitted();
+    }
 
-        // Add outputs to UTXOPool
-        for (int i = 0; i < tx.numOutputs(); ++i) {
-          Transaction.Output out = tx.getOutput(i);
-          UTXO utxo = new UTXO(tx.getHash(), i);
-          pool.addUTXO(utxo, out);
+    /**
+     * @return the Merkle tree over the transactions accepted by the last epoch, in the order they
+     *         were returned
+     */
+    public MerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    /** @return a read-only view of the current UTXO pool */
+    public UTXOLookup getUTXOLookup() {
+        return pool;
+    }
+
+    /**
+     * Keeps a {@code UTXOSetCommitment} to the UTXO pool up to date across epochs and rollbacks,
+     * so that {@link #getUTXOCommitment()} costs nothing.
+     */
+    public void enableUTXOCommitment() {
+        pool.enableCommitment();
+    }
+
+    /**
+     * @return the 32-byte commitment to the UTXO pool after the last epoch, or null if
+     *         {@link #enableUTXOCommitment()} was not called
+     */
+    public byte[] getUTXOCommitment() {
+        return pool.getCommitment();
+    }
+
+    /**
+     * Reverts the most recent epoch handled by {@link #handleTxs(Transaction[])}, restoring the
+     * outputs it spent and removing the ones it created.
+     *
+     * @return true if an epoch was rolled back, false if no undo record is left
+     */
+    public boolean rollbackEpoch() {
+        UndoRecord record = history.pop();
+        if (record == null) {
+            return false;
+        }
+        pool.rollback(record);
+        if (seenFilter != null) {
+            // Transactions of the reverted epoch may be proposed again
+            seenFilter.clear();
         }
+        return true;
+    }
+
+    /** Sets how many epochs can be rolled back with {@link #rollbackEpoch()} */
+    public void setHistoryDepth(int depth) {
+        history.setMaxDepth(depth);
+    }
+
+    /**
+     * Closes the UTXO store of the handler, flushing a disk-backed one, or deleting the temporary
+     * copy of one made by {@link #TxHandler(UTXOPool)}.
+     */
+    public void close() throws IOException {
+        pool.close();
+    }
+
+    private void acceptTransaction(Transaction tx, UTXOOverlay overlay) {
+        long start = EpochTrace.start();
+        merkleTree.add(tx.getHash());
+        overlay.applyTransaction(tx);
+        EpochTrace.end(EpochTrace.Phase.COMMIT, start);
     }
 
 }
@@ -0,0 +1,110 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Transaction hashing with one reusable SHA-256 digest per thread. {@link #hash(Transaction)}
+ * feeds the fields of {@code Transaction#getRawTx()} straight into the digest instead of
+ * building the raw bytes first, and {@link #hashAll(Transaction[], ExecutorService)} finalizes a
+ * whole epoch up front so that commit loops only update the pool.
+ */
+public class TxHasher {
+
+    /** Number of transactions hashed per task by {@link #hashAll} */
+    private static final int CHUNK_SIZE = 256;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private TxHasher() {
+    }
+
+    /** @return the SHA-256 digest of the calling thread, reset and ready for use */
+    public static MessageDigest sha256() {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md;
+    }
+
+    /** @return the hash of {@code tx}, equal to the SHA-256 of {@code tx.getRawTx()} */
+    public static byte[] hash(Transaction tx) {
+        MessageDigest md = sha256();
+        byte[] scratch = new byte[8];
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash != null) {
+                md.update(in.prevTxHash);
+            }
+            putLong(scratch, in.outputIndex, 4);
+            md.update(scratch, 0, 4);
+            if (in.signature != null) {
+                md.update(in.signature);
+            }
+        }
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            Transaction.Output op = tx.getOutput(i);
+            putLong(scratch, Double.doubleToRawLongBits(op.value), 8);
+            md.update(scratch, 0, 8);
+            PublicKey address = op.address;
+            if (address != null) {
+                md.update(address.getEncoded());
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Finalizes every transaction of {@code txs}, in chunks on {@code executor} when there are
+     * enough of them to be worth it, or on the calling thread if {@code executor} is null.
+     * Transactions that already carry a hash, such as those read by {@code TransactionCodec}, are
+     * not hashed again: adding or removing an input, output or signature clears the hash, so only
+     * a transaction changed through its public fields needs {@code setHash(null)} first.
+     */
+    public static void hashAll(final Transaction[] txs, ExecutorService executor) {
+        if (executor == null || txs.length < 2 * CHUNK_SIZE) {
+            for (int i = 0; i < txs.length; ++i) {
+                hashIfMissing(txs[i]);
+            }
+            return;
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int start = 0; start < txs.length; start += CHUNK_SIZE) {
+            final int from = start;
+            final int to = Math.min(start + CHUNK_SIZE, txs.length);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; ++i) {
+                        hashIfMissing(txs[i]);
+                    }
+                }
+            });
+        }
+        ParallelTasks.runAll(tasks, executor);
+    }
+
+    private static void hashIfMissing(Transaction tx) {
+        if (tx.getHash() == null) {
+            tx.finalize();
+        }
+    }
+
+    /** Writes the low {@code length} bytes of {@code v} big-endian into {@code out} */
+    private static void putLong(byte[] out, long v, int length) {
+        for (int i = length - 1; i >= 0; --i) {
+            out[i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.Arrays;
+
+/** Transaction hash usable as a key in hash-based collections */
+public class TxId {
+
+    /** Hash of the transaction */
+    private byte[] hash;
+
+    /** Creates a new id for the transaction whose hash is {@code hash} */
+    public TxId(byte[] hash) {
+        this.hash = Arrays.copyOf(hash, hash.length);
+    }
+
+    /** @return the id of {@code tx}, which must have been finalized */
+    public static TxId of(Transaction tx) {
+        return new TxId(tx.getHash());
+    }
+
+    /** @return the transaction hash of this id */
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public boolean equals(Object other) {
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        return Arrays.equals(hash, ((TxId) other).hash);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(hash);
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load client for {@code TxSubmissionServer}: submits transactions over several concurrent
+ * connections as fast as the server takes them and measures how long each verdict takes.
+ */
+public class TxLoadClient {
+
+    /** Outcome of a load run */
+    public static class Report {
+        private int accepted;
+        private int rejected;
+        private int malformed;
+        private int busy;
+        private long elapsedNanos;
+        private long[] latenciesNanos;
+
+        Report(int accepted, int rejected, int malformed, int busy, long elapsedNanos,
+               long[] latenciesNanos) {
+            this.accepted = accepted;
+            this.rejected = rejected;
+            this.malformed = malformed;
+            this.busy = busy;
+            this.elapsedNanos = elapsedNanos;
+            this.latenciesNanos = latenciesNanos;
+            Arrays.sort(this.latenciesNanos);
+        }
+
+        public int getAccepted() {
+            return accepted;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        public int getMalformed() {
+            return malformed;
+        }
+
+        /** @return the number of transactions the server was too busy to handle */
+        public int getBusy() {
+            return busy;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** @return the number of verdicts received per second */
+        public double throughput() {
+            return latenciesNanos.length * 1e9 / Math.max(elapsedNanos, 1);
+        }
+
+        /** @return the latency below which {@code percent} percent of the verdicts came back */
+        public long latencyPercentileNanos(double percent) {
+            if (latenciesNanos.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percent / 100 * latenciesNanos.length) - 1;
+            return latenciesNanos[Math.min(Math.max(rank, 0), latenciesNanos.length - 1)];
+        }
+
+        public String toString() {
+            return String.format("accepted=%d rejected=%d malformed=%d busy=%d tx/s=%.1f "
+                            + "p50=%.2fms p99=%.2fms max=%.2fms",
+                    accepted, rejected, malformed, busy, throughput(),
+                    latencyPercentileNanos(50) / 1e6, latencyPercentileNanos(99) / 1e6,
+                    latencyPercentileNanos(100) / 1e6);
+        }
+    }
+
+    private TxLoadClient() {
+    }
+
+    /**
+     * Submits {@code txs} to the server at {@code server}, spread round-robin over
+     * {@code connections} connections, and waits for every verdict.
+     */
+    public static Report run(InetSocketAddress server, List<Transaction> txs, int connections)
+            throws IOException, InterruptedException {
+        final ConcurrentHashMap<TxId, Long> sentAt = new ConcurrentHashMap<TxId, Long>();
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger malformed = new AtomicInteger();
+        final AtomicInteger busy = new AtomicInteger();
+        final long[] latencies = new long[txs.size()];
+        final AtomicInteger received = new AtomicInteger();
+        final List<IOException> failures = new ArrayList<IOException>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        List<Socket> sockets = new ArrayList<Socket>();
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; ++c) {
+            final List<Transaction> share = new ArrayList<Transaction>();
+            for (int i = c; i < txs.size(); i += connections) {
+                share.add(txs.get(i));
+            }
+            final Socket socket = new Socket(server.getAddress(), server.getPort());
+            socket.setTcpNoDelay(true);
+            sockets.add(socket);
+
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(socket.getOutputStream()));
+                        for (Transaction tx : share) {
+                            byte[] frame = TransactionCodec.encode(tx);
+                            tx.finalize();
+                            sentAt.put(TxId.of(tx), System.nanoTime());
+                            out.writeInt(frame.length);
+                            out.write(frame);
+                        }
+                        out.flush();
+                    } catch (IOException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            }, "tx-load-send-" + c));
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DataInputStream in = new DataInputStream(
+                                new BufferedInputStream(socket.getInputStream()));
+                        for (int i = 0; i < share.size(); ++i) {
+                            byte[] frame = new byte[in.readInt()];
+                            in.readFully(frame);
+                            long now = System.nanoTime();
+                            byte status = frame[0];
+                            if (status == TxSubmissionServer.ACCEPTED) {
+                                accepted.incrementAndGet();
+                            } else if (status == TxSubmissionServer.REJECTED) {
+                                rejected.incrementAndGet();
+                            } else if (status == TxSubmissionServer.BUSY) {
+                                busy.incrementAndGet();
+                            } else {
+                                malformed.incrementAndGet();
+                            }
+                            Long sent = frame.length > 1
+                                    ? sentAt.get(new TxId(Arrays.copyOfRange(frame, 1, frame.length)))
+                                    : null;
+                            latencies[received.getAndIncrement()] = sent == null ? 0 : now - sent;
+                        }
+                    } catch (IOException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            }, "tx-load-receive-" + c));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        return new Report(accepted.get(), rejected.get(), malformed.get(), busy.get(), elapsed,
+                Arrays.copyOf(latencies, received.get()));
+    }
+}
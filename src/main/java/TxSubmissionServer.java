@@ -0,0 +1,419 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local TCP server accepting transactions from many concurrent submitters and feeding them to an
+ * {@code EpochHandler} in epochs. A single selector thread does all the socket I/O without
+ * blocking; a second thread cuts epochs once {@code maxEpochSize} transactions are queued or the
+ * oldest queued transaction has waited {@code epochWindowMillis}, runs {@code handleTxs} and
+ * streams the verdicts back. At most {@code maxQueued} transactions wait for an epoch; the ones
+ * arriving while the queue is full are answered {@link #BUSY} at once. A connection stops being
+ * read while too many of its requests wait for their response to be sent, so a client that does
+ * not read its responses cannot pile them up on the server.
+ *
+ * <p>Requests are frames made of a 4-byte big-endian length followed by a transaction encoded
+ * with {@code TransactionCodec}. Every request gets one response frame, with the same framing: a
+ * status byte ({@link #ACCEPTED}, {@link #REJECTED}, {@link #MALFORMED} or {@link #BUSY}) followed
+ * by the hash of the transaction, by which clients match responses to requests (empty if
+ * malformed).
+ */
+public class TxSubmissionServer implements Closeable {
+
+    public static final byte REJECTED = 0;
+    public static final byte ACCEPTED = 1;
+    public static final byte MALFORMED = 2;
+    /** The transaction was not handled, because the queue was full or its epoch failed */
+    public static final byte BUSY = 3;
+
+    /** Default bound on the queued transactions, in epochs of {@code maxEpochSize} */
+    private static final int DEFAULT_QUEUED_EPOCHS = 16;
+
+    /** Largest request frame accepted; larger ones close the connection */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /** Default bound on the requests of one connection waiting for their response to be sent */
+    public static final int DEFAULT_MAX_PENDING_PER_CONNECTION = 1024;
+
+    private EpochHandler handler;
+    private int maxEpochSize;
+    private long epochWindowNanos;
+    private int maxPendingPerConnection = DEFAULT_MAX_PENDING_PER_CONNECTION;
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread ioThread;
+    private Thread epochThread;
+    private volatile boolean running;
+
+    private LinkedBlockingQueue<Submission> submissions;
+    private ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+    /** First failure of either thread, rethrown by {@link #close()} */
+    private volatile Exception failure;
+
+    /** A decoded transaction waiting for its epoch, and the connection that sent it */
+    private static class Submission {
+        final Transaction tx;
+        final Connection connection;
+        final long receivedNanos;
+
+        Submission(Transaction tx, Connection connection) {
+            this.tx = tx;
+            this.connection = connection;
+            this.receivedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Per-connection buffers; only the I/O thread touches the channel, the read buffer and the
+     * pending count
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        /** Requests read whose response is not fully sent yet */
+        int pending;
+        final ConcurrentLinkedQueue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Creates a server feeding {@code handler} with epochs of at most {@code maxEpochSize}
+     * transactions, cut at the latest {@code epochWindowMillis} after their first transaction,
+     * queueing up to 16 epochs worth of transactions.
+     */
+    public TxSubmissionServer(EpochHandler handler, int maxEpochSize, long epochWindowMillis) {
+        this(handler, maxEpochSize, epochWindowMillis,
+                (int) Math.min((long) maxEpochSize * DEFAULT_QUEUED_EPOCHS, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Creates a server feeding {@code handler} with epochs of at most {@code maxEpochSize}
+     * transactions, cut at the latest {@code epochWindowMillis} after their first transaction,
+     * answering {@link #BUSY} while {@code maxQueued} transactions wait for an epoch.
+     */
+    public TxSubmissionServer(EpochHandler handler, int maxEpochSize, long epochWindowMillis,
+                              int maxQueued) {
+        if (maxEpochSize <= 0) {
+            throw new IllegalArgumentException("maxEpochSize must be positive");
+        }
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("maxQueued must be positive");
+        }
+        this.handler = handler;
+        this.maxEpochSize = maxEpochSize;
+        this.epochWindowNanos = TimeUnit.MILLISECONDS.toNanos(epochWindowMillis);
+        this.submissions = new LinkedBlockingQueue<Submission>(maxQueued);
+    }
+
+    /**
+     * Stops reading from a connection while {@code max} of its requests wait for their response
+     * to be sent, until one is; to be called before {@link #start(int)}.
+     */
+    public void setMaxPendingPerConnection(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+        this.maxPendingPerConnection = max;
+    }
+
+    /**
+     * Starts listening on {@code port} of the loopback interface, 0 picking a free port.
+     *
+     * @return the address the server listens on
+     */
+    public InetSocketAddress start(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serveIO();
+            }
+        }, "tx-submission-io");
+        epochThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cutEpochs();
+            }
+        }, "tx-submission-epochs");
+        ioThread.start();
+        epochThread.start();
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Stops both threads and closes every connection; queued transactions are dropped.
+     *
+     * @throws IOException the first I/O failure of the server, if any
+     * @throws RuntimeException the first failure of the handler, if any
+     */
+    public void close() throws IOException {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        try {
+            if (ioThread != null) {
+                ioThread.join();
+            }
+            if (epochThread != null) {
+                epochThread.interrupt();
+                epochThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+    private void serveIO() {
+        try {
+            while (running) {
+                Connection connection;
+                while ((connection = writable.poll()) != null) {
+                    SelectionKey key = connection.channel.keyFor(selector);
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        closeQuietly(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (ClosedSelectorException e) {
+            // Closed while stopping
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+                serverChannel.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.channel.read(connection.readBuffer) < 0) {
+            closeQuietly(key);
+            return;
+        }
+        processFrames(key);
+    }
+
+    /**
+     * Handles the complete frames in the read buffer of the connection of {@code key}, as long as
+     * it has room for pending requests, and reads from it again only if it still has
+     */
+    private void processFrames(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.readBuffer;
+        buffer.flip();
+        while (connection.pending < maxPendingPerConnection && buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (buffer.remaining() < 4 + length) {
+                break;
+            }
+            buffer.getInt();
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+            ++connection.pending;
+            Transaction tx;
+            try {
+                tx = TransactionCodec.decode(frame);
+            } catch (IOException e) {
+                respond(connection, MALFORMED, new byte[0]);
+                continue;
+            }
+            if (!submissions.offer(new Submission(tx, connection))) {
+                respond(connection, BUSY, tx.getHash());
+            }
+        }
+        buffer.compact();
+        boolean full = connection.pending >= maxPendingPerConnection;
+        key.interestOps(full ? key.interestOps() & ~SelectionKey.OP_READ
+                : key.interestOps() | SelectionKey.OP_READ);
+        if (!full && !buffer.hasRemaining()) {
+            // A frame larger than the buffer is being received
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            connection.readBuffer = larger;
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        boolean paused = (key.interestOps() & SelectionKey.OP_READ) == 0;
+        ByteBuffer response;
+        while ((response = connection.responses.peek()) != null) {
+            connection.channel.write(response);
+            if (response.hasRemaining()) {
+                break;
+            }
+            connection.responses.poll();
+            --connection.pending;
+        }
+        if (response == null) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (!connection.responses.isEmpty()) {
+                // A response was queued after the loop ended
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+        if (paused && connection.pending < maxPendingPerConnection) {
+            // Frames may have been left in the read buffer when reading stopped
+            processFrames(key);
+        }
+    }
+
+    /** Batches submissions into epochs and runs them through the handler */
+    private void cutEpochs() {
+        List<Submission> epoch = new ArrayList<Submission>();
+        while (running) {
+            try {
+                if (epoch.isEmpty()) {
+                    Submission first = submissions.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    epoch.add(first);
+                }
+                long deadline = epoch.get(0).receivedNanos + epochWindowNanos;
+                while (epoch.size() < maxEpochSize) {
+                    long wait = deadline - System.nanoTime();
+                    Submission next = wait > 0 ? submissions.poll(wait, TimeUnit.NANOSECONDS)
+                            : submissions.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    epoch.add(next);
+                }
+                runEpoch(epoch);
+                epoch = new ArrayList<Submission>();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void runEpoch(List<Submission> epoch) {
+        Transaction[] possibleTxs = new Transaction[epoch.size()];
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            possibleTxs[i] = epoch.get(i).tx;
+        }
+        Transaction[] accepted;
+        try {
+            accepted = handler.handleTxs(possibleTxs);
+        } catch (RuntimeException e) {
+            // Nothing is known about the epoch, so every transaction may be submitted again
+            fail(e);
+            for (Submission submission : epoch) {
+                respond(submission.connection, BUSY, submission.tx.getHash());
+            }
+            selector.wakeup();
+            return;
+        }
+        IdentityHashMap<Transaction, Boolean> acceptedSet = new IdentityHashMap<Transaction, Boolean>();
+        for (int i = 0; i < accepted.length; ++i) {
+            acceptedSet.put(accepted[i], Boolean.TRUE);
+        }
+        for (Submission submission : epoch) {
+            byte status = acceptedSet.containsKey(submission.tx) ? ACCEPTED : REJECTED;
+            respond(submission.connection, status, submission.tx.getHash());
+        }
+        selector.wakeup();
+    }
+
+    private void respond(Connection connection, byte status, byte[] hash) {
+        connection.responses.add(response(status, hash));
+        writable.add(connection);
+    }
+
+    /** Records {@code e} if it is the first failure */
+    private synchronized void fail(Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private static ByteBuffer response(byte status, byte[] hash) {
+        ByteBuffer response = ByteBuffer.allocate(4 + 1 + hash.length);
+        response.putInt(1 + hash.length);
+        response.put(status);
+        response.put(hash);
+        response.flip();
+        return response;
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+ * Validation rules shared by {@code TxHandler} and {@code MaxFeeTxHandler}, evaluated against any
+ * {@code UTXOLookup}.
+ */
+public class TxValidator {
+
+    private TxValidator() {
+    }
+
+    /**
+     * @return true if:
+     * (1) all outputs claimed by {@code tx} are in {@code pool},
+     * (2) the signatures on each input of {@code tx} are valid,
+     * (3) no UTXO is claimed multiple times by {@code tx},
+     * (4) all of {@code tx}s output values are non-negative, and
+     * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
+     *     values; and false otherwise.
+     */
+    public static boolean isValidTx(Transaction tx, UTXOLookup pool) {
+        return isValidTx(tx, pool, null);
+    }
+
+    /**
+     * Same as {@link #isValidTx(Transaction, UTXOLookup)}, reusing the signature checks of
+     * {@code pre} for every input that still resolves to an output with the same address. The
+     * rules are checked cheapest first, so signatures are only verified for transactions that
+     * pass every other rule.
+     */
+    static boolean isValidTx(Transaction tx, UTXOLookup pool, PrevalidatedTx pre) {
+        long start = EpochTrace.start();
+        boolean valid = checkTx(tx, pool, pre);
+        EpochTrace.endTx(tx, start, valid);
+        return valid;
+    }
+
+    private static boolean checkTx(Transaction tx, UTXOLookup pool, PrevalidatedTx pre) {
+        if (!isWellFormed(tx)) {
+            return false;
+        }
+        long lookup = EpochTrace.start();
+        Transaction.Output[] spent = resolveInputs(tx, pool);
+        EpochTrace.end(EpochTrace.Phase.LOOKUP, lookup);
+        if (spent == null || inputSum(spent) < outputSum(tx)) {
+            return false;
+        }
+
+        // Check if the signatures on each input of {@code tx} are valid
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            if (pre != null && pre.isResolvedTo(i, spent[i])) {
+                if (!pre.isSignatureValid(i)) {
+                    return false;
+                }
+                continue;
+            }
+            long serialize = EpochTrace.start();
+            byte[] data = tx.getRawDataToSign(i);
+            EpochTrace.end(EpochTrace.Phase.SERIALIZE, serialize);
+            if (!Crypto.verifySignature(spent[i].address, data, in.signature)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every input of {@code tx} carries a signature, no UTXO is claimed multiple
+     *         times and all output values are non-negative. Needs no lookups.
+     */
+    public static boolean isWellFormed(Transaction tx) {
+        // No UTXO is claimed multiple times by {@code tx}
+        Set<UTXO> utxos = new HashSet<UTXO>();
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash == null || in.signature == null) {
+                return false;
+            }
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (!utxos.add(utxo)) {
+                return false;
+            }
+        }
+
+        // All of {@code tx}s output values are non-negative
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            Transaction.Output out = tx.getOutput(i);
+            if (out.value < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the output claimed by each input of {@code tx}, or null if any of them is not in
+     *         {@code pool}
+     */
+    public static Transaction.Output[] resolveInputs(Transaction tx, UTXOLookup pool) {
+        Transaction.Output[] spent = new Transaction.Output[tx.numInputs()];
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash == null || !pool.mightContain(in.prevTxHash, in.outputIndex)) {
+                return null;
+            }
+            spent[i] = pool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+            if (spent[i] == null) {
+                return null;
+            }
+        }
+        return spent;
+    }
+
+    /** @return the sum of the values of {@code outputs} */
+    public static double inputSum(Transaction.Output[] outputs) {
+        double sum = 0;
+        for (int i = 0; i < outputs.length; ++i) {
+            sum += outputs[i].value;
+        }
+        return sum;
+    }
+
+    /** @return the sum of the output values of {@code tx} */
+    public static double outputSum(Transaction tx) {
+        double sum = 0;
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            sum += tx.getOutput(i).value;
+        }
+        return sum;
+    }
+}
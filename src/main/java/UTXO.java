@@ -1,7 +1,32 @@
 import java.util.Arrays;
+import java.util.Comparator;
 
 public class UTXO implements Comparable<UTXO> {
 
+    /**
+     * Orders UTXOs by transaction hash (unsigned bytes, shorter prefixes first), then by index,
+     * so that all outputs of a transaction, and all transactions sharing a hash prefix, are
+     * adjacent. Unlike {@link #compareTo(UTXO)}, which orders by index first, this order supports
+     * range scans.
+     */
+    public static final Comparator<UTXO> HASH_ORDER = new Comparator<UTXO>() {
+        @Override
+        public int compare(UTXO u1, UTXO u2) {
+            byte[] h1 = u1.txHash;
+            byte[] h2 = u2.txHash;
+            for (int i = 0; i < h1.length && i < h2.length; ++i) {
+                int cmp = (h1[i] & 0xff) - (h2[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            if (h1.length != h2.length) {
+                return h1.length - h2.length;
+            }
+            return Integer.compare(u1.index, u2.index);
+        }
+    };
+
     /** Hash of the transaction from which this UTXO originates */
     private byte[] txHash;
 
@@ -0,0 +1,23 @@
+/**
+ * Read-only view of a set of unspent transaction outputs, as needed to validate a transaction.
+ */
+public interface UTXOLookup {
+
+    /** @return true if UTXO {@code utxo} is unspent in this view and false otherwise */
+    boolean contains(UTXO utxo);
+
+    /**
+     * @return the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is
+     *         not in this view.
+     */
+    Transaction.Output getTxOutput(UTXO utxo);
+
+    /**
+     * @return false if the UTXO with index {@code index} in the transaction with hash
+     *         {@code txHash} is definitely not in this view, true if it may be. Lets callers skip
+     *         building a {@code UTXO} for inputs that cannot be resolved.
+     */
+    default boolean mightContain(byte[] txHash, int index) {
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Epoch-local view over a {@code UTXOLookup}: outputs created and UTXOs spent are kept in the
+ * overlay instead of touching the underlying pool, and an output created and then spent within
+ * the overlay simply disappears. {@link #applyTo(UTXOPool)} writes the net delta to a pool.
+ */
+public class UTXOOverlay implements UTXOLookup {
+
+    private UTXOLookup base;
+
+    /** Outputs created in this overlay and not spent since */
+    private HashMap<UTXO, Transaction.Output> created;
+
+    /** UTXOs of the base view spent in this overlay */
+    private HashSet<UTXO> spent;
+
+    /** Creates an empty overlay over {@code base} */
+    public UTXOOverlay(UTXOLookup base) {
+        this.base = base;
+        this.created = new HashMap<UTXO, Transaction.Output>();
+        this.spent = new HashSet<UTXO>();
+    }
+
+    public boolean contains(UTXO utxo) {
+        return created.containsKey(utxo) || (!spent.contains(utxo) && base.contains(utxo));
+    }
+
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        Transaction.Output out = created.get(utxo);
+        if (out != null || spent.contains(utxo)) {
+            return out;
+        }
+        return base.getTxOutput(utxo);
+    }
+
+    /** Adds a mapping from UTXO {@code utxo} to transaction output {@code txOut} */
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        created.put(utxo, txOut);
+    }
+
+    /** Removes the UTXO {@code utxo} from this view */
+    public void removeUTXO(UTXO utxo) {
+        if (created.remove(utxo) == null) {
+            spent.add(utxo);
+        }
+    }
+
+    /** Spends the inputs of {@code tx} and adds its outputs; {@code tx} must be finalized */
+    public void applyTransaction(Transaction tx) {
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+        }
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+    }
+
+    /** @return the number of changes {@link #applyTo(UTXOPool)} would make */
+    public int size() {
+        return created.size() + spent.size();
+    }
+
+    /** Writes the net changes of this overlay to {@code pool} */
+    public void applyTo(UTXOPool pool) {
+        for (UTXO utxo : spent) {
+            pool.removeUTXO(utxo);
+        }
+        for (Map.Entry<UTXO, Transaction.Output> entry : created.entrySet()) {
+            pool.addUTXO(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -1,33 +1,364 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
-public class UTXOPool {
+public class UTXOPool implements UTXOLookup, Closeable {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
+
+    /** Undo record collecting the changes of the current epoch, or null if none is open */
+    private UndoRecord journal;
+
+    /** Filter answering "definitely absent" for most missing UTXOs, or null if disabled */
+    private CuckooFilter negativeFilter;
+    private double negativeFilterRate;
+
+    /** Commitment to the current contents, or null if not maintained */
+    private UTXOSetCommitment commitment;
+
+    /** UTXOs sorted by transaction hash, or null if not maintained */
+    private OrderedUTXOIndex orderedIndex;
+
+    /**
+     * Outputs loaded by {@link #prefetch}, with {@code ABSENT} for UTXOs found missing, or null.
+     * Updated UTXOs are dropped from it so that lookups see the backing store again.
+     */
+    private volatile ConcurrentHashMap<UTXO, Transaction.Output> prefetched;
+
+    /** Number of UTXOs fetched per task by {@link #prefetch} */
+    private static final int PREFETCH_CHUNK = 512;
+
+    private static final Transaction.Output ABSENT = new Transaction().new Output(0, null);
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new ShardedUTXOStore();
+    }
+
+    /**
+     * Creates a new empty UTXOPool split into {@code shardCount} shards, presized for
+     * {@code expectedSize} UTXOs
+     */
+    public UTXOPool(int shardCount, int expectedSize) {
+        H = new ShardedUTXOStore(shardCount, expectedSize);
+    }
+
+    /**
+     * Creates a new UTXOPool backed by {@code store}, which may already hold UTXOs. The pool takes
+     * ownership of the store.
+     */
+    public UTXOPool(UTXOStore store) {
+        H = store;
     }
 
     /** Creates a new UTXOPool that is a copy of {@code uPool} */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+        if (uPool.negativeFilter != null) {
+            negativeFilter = new CuckooFilter(uPool.negativeFilter);
+            negativeFilterRate = uPool.negativeFilterRate;
+        }
+        if (uPool.commitment != null) {
+            commitment = new UTXOSetCommitment(uPool.commitment);
+        }
+        if (uPool.orderedIndex != null) {
+            orderedIndex = new OrderedUTXOIndex(uPool.orderedIndex.all());
+        }
     }
 
-    /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
+    /**
+     * Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool. Lookups
+     * may run concurrently with updates unless the negative-lookup filter is enabled; updates
+     * themselves must come from one thread at a time.
+     */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        Transaction.Output replaced = store(utxo, txOut);
+        if (journal != null) {
+            journal.recordCreate(utxo, txOut, replaced);
+        }
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        Transaction.Output removed = unstore(utxo);
+        if (journal != null && removed != null) {
+            journal.recordSpend(utxo, removed);
+        }
+    }
+
+    /** Adds every mapping of {@code entries} to the pool */
+    public void addAll(Map<UTXO, Transaction.Output> entries) {
+        if (hasHooks()) {
+            for (Map.Entry<UTXO, Transaction.Output> entry : entries.entrySet()) {
+                addUTXO(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        H.putAll(entries);
+    }
+
+    /** Removes every UTXO of {@code utxos} from the pool */
+    public void removeAll(Collection<UTXO> utxos) {
+        if (hasHooks()) {
+            for (UTXO utxo : utxos) {
+                removeUTXO(utxo);
+            }
+            return;
+        }
+        H.removeAll(utxos);
+    }
+
+    /** @return true if every UTXO of {@code utxos} is in the pool and false otherwise */
+    public boolean containsAll(Collection<UTXO> utxos) {
+        return H.containsAll(utxos);
+    }
+
+    /**
+     * @return the outputs of the UTXOs of {@code utxos} that are in the pool, looked up as one
+     *         batch in storage order
+     */
+    public Map<UTXO, Transaction.Output> getTxOutputs(Collection<UTXO> utxos) {
+        return H.getAll(inStorageOrder(utxos));
+    }
+
+    /**
+     * Resolves every input of {@code txs} as a batch, see {@link #prefetch}. Handlers call this at
+     * the start of an epoch.
+     */
+    public void prefetchInputs(Transaction[] txs, ExecutorService executor) {
+        if (H instanceof ShardedUTXOStore) {
+            return;
+        }
+        Set<UTXO> inputs = new HashSet<UTXO>();
+        for (Transaction tx : txs) {
+            for (int i = 0; i < tx.numInputs(); ++i) {
+                Transaction.Input in = tx.getInput(i);
+                if (in.prevTxHash != null) {
+                    inputs.add(new UTXO(in.prevTxHash, in.outputIndex));
+                }
+            }
+        }
+        prefetch(inputs, executor);
+    }
+
+    /**
+     * Looks {@code utxos} up in the backing store in sorted batches, spread over {@code executor}
+     * if not null so that misses of a disk-backed store overlap, and keeps the results until
+     * {@link #releasePrefetch()}; lookups of those UTXOs then cost no I/O. Does nothing for the
+     * in-memory store.
+     */
+    public void prefetch(Collection<UTXO> utxos, ExecutorService executor) {
+        if (H instanceof ShardedUTXOStore) {
+            return;
+        }
+        final List<UTXO> sorted = inStorageOrder(utxos);
+        final ConcurrentHashMap<UTXO, Transaction.Output> loaded =
+                new ConcurrentHashMap<UTXO, Transaction.Output>(sorted.size() * 2);
+        if (executor == null || sorted.size() < 2 * PREFETCH_CHUNK) {
+            loaded.putAll(H.getAll(sorted));
+        } else {
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            for (int start = 0; start < sorted.size(); start += PREFETCH_CHUNK) {
+                final List<UTXO> chunk = sorted.subList(start,
+                        Math.min(start + PREFETCH_CHUNK, sorted.size()));
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        loaded.putAll(H.getAll(chunk));
+                    }
+                });
+            }
+            ParallelTasks.runAll(tasks, executor);
+        }
+        for (UTXO utxo : sorted) {
+            if (!loaded.containsKey(utxo)) {
+                loaded.put(utxo, ABSENT);
+            }
+        }
+        prefetched = loaded;
+    }
+
+    /** Drops the outputs kept by {@link #prefetch} */
+    public void releasePrefetch() {
+        prefetched = null;
+    }
+
+    /**
+     * Puts a cuckoo filter in front of the pool, so that lookups of UTXOs that are not in the pool
+     * are mostly answered without probing the backing store. The filter is sized for
+     * {@code expectedSize} UTXOs and grows when it fills up.
+     */
+    public void enableNegativeLookupFilter(int expectedSize, double falsePositiveRate) {
+        negativeFilterRate = falsePositiveRate;
+        rebuildNegativeFilter(Math.max(expectedSize, H.size()));
+    }
+
+    /** Removes the negative-lookup filter */
+    public void disableNegativeLookupFilter() {
+        negativeFilter = null;
+    }
+
+    /** @return the negative-lookup filter, for memory and false-positive reporting, or null */
+    public CuckooFilter getNegativeLookupFilter() {
+        return negativeFilter;
+    }
+
+    /**
+     * @return false if the UTXO with index {@code index} in the transaction with hash
+     *         {@code txHash} is definitely not in the pool, true if it may be
+     */
+    public boolean mightContain(byte[] txHash, int index) {
+        return negativeFilter == null || negativeFilter.mightContain(txHash, index);
+    }
+
+    /**
+     * Starts maintaining a {@code UTXOSetCommitment} to the contents of the pool, updated on every
+     * change. Computing the initial commitment takes one pass over the pool.
+     */
+    public void enableCommitment() {
+        UTXOSetCommitment initial = new UTXOSetCommitment();
+        for (UTXO utxo : H.keys()) {
+            initial.add(utxo, H.get(utxo));
+        }
+        commitment = initial;
+    }
+
+    /** Stops maintaining the commitment */
+    public void disableCommitment() {
+        commitment = null;
+    }
+
+    /** @return the 32-byte commitment to the current contents, or null if not maintained */
+    public byte[] getCommitment() {
+        return commitment == null ? null : commitment.digest();
+    }
+
+    /**
+     * Starts maintaining an {@code OrderedUTXOIndex} of the pool, which makes
+     * {@link #getUTXOsOf(byte[])}, {@link #scanPrefix(byte[], int)} and
+     * {@link #getAllUTXOInHashOrder()} cost O(log n) plus the size of their result.
+     */
+    public void enableOrderedIndex() {
+        orderedIndex = new OrderedUTXOIndex(H.keys());
+    }
+
+    /** Stops maintaining the ordered index */
+    public void disableOrderedIndex() {
+        orderedIndex = null;
+    }
+
+    /**
+     * @return the UTXOs of the transaction with hash {@code txHash} still in the pool, by index.
+     *         Scans the whole pool unless the ordered index is enabled.
+     */
+    public List<UTXO> getUTXOsOf(byte[] txHash) {
+        if (orderedIndex != null) {
+            return orderedIndex.outputsOf(txHash);
+        }
+        return scanPrefix(txHash, Integer.MAX_VALUE, txHash.length);
+    }
+
+    /**
+     * @return up to {@code limit} UTXOs whose transaction hash starts with {@code prefix}, in
+     *         {@link UTXO#HASH_ORDER}. Scans the whole pool unless the ordered index is enabled.
+     */
+    public List<UTXO> scanPrefix(byte[] prefix, int limit) {
+        if (orderedIndex != null) {
+            return orderedIndex.scanPrefix(prefix, limit);
+        }
+        return scanPrefix(prefix, limit, -1);
+    }
+
+    /** @return all UTXOs in the pool, in {@link UTXO#HASH_ORDER} */
+    public ArrayList<UTXO> getAllUTXOInHashOrder() {
+        if (orderedIndex != null) {
+            return orderedIndex.all();
+        }
+        ArrayList<UTXO> utxos = H.keys();
+        Collections.sort(utxos, UTXO.HASH_ORDER);
+        return utxos;
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * @return the number of UTXOs in each shard of the pool, or a single count if the backing
+     *         store is not sharded
+     */
+    public int[] shardSizes() {
+        if (H instanceof ShardedUTXOStore) {
+            return ((ShardedUTXOStore) H).shardSizes();
+        }
+        return new int[] {H.size()};
+    }
+
+    /**
+     * Writes updates buffered by the backing store through, if it buffers any. Handlers call this
+     * at the end of every epoch.
+     */
+    public void flush() {
+        if (H instanceof Flushable) {
+            try {
+                ((Flushable) H).flush();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to flush the UTXO store", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the backing store if it holds resources, such as the files of an
+     * {@code LsmUTXOStore} or of the temporary copy made by {@link #UTXOPool(UTXOPool)}.
+     */
+    public void close() throws IOException {
+        if (H instanceof Closeable) {
+            ((Closeable) H).close();
+        }
+    }
+
+    /**
+     * Starts recording every change made to the pool into a new {@code UndoRecord}, until
+     * {@link #endUndoRecord()} is called.
+     */
+    public void beginUndoRecord() {
+        journal = new UndoRecord();
+    }
+
+    /** Stops recording changes and returns the record collected since {@link #beginUndoRecord()} */
+    public UndoRecord endUndoRecord() {
+        UndoRecord record = journal;
+        journal = null;
+        return record;
+    }
+
+    /**
+     * Reverts the changes described by {@code record}: created UTXOs are removed and spent ones are
+     * put back. Records must be rolled back newest first.
+     */
+    public void rollback(UndoRecord record) {
+        for (UTXO utxo : record.getCreated()) {
+            unstore(utxo);
+        }
+        for (Map.Entry<UTXO, Transaction.Output> entry : record.getSpent().entrySet()) {
+            store(entry.getKey(), entry.getValue());
+        }
     }
 
     /**
@@ -35,21 +366,124 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
+        if (negativeFilter != null && !negativeFilter.mightContain(ut.getTxHash(), ut.getIndex())) {
+            return null;
+        }
+        ConcurrentHashMap<UTXO, Transaction.Output> loaded = prefetched;
+        if (loaded != null) {
+            Transaction.Output txOut = loaded.get(ut);
+            if (txOut != null) {
+                return txOut == ABSENT ? null : txOut;
+            }
+        }
         return H.get(ut);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        if (negativeFilter != null
+                && !negativeFilter.mightContain(utxo.getTxHash(), utxo.getIndex())) {
+            return false;
+        }
+        ConcurrentHashMap<UTXO, Transaction.Output> loaded = prefetched;
+        if (loaded != null) {
+            Transaction.Output txOut = loaded.get(utxo);
+            if (txOut != null) {
+                return txOut != ABSENT;
+            }
+        }
+        return H.contains(utxo);
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
+        return H.keys();
+    }
+
+    /** Puts {@code txOut} in the backing store, returning the output it replaced */
+    private Transaction.Output store(UTXO utxo, Transaction.Output txOut) {
+        Transaction.Output replaced = H.put(utxo, txOut);
+        if (prefetched != null) {
+            prefetched.remove(utxo);
+        }
+        if (negativeFilter != null && replaced == null
+                && !negativeFilter.add(utxo.getTxHash(), utxo.getIndex())) {
+            rebuildNegativeFilter(negativeFilter.capacity() * 2);
+        }
+        if (orderedIndex != null && replaced == null) {
+            orderedIndex.add(utxo);
+        }
+        if (commitment != null) {
+            if (replaced != null) {
+                commitment.remove(utxo, replaced);
+            }
+            commitment.add(utxo, txOut);
+        }
+        return replaced;
+    }
+
+    /** Removes {@code utxo} from the backing store, returning the output it mapped to */
+    private Transaction.Output unstore(UTXO utxo) {
+        Transaction.Output removed = H.remove(utxo);
+        if (prefetched != null) {
+            prefetched.remove(utxo);
+        }
+        if (negativeFilter != null && removed != null) {
+            negativeFilter.remove(utxo.getTxHash(), utxo.getIndex());
+        }
+        if (commitment != null && removed != null) {
+            commitment.remove(utxo, removed);
+        }
+        if (orderedIndex != null && removed != null) {
+            orderedIndex.remove(utxo);
+        }
+        return removed;
+    }
+
+    /** @return the UTXOs of {@code utxos} that may be in the pool, sorted by hash */
+    private List<UTXO> inStorageOrder(Collection<UTXO> utxos) {
+        List<UTXO> sorted = new ArrayList<UTXO>(utxos.size());
+        for (UTXO utxo : utxos) {
+            if (negativeFilter == null
+                    || negativeFilter.mightContain(utxo.getTxHash(), utxo.getIndex())) {
+                sorted.add(utxo);
+            }
+        }
+        Collections.sort(sorted, UTXO.HASH_ORDER);
+        return sorted;
+    }
+
+    /** @return true if updates must go through {@code store} and {@code unstore} one by one */
+    private boolean hasHooks() {
+        return journal != null || negativeFilter != null || commitment != null
+                || orderedIndex != null || prefetched != null;
+    }
+
+    /**
+     * Linear scan for UTXOs whose hash starts with {@code prefix}, and has exactly
+     * {@code hashLength} bytes unless it is negative
+     */
+    private List<UTXO> scanPrefix(byte[] prefix, int limit, int hashLength) {
+        List<UTXO> found = new ArrayList<UTXO>();
+        for (UTXO utxo : H.keys()) {
+            byte[] hash = utxo.getTxHash();
+            if (hash.length >= prefix.length && (hashLength < 0 || hash.length == hashLength)
+                    && Arrays.equals(Arrays.copyOf(hash, prefix.length), prefix)) {
+                found.add(utxo);
+            }
+        }
+        Collections.sort(found, UTXO.HASH_ORDER);
+        return found.size() > limit ? new ArrayList<UTXO>(found.subList(0, limit)) : found;
+    }
+
+    private void rebuildNegativeFilter(int capacity) {
+        CuckooFilter filter = new CuckooFilter(capacity, negativeFilterRate);
+        for (UTXO utxo : H.keys()) {
+            if (!filter.add(utxo.getTxHash(), utxo.getIndex())) {
+                rebuildNegativeFilter(capacity * 2);
+                return;
+            }
         }
-        return allUTXO;
+        negativeFilter = filter;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Order-independent commitment to a set of UTXOs: the sum modulo 2^256 of the SHA-256 hashes of
+ * its entries (outpoint, value and address). Adding or removing an entry costs one hash and one
+ * 256-bit addition, so a pool can keep its commitment current on every update, and two pools
+ * hold the same UTXOs exactly when (up to hash collisions) their commitments are equal.
+ */
+public class UTXOSetCommitment {
+
+    /** The running sum, least significant 64-bit limb first */
+    private long[] sum = new long[4];
+
+    /** Creates the commitment to the empty set */
+    public UTXOSetCommitment() {
+    }
+
+    /** Creates a copy of {@code other} */
+    public UTXOSetCommitment(UTXOSetCommitment other) {
+        this.sum = Arrays.copyOf(other.sum, other.sum.length);
+    }
+
+    /** Adds the mapping from {@code utxo} to {@code txOut} to the committed set */
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        long[] h = hash(utxo, txOut);
+        long carry = 0;
+        for (int i = 0; i < sum.length; ++i) {
+            long s = sum[i] + h[i];
+            long c = Long.compareUnsigned(s, sum[i]) < 0 ? 1 : 0;
+            sum[i] = s + carry;
+            carry = c | (carry == 1 && sum[i] == 0 ? 1 : 0);
+        }
+    }
+
+    /** Removes the mapping from {@code utxo} to {@code txOut} from the committed set */
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        long[] h = hash(utxo, txOut);
+        long borrow = 0;
+        for (int i = 0; i < sum.length; ++i) {
+            long d = sum[i] - h[i];
+            long b = Long.compareUnsigned(sum[i], h[i]) < 0 ? 1 : 0;
+            sum[i] = d - borrow;
+            borrow = b | (borrow == 1 && d == 0 ? 1 : 0);
+        }
+    }
+
+    /** @return the 32-byte big-endian value of the commitment */
+    public byte[] digest() {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        for (int i = sum.length - 1; i >= 0; --i) {
+            buffer.putLong(sum[i]);
+        }
+        return buffer.array();
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof UTXOSetCommitment)) {
+            return false;
+        }
+        return Arrays.equals(sum, ((UTXOSetCommitment) other).sum);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(sum);
+    }
+
+    private static long[] hash(UTXO utxo, Transaction.Output txOut) {
+        MessageDigest md = TxHasher.sha256();
+        byte[] txHash = utxo.getTxHash();
+        ByteBuffer fixed = ByteBuffer.allocate(4 + 4 + 8);
+        fixed.putInt(txHash.length).putInt(utxo.getIndex()).putLong(
+                Double.doubleToLongBits(txOut.value));
+        md.update(fixed.array());
+        md.update(txHash);
+        if (txOut.address != null) {
+            md.update(txOut.address.getEncoded());
+        }
+        ByteBuffer digest = ByteBuffer.wrap(md.digest());
+        long[] limbs = new long[4];
+        for (int i = limbs.length - 1; i >= 0; --i) {
+            limbs[i] = digest.getLong();
+        }
+        return limbs;
+    }
+}
@@ -0,0 +1,415 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact checkpoint format for a {@code UTXOPool}. Addresses are stored once in an address
+ * table and referred to by id; UTXOs are sorted by transaction hash then index and split into
+ * Deflater-compressed blocks, where consecutive outputs of the same transaction share one copy of
+ * its hash. A block index at the end of the file lets the blocks be decompressed and inserted in
+ * parallel.
+ *
+ * <p>Layout: header (magic, version, UTXO count), address table, blocks, block index (offset,
+ * compressed length and UTXO count of each block), then the offset of the block index and the
+ * magic again.
+ */
+public class UTXOSnapshot {
+
+    /** Default number of UTXOs per block */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    static final int MAGIC = 0x55545853;
+    static final int VERSION = 1;
+
+    /** Number of addresses decoded per task while loading */
+    private static final int ADDRESS_CHUNK = 256;
+
+    private UTXOSnapshot() {
+    }
+
+    /** Writes a snapshot of {@code pool} to {@code file} with the default block size */
+    public static void write(UTXOPool pool, File file) throws IOException {
+        write(pool, file, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Writes a snapshot of {@code pool} to {@code file}, with {@code blockSize} UTXOs per block.
+     * The snapshot goes to a temporary file first and replaces {@code file} once complete.
+     */
+    public static void write(UTXOPool pool, File file, int blockSize) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            write(pool, out, blockSize);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes a snapshot of {@code pool} to {@code file} on {@code executor}. The pool is copied
+     * first, on the calling thread, so it may be updated as soon as this method returns; the copy
+     * is closed once written.
+     *
+     * @return a future completing with {@code file} once the snapshot is written
+     */
+    public static Future<File> writeInBackground(UTXOPool pool, final File file,
+                                                 ExecutorService executor) {
+        final UTXOPool copy = new UTXOPool(pool);
+        return executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                try {
+                    write(copy, file);
+                } finally {
+                    copy.close();
+                }
+                return file;
+            }
+        });
+    }
+
+    private static void write(UTXOPool pool, OutputStream out, int blockSize) throws IOException {
+        List<UTXO> utxos = pool.getAllUTXOInHashOrder();
+        Transaction.Output[] outputs = new Transaction.Output[utxos.size()];
+        for (int i = 0; i < outputs.length; ++i) {
+            outputs[i] = pool.getTxOutput(utxos.get(i));
+        }
+
+        // Header and address table
+        HashMap<PublicKey, Integer> addressIds = new HashMap<PublicKey, Integer>();
+        List<PublicKey> addresses = new ArrayList<PublicKey>();
+        for (int i = 0; i < outputs.length; ++i) {
+            if (!addressIds.containsKey(outputs[i].address)) {
+                addressIds.put(outputs[i].address, addresses.size());
+                addresses.add(outputs[i].address);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(utxos.size());
+        header.writeInt(addresses.size());
+        for (PublicKey address : addresses) {
+            TransactionCodec.writeAddress(address, header);
+        }
+        header.flush();
+        bytes.writeTo(out);
+        long offset = bytes.size();
+
+        // Blocks
+        int blockCount = (utxos.size() + blockSize - 1) / blockSize;
+        long[] offsets = new long[blockCount];
+        int[] lengths = new int[blockCount];
+        int[] counts = new int[blockCount];
+        Deflater deflater = new Deflater();
+        try {
+            for (int b = 0; b < blockCount; ++b) {
+                int from = b * blockSize;
+                int to = Math.min(from + blockSize, utxos.size());
+                byte[] block = compress(encodeBlock(utxos, outputs, from, to, addressIds),
+                        deflater);
+                out.write(block);
+                offsets[b] = offset;
+                lengths[b] = block.length;
+                counts[b] = to - from;
+                offset += block.length;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        // Block index and trailer
+        DataOutputStream index = new DataOutputStream(out);
+        index.writeInt(blockCount);
+        for (int b = 0; b < blockCount; ++b) {
+            index.writeLong(offsets[b]);
+            index.writeInt(lengths[b]);
+            index.writeInt(counts[b]);
+        }
+        index.writeLong(offset);
+        index.writeInt(MAGIC);
+        index.flush();
+    }
+
+    private static byte[] encodeBlock(List<UTXO> utxos, Transaction.Output[] outputs, int from,
+                                      int to, Map<PublicKey, Integer> addressIds)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] previousHash = null;
+        for (int i = from; i < to; ++i) {
+            UTXO utxo = utxos.get(i);
+            if (Arrays.equals(utxo.getTxHash(), previousHash)) {
+                out.writeByte(0);
+            } else {
+                previousHash = utxo.getTxHash();
+                out.writeByte(1);
+                writeVarInt(previousHash.length, out);
+                out.write(previousHash);
+            }
+            writeVarInt(utxo.getIndex(), out);
+            out.writeDouble(outputs[i].value);
+            writeVarInt(addressIds.get(outputs[i].address), out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] compress(byte[] data, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Loads the snapshot in {@code file} into a new pool, decoding addresses and blocks in
+     * parallel on {@code executor}.
+     */
+    public static UTXOPool load(File file, ExecutorService executor) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < 12) {
+                throw new IOException("Truncated snapshot");
+            }
+            DataInputStream trailer = new DataInputStream(
+                    new ByteArrayInputStream(read(channel, length - 12, 12)));
+            long indexOffset = trailer.readLong();
+            if (trailer.readInt() != MAGIC || indexOffset < 0 || indexOffset > length - 12) {
+                throw new IOException("Not a UTXO snapshot");
+            }
+
+            channel.position(0);
+            DataInputStream header = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel)));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                throw new IOException("Unsupported snapshot version");
+            }
+            int size = header.readInt();
+            if (size < 0) {
+                throw new IOException("Invalid UTXO count " + size);
+            }
+            final PublicKey[] addresses = readAddresses(header, executor);
+
+            int indexLength = (int) (length - 12 - indexOffset);
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(
+                    read(channel, indexOffset, indexLength)));
+            int blockCount = index.readInt();
+            if (blockCount < 0 || blockCount > (indexLength - 4) / 16) {
+                throw new IOException("Invalid block count " + blockCount);
+            }
+            // A fresh pool has no undo record or filter, so blocks can be added concurrently
+            final UTXOPool pool = new UTXOPool(ShardedUTXOStore.DEFAULT_SHARDS, size);
+            List<Runnable> tasks = new ArrayList<Runnable>(blockCount);
+            long total = 0;
+            for (int b = 0; b < blockCount; ++b) {
+                final long offset = index.readLong();
+                final int compressedLength = index.readInt();
+                final int count = index.readInt();
+                if (offset < 0 || compressedLength < 0 || count < 0
+                        || offset + compressedLength > indexOffset) {
+                    throw new IOException("Invalid index entry for block " + b);
+                }
+                total += count;
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            byte[] block = decompress(read(channel, offset, compressedLength));
+                            pool.addAll(decodeBlock(block, count, addresses));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            }
+            if (total != size) {
+                throw new IOException("Block index does not match UTXO count");
+            }
+            runAll(tasks, executor);
+            return pool;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Reads the address table, decoding the keys in parallel */
+    private static PublicKey[] readAddresses(DataInputStream in, ExecutorService executor)
+            throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid address count " + count);
+        }
+        final String[] algorithms = new String[count];
+        final byte[][] encoded = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            algorithms[i] = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > TransactionCodec.MAX_FIELD_LENGTH) {
+                throw new IOException("Invalid address length " + length);
+            }
+            encoded[i] = new byte[length];
+            in.readFully(encoded[i]);
+        }
+
+        final PublicKey[] addresses = new PublicKey[count];
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int start = 0; start < count; start += ADDRESS_CHUNK) {
+            final int from = start;
+            final int to = Math.min(start + ADDRESS_CHUNK, count);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = from; i < to; ++i) {
+                            addresses[i] = TransactionCodec.decodeAddress(algorithms[i],
+                                    encoded[i]);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+        runAll(tasks, executor);
+        return addresses;
+    }
+
+    private static Map<UTXO, Transaction.Output> decodeBlock(byte[] block, int count,
+                                                             PublicKey[] addresses)
+            throws IOException {
+        Map<UTXO, Transaction.Output> entries = new HashMap<UTXO, Transaction.Output>(count * 2);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        byte[] hash = null;
+        Transaction dummy = new Transaction();
+        for (int i = 0; i < count; ++i) {
+            if (in.readByte() != 0) {
+                int length = readVarInt(in);
+                if (length < 0 || length > TransactionCodec.MAX_FIELD_LENGTH) {
+                    throw new IOException("Invalid hash length " + length);
+                }
+                hash = new byte[length];
+                in.readFully(hash);
+            } else if (hash == null) {
+                throw new IOException("Block starts without a hash");
+            }
+            int index = readVarInt(in);
+            double value = in.readDouble();
+            int addressId = readVarInt(in);
+            if (addressId < 0 || addressId >= addresses.length) {
+                throw new IOException("Invalid address id " + addressId);
+            }
+            entries.put(new UTXO(hash, index), dummy.new Output(value, addresses[addressId]));
+        }
+        if (in.available() > 0) {
+            throw new IOException("Trailing bytes after block");
+        }
+        return entries;
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated block");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Reads {@code length} bytes at {@code offset}; safe to call from several threads */
+    private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Truncated snapshot");
+            }
+        }
+        return buffer.array();
+    }
+
+    /** Runs {@code tasks} on {@code executor}, rethrowing the first I/O failure */
+    private static void runAll(List<Runnable> tasks, ExecutorService executor)
+            throws IOException {
+        try {
+            ParallelTasks.runAll(tasks, executor);
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void writeVarInt(int value, DataOutputStream out) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
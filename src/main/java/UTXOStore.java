@@ -0,0 +1,45 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Backend of a {@code UTXOPool}: a mapping from UTXO to transaction output. Lookups may run
+ * concurrently with each other and with updates; updates come from one thread at a time.
+ */
+public interface UTXOStore {
+
+    /** @return the previous output mapped to {@code utxo}, or null */
+    Transaction.Output put(UTXO utxo, Transaction.Output txOut);
+
+    /** @return the output that was mapped to {@code utxo}, or null */
+    Transaction.Output remove(UTXO utxo);
+
+    /** @return the output mapped to {@code utxo}, or null */
+    Transaction.Output get(UTXO utxo);
+
+    boolean contains(UTXO utxo);
+
+    /**
+     * @return the outputs of the UTXOs of {@code utxos} that are in the store; a disk-backed
+     *         store resolves them together, in storage order
+     */
+    Map<UTXO, Transaction.Output> getAll(Collection<UTXO> utxos);
+
+    /** @return true if every UTXO of {@code utxos} is in the store */
+    boolean containsAll(Collection<UTXO> utxos);
+
+    /** Adds every mapping of {@code entries} */
+    void putAll(Map<UTXO, Transaction.Output> entries);
+
+    /** Removes every UTXO of {@code utxos} */
+    void removeAll(Collection<UTXO> utxos);
+
+    /** @return the number of UTXOs in the store */
+    int size();
+
+    /** @return all UTXOs in the store */
+    ArrayList<UTXO> keys();
+
+    /** @return an independent store with the same contents */
+    UTXOStore copy();
+}
@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact record of the changes one epoch made to a {@code UTXOPool}: the outputs it spent (with
+ * their {@code Transaction.Output} data, so they can be restored) and the outpoints it created.
+ * Outputs created and spent within the same epoch cancel out and are not recorded at all.
+ */
+public class UndoRecord {
+
+    /** UTXOs removed from the pool, mapped to the output they referred to */
+    private LinkedHashMap<UTXO, Transaction.Output> spent;
+
+    /** UTXOs added to the pool */
+    private LinkedHashMap<UTXO, Transaction.Output> created;
+
+    /** Creates a new empty undo record */
+    public UndoRecord() {
+        spent = new LinkedHashMap<UTXO, Transaction.Output>();
+        created = new LinkedHashMap<UTXO, Transaction.Output>();
+    }
+
+    /** Records that {@code utxo} mapping to {@code txOut} was added to the pool */
+    void recordCreate(UTXO utxo, Transaction.Output txOut, Transaction.Output replaced) {
+        if (replaced != null && !created.containsKey(utxo) && !spent.containsKey(utxo)) {
+            // Overwriting a pre-existing entry: undoing it means putting the old output back
+            spent.put(utxo, replaced);
+        }
+        created.put(utxo, txOut);
+    }
+
+    /** Records that {@code utxo}, which mapped to {@code txOut}, was removed from the pool */
+    void recordSpend(UTXO utxo, Transaction.Output txOut) {
+        if (created.remove(utxo) != null) {
+            return;
+        }
+        spent.put(utxo, txOut);
+    }
+
+    /** @return the outputs spent by the epoch, keyed by UTXO */
+    public Map<UTXO, Transaction.Output> getSpent() {
+        return spent;
+    }
+
+    /** @return the UTXOs created by the epoch */
+    public ArrayList<UTXO> getCreated() {
+        return new ArrayList<UTXO>(created.keySet());
+    }
+
+    /** @return the number of pool changes this record reverts */
+    public int size() {
+        return spent.size() + created.size();
+    }
+
+    /** @return true if the epoch left the pool unchanged */
+    public boolean isEmpty() {
+        return spent.isEmpty() && created.isEmpty();
+    }
+}
@@ -0,0 +1,71 @@
+import org.junit.Test;
+import org.junit.Assert;
+import org.junit.Assume;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+public class CryptoTest {
+
+    @Test public void testVerifySignature_RSA() throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        assertRoundTrip(keyGen.generateKeyPair(), JdkSignatureScheme.RSA);
+    }
+
+    @Test public void testVerifySignature_ECDSA() throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+        keyGen.initialize(256);
+        assertRoundTrip(keyGen.generateKeyPair(), JdkSignatureScheme.ECDSA_P256);
+    }
+
+    @Test public void testVerifySignature_Ed25519() throws GeneralSecurityException {
+        Assume.assumeTrue(JdkSignatureScheme.ED25519.isAvailable());
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("Ed25519");
+        assertRoundTrip(keyGen.generateKeyPair(), JdkSignatureScheme.ED25519);
+    }
+
+    @Test public void testVerifySignature_UnsupportedCurve() throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+        keyGen.initialize(384);
+        KeyPair pair = keyGen.generateKeyPair();
+        Assert.assertNull(SignatureSchemes.forKey(pair.getPublic()));
+        Assert.assertFalse(Crypto.verifySignature(pair.getPublic(), new byte[1], new byte[64]));
+    }
+
+    @Test public void testVerifySignature_OtherCurveOfSameSize() throws GeneralSecurityException {
+        // secp256k1 has a 256-bit field too, but is not P-256
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC", new BouncyCastleProvider());
+        keyGen.initialize(new ECGenParameterSpec("secp256k1"));
+        KeyPair pair = keyGen.generateKeyPair();
+        Assert.assertFalse(JdkSignatureScheme.ECDSA_P256.supports(pair.getPublic()));
+        Assert.assertNull(SignatureSchemes.forKey(pair.getPublic()));
+
+        // A P-256 key from another provider still is
+        keyGen = KeyPairGenerator.getInstance("EC", new BouncyCastleProvider());
+        keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+        pair = keyGen.generateKeyPair();
+        Assert.assertTrue(JdkSignatureScheme.ECDSA_P256.supports(pair.getPublic()));
+    }
+
+    private void assertRoundTrip(KeyPair pair, JdkSignatureScheme scheme)
+            throws GeneralSecurityException {
+        Assert.assertSame(scheme, SignatureSchemes.forKey(pair.getPublic()));
+
+        byte[] message = "scrooge".getBytes();
+        Signature sig = scheme.newSignature();
+        sig.initSign(pair.getPrivate());
+        sig.update(message);
+        byte[] signature = sig.sign();
+
+        Assert.assertTrue(Crypto.verifySignature(pair.getPublic(), message, signature));
+        Assert.assertFalse(Crypto.verifySignature(pair.getPublic(), "other".getBytes(), signature));
+        // Malformed signatures are rejected rather than thrown
+        Assert.assertFalse(Crypto.verifySignature(pair.getPublic(), message, new byte[3]));
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.Test;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class EpochReplayerTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void testRecordAndReplay() throws Exception {
+        TxGenerator generator = new TxGenerator(4, 512, 7);
+        generator.setDoubleSpendRate(0.1);
+        UTXOPool genesis = generator.genesis(60, 1000);
+
+        File file = folder.newFile("epochs.rec");
+        EpochRecorder recorder = new EpochRecorder(file, genesis);
+        EpochHandler handler = recorder.recording(new TxHandler(genesis));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        long accepted = 0;
+        try {
+            for (int e = 0; e < 4; ++e) {
+                Transaction[] epoch = generator.nextEpoch(25, executor);
+                Transaction[] result = handler.handleTxs(epoch);
+                // Every transaction is valid except the losing side of each double spend
+                Assert.assertTrue(result.length > 0);
+                accepted += result.length;
+            }
+        } finally {
+            executor.shutdown();
+            recorder.close();
+        }
+
+        EpochReplayer.Recording recording = EpochReplayer.read(file);
+        Assert.assertEquals(60, recording.getPool().size());
+        Assert.assertEquals(4, recording.getEpochs().size());
+
+        EpochReplayer.Report report = EpochReplayer.replay(recording, EpochReplayer.TX_HANDLER,
+                false);
+        Assert.assertEquals(100, report.getTransactions());
+        Assert.assertEquals(accepted, report.getAccepted());
+        Assert.assertEquals(0, report.getDivergentEpochs());
+
+        // MaxFeeTxHandler resolves double spends by fee, so it may pick the other side
+        EpochReplayer.Report maxFee = EpochReplayer.replay(recording,
+                EpochReplayer.MAX_FEE_TX_HANDLER, false);
+        Assert.assertEquals(maxFee.getMissing(), maxFee.getExtra());
+    }
+}
@@ -0,0 +1,129 @@
+import org.junit.After;
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class EpochTraceTest {
+    private static PublicKey publicKey;
+    private static PrivateKey privateKey;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512, SecureRandom.getInstance("SHA1PRNG"));
+        KeyPair pair = keyGen.generateKeyPair();
+        publicKey = pair.getPublic();
+        privateKey = pair.getPrivate();
+    }
+
+    @After public void after() {
+        EpochTrace.setEnabled(false);
+        EpochTrace.setSlowTxThresholdMillis(-1);
+        EpochTrace.reset();
+    }
+
+    @Test public void testDisabledByDefault() {
+        EpochTrace.reset();
+        new MaxFeeTxHandler(new UTXOPool()).handleTxs(new Transaction[] {spend(coinbase())});
+        Assert.assertFalse(EpochTrace.isEnabled());
+        Assert.assertEquals(0, EpochTrace.getPhaseCount(EpochTrace.Phase.LOOKUP));
+    }
+
+    @Test public void testPhaseTimersAndJfrEvents() throws IOException {
+        Assume.assumeTrue(EpochTrace.isJfrAvailable());
+        Transaction transaction0 = coinbase();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        MaxFeeTxHandler txHandler = new MaxFeeTxHandler(pool);
+
+        EpochTrace.setEnabled(true);
+        EpochTrace.setSlowTxThresholdMillis(0);
+        File file = folder.newFile("epochs.jfr");
+        Recording recording = new Recording();
+        try {
+            recording.enable("scrooge.Epoch");
+            recording.enable("scrooge.EpochPhase");
+            recording.enable("scrooge.SlowTransaction");
+            recording.start();
+            Assert.assertEquals(1, txHandler.handleTxs(new Transaction[] {spend(transaction0)}).length);
+            recording.stop();
+            recording.dump(file.toPath());
+        } finally {
+            recording.close();
+        }
+
+        for (EpochTrace.Phase phase : new EpochTrace.Phase[] {EpochTrace.Phase.SERIALIZE,
+                EpochTrace.Phase.LOOKUP, EpochTrace.Phase.VERIFY, EpochTrace.Phase.SORT,
+                EpochTrace.Phase.COMMIT}) {
+            Assert.assertEquals(1, EpochTrace.getPhaseCount(phase));
+        }
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        RecordedEvent epoch = null;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+            String name = event.getEventType().getName();
+            counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+            if (name.equals("scrooge.Epoch")) {
+                epoch = event;
+            }
+        }
+        Assert.assertNotNull(epoch);
+        Assert.assertEquals("MaxFeeTxHandler", epoch.getString("handler"));
+        Assert.assertEquals(1, epoch.getInt("accepted"));
+        Assert.assertEquals(Integer.valueOf(5), counts.get("scrooge.EpochPhase"));
+        Assert.assertEquals(Integer.valueOf(1), counts.get("scrooge.SlowTransaction"));
+    }
+
+    private Transaction coinbase() {
+        Transaction tx = new Transaction();
+        tx.addInput(null, 0);
+        tx.addOutput(100.0, publicKey);
+        tx.finalize();
+        return tx;
+    }
+
+    private Transaction spend(Transaction parent) {
+        Transaction tx = new Transaction();
+        tx.addInput(parent.getHash(), 0);
+        tx.addOutput(90.0, publicKey);
+        signInput(tx.getInput(0), tx.getRawDataToSign(0), privateKey);
+        return tx;
+    }
+
+    private void signInput(Transaction.Input input, byte[] rawData, PrivateKey privKey) {
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(privKey);
+            sig.update(rawData);
+            input.addSignature(sig.sign());
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        } catch (SignatureException e) {
+            e.printStackTrace();
+        }
+    }
+}
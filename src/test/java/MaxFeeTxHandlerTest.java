@@ -2,6 +2,7 @@ import org.junit.Test;
 import org.junit.BeforeClass;
 import org.junit.Assert;
 
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.SecureRandom;
 import java.security.PrivateKey;
@@ -13,6 +14,12 @@ import java.security.Security;
 import java.security.Signature;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
@@ -422,6 +429,198 @@ public class MaxFeeTxHandlerTest {
     }
 
 
+    @Test public void testHandleTxsParallel_MaxFee() {
+        // Initialize pool with one UTXO that belongs to address0 / scrooge {@code publicKeys[0]}
+        UTXOPool pool = new UTXOPool();
+
+        // Create initial transaction that creates 100 coin signed by scrooge {@code publicKeys[0]}
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        Transaction.Output out1 = transaction0.getOutput(0);
+        Transaction.Output out2 = transaction0.getOutput(1);
+        transaction0.finalize();
+
+        UTXO utxo1 = new UTXO(transaction0.getHash(), 0);
+        UTXO utxo2 = new UTXO(transaction0.getHash(), 1);
+        pool.addUTXO(utxo1, out1);
+        pool.addUTXO(utxo2, out2);
+
+        MaxFeeTxHandler txHandler = new MaxFeeTxHandler(pool);
+
+        // Create 3 transactions with the following fee: 8 (t1), 5 (t2), 14 (t3)
+        // t1 and t3 conflict so the maximum fee should be t2 + t3 = 19
+        // Create transaction that gives 1 coin to address1 {@code publicKeys[1]}
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(92.0, publicKeys[1]);
+        Transaction.Input t1input = t1.getInput(0);
+        byte[] t1inputData = t1.getRawDataToSign(0);
+        signInput(t1input, t1inputData, privateKeys[0]);
+
+        Transaction t2 = new Transaction();
+        t2.addInput(transaction0.getHash(), 1);
+        t2.addOutput(95.0, publicKeys[1]);
+        Transaction.Input t2input = t2.getInput(0);
+        byte[] t2inputData = t2.getRawDataToSign(0);
+        signInput(t2input, t2inputData, privateKeys[0]);
+
+        Transaction t3 = new Transaction();
+        t3.addInput(transaction0.getHash(), 0);
+        t3.addOutput(86.0, publicKeys[1]);
+        Transaction.Input t3input = t3.getInput(0);
+        byte[] t3inputData = t3.getRawDataToSign(0);
+        signInput(t3input, t3inputData, privateKeys[0]);
+
+        Transaction[] txs = new Transaction[3];
+        txs[0] = t1;
+        txs[1] = t2;
+        txs[2] = t3;
+
+        Transaction[] etxs = new Transaction[2];
+        etxs[0] = t3;
+        etxs[1] = t2;
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Assert.assertArrayEquals(etxs, txHandler.handleTxsParallel(txs, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testHandleTxsUntil_ByFeeRate() {
+        UTXOPool pool = new UTXOPool();
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+        MaxFeeTxHandler txHandler = new MaxFeeTxHandler(pool);
+
+        // Same sizes and fees as testHandleTxs_MaxFee, so fee rates rank t3, t1, t2
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(92.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+        Transaction t2 = new Transaction();
+        t2.addInput(transaction0.getHash(), 1);
+        t2.addOutput(95.0, publicKeys[1]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[0]);
+        Transaction t3 = new Transaction();
+        t3.addInput(transaction0.getHash(), 0);
+        t3.addOutput(86.0, publicKeys[1]);
+        signInput(t3.getInput(0), t3.getRawDataToSign(0), privateKeys[0]);
+        Transaction[] txs = new Transaction[] {t1, t2, t3};
+
+        PartialEpochResult late = txHandler.handleTxsUntil(txs, System.nanoTime() - 1);
+        Assert.assertFalse(late.isComplete());
+        Assert.assertArrayEquals(new Transaction[0], late.getAccepted());
+        Assert.assertArrayEquals(new Transaction[] {t3, t1, t2}, late.getDeferred());
+        Assert.assertTrue(txHandler.getUTXOLookup().contains(new UTXO(transaction0.getHash(), 0)));
+        Assert.assertTrue(txHandler.getUTXOLookup().contains(new UTXO(transaction0.getHash(), 1)));
+
+        PartialEpochResult onTime = txHandler.handleTxsUntil(txs,
+                System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+        Assert.assertTrue(onTime.isComplete());
+        Assert.assertArrayEquals(new Transaction[] {t3, t2}, onTime.getAccepted());
+    }
+
+    @Test public void testHandleTxs_Capacity() {
+        UTXOPool pool = new UTXOPool();
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        // Same fees as testHandleTxs_MaxFee, t1 and t3 conflict
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(92.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+        Transaction t2 = new Transaction();
+        t2.addInput(transaction0.getHash(), 1);
+        t2.addOutput(95.0, publicKeys[1]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[0]);
+        Transaction t3 = new Transaction();
+        t3.addInput(transaction0.getHash(), 0);
+        t3.addOutput(86.0, publicKeys[1]);
+        signInput(t3.getInput(0), t3.getRawDataToSign(0), privateKeys[0]);
+        Transaction[] txs = new Transaction[] {t1, t2, t3};
+        int size = t1.getRawSize();
+        Assert.assertEquals(t1.getRawTx().length, size);
+        // The size follows changes made through the public fields, or to a copy
+        Transaction copy = new Transaction(t1);
+        copy.getInput(0).signature = new byte[0];
+        Assert.assertEquals(copy.getRawTx().length, copy.getRawSize());
+        Assert.assertEquals(size, t1.getRawSize());
+
+        Assert.assertArrayEquals(new Transaction[0],
+                new MaxFeeTxHandler(pool).handleTxs(txs, size - 1));
+        Assert.assertArrayEquals(new Transaction[] {t3},
+                new MaxFeeTxHandler(pool).handleTxs(txs, 2 * size - 1));
+        Assert.assertArrayEquals(new Transaction[] {t3, t2},
+                new MaxFeeTxHandler(pool).handleTxs(txs, 2 * size));
+    }
+
+    @Test public void testCapacitySelector_SwapsTail() {
+        UTXO[][] inputs = new UTXO[4][];
+        for (int i = 0; i < inputs.length; ++i) {
+            inputs[i] = new UTXO[] {new UTXO(new byte[] {(byte) i}, 0)};
+        }
+        // 3 conflicts with 0 and has the best fee rate, so it is kept and 0 is dropped
+        inputs[3] = inputs[0];
+        double[] fees = new double[] {60, 30, 36, 26};
+        int[] sizes = new int[] {50, 30, 40, 20};
+
+        // Greedy by fee rate takes 3 and 1, then 2 only fits by evicting 1 for more fee
+        Assert.assertArrayEquals(new int[] {3, 2}, CapacitySelector.select(inputs, fees, sizes, 70));
+        // Without the conflict, 0 beats every combination that fits next to it
+        inputs[3] = new UTXO[] {new UTXO(new byte[] {3}, 0)};
+        Assert.assertArrayEquals(new int[] {0}, CapacitySelector.select(inputs, fees, sizes, 55));
+        Assert.assertArrayEquals(new int[0], CapacitySelector.select(inputs, fees, sizes, 10));
+    }
+
+    @Test public void testRollbackEpoch() {
+        // Initialize pool with one UTXO that belongs to address0 / scrooge {@code publicKeys[0]}
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        Transaction.Output out = transaction0.getOutput(0);
+        transaction0.finalize();
+
+        UTXO utxo = new UTXO(transaction0.getHash(), 0);
+        pool.addUTXO(utxo, out);
+
+        MaxFeeTxHandler txHandler = new MaxFeeTxHandler(pool);
+
+        // Create transaction that gives 100 coin to address1 {@code publicKeys[1]}
+        Transaction transaction = new Transaction();
+        transaction.addInput(transaction0.getHash(), 0);
+        transaction.addOutput(100.0, publicKeys[1]);
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction[] txs = new Transaction[1];
+        txs[0] = transaction;
+
+        Assert.assertArrayEquals(txs, txHandler.handleTxs(txs));
+        Assert.assertArrayEquals(new Transaction[0], txHandler.handleTxs(txs));
+
+        // Rolling back the empty epoch and then the accepting one makes the coin spendable again
+        Assert.assertTrue(txHandler.rollbackEpoch());
+        Assert.assertTrue(txHandler.rollbackEpoch());
+        Assert.assertFalse(txHandler.rollbackEpoch());
+        Assert.assertArrayEquals(txs, txHandler.handleTxs(txs));
+    }
+
     private void signInput(Transaction.Input input, byte[] rawData, PrivateKey privKey) {
         Signature sig = null;
         byte[] signatureBytes = null;
@@ -444,4 +643,43 @@ public class MaxFeeTxHandlerTest {
         }
         input.addSignature(signatureBytes);
     }
+
+    @Test public void testBlockTemplate_MatchesFullSelection() throws GeneralSecurityException {
+        TxGenerator generator = new TxGenerator(3, 512, 9);
+        generator.setDoubleSpendRate(0.4);
+        UTXOPool genesis = generator.genesis(150, 50);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Transaction[] epoch;
+        try {
+            epoch = generator.nextEpoch(120, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(genesis);
+        BlockTemplate template = handler.newBlockTemplate();
+        List<Transaction> candidates = new ArrayList<Transaction>();
+        Random random = new Random(1);
+        for (Transaction tx : epoch) {
+            Assert.assertTrue(template.add(tx));
+            candidates.add(tx);
+            if (random.nextInt(4) == 0) {
+                Transaction dropped = candidates.remove(random.nextInt(candidates.size()));
+                Assert.assertTrue(template.remove(TxId.of(dropped)));
+            }
+            if (random.nextInt(10) == 0) {
+                // The greedy pass over the remaining candidates, in arrival order
+                Transaction[] expected = new MaxFeeTxHandler(genesis).handleTxs(
+                        candidates.toArray(new Transaction[candidates.size()]));
+                Assert.assertArrayEquals(expected, template.getSelected());
+            }
+        }
+        Transaction[] expected = new MaxFeeTxHandler(genesis).handleTxs(
+                candidates.toArray(new Transaction[candidates.size()]));
+        Assert.assertArrayEquals(expected, template.getSelected());
+
+        Assert.assertArrayEquals(expected, handler.handleTxs(template));
+        Assert.assertEquals(0, template.selectedCount());
+        Assert.assertEquals(0, template.size());
+    }
 }
@@ -0,0 +1,221 @@
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+
+public class MempoolTest {
+    private static final int NUM_KEYS = 2;
+
+    private static PublicKey[] publicKeys;
+    private static PrivateKey[] privateKeys;
+
+    @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException {
+        publicKeys = new PublicKey[NUM_KEYS];
+        privateKeys = new PrivateKey[NUM_KEYS];
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512, SecureRandom.getInstance("SHA1PRNG"));
+
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            KeyPair pair = keyGen.generateKeyPair();
+            publicKeys[i] = pair.getPublic();
+            privateKeys[i] = pair.getPrivate();
+        }
+    }
+
+    @Test public void testCandidatesSortedByFee() {
+        Transaction transaction0 = coinbase(3);
+        MaxFeeTxHandler txHandler = new MaxFeeTxHandler(poolOf(transaction0));
+        Mempool mempool = new Mempool(txHandler.getUTXOLookup(), Long.MAX_VALUE);
+
+        Transaction t1 = spend(transaction0, 0, 95.0, privateKeys[0]);
+        Transaction t2 = spend(transaction0, 1, 80.0, privateKeys[0]);
+        Transaction t3 = spend(transaction0, 2, 90.0, privateKeys[0]);
+        // t4 double-spends the output of t1 and is refused
+        Transaction t4 = spend(transaction0, 0, 50.0, privateKeys[0]);
+        // t5 spends the output of the pending t3
+        Transaction t5 = spend(t3, 0, 89.0, privateKeys[1]);
+
+        Assert.assertTrue(mempool.add(t1));
+        Assert.assertTrue(mempool.add(t2));
+        Assert.assertTrue(mempool.add(t3));
+        Assert.assertFalse(mempool.add(t4));
+        Assert.assertFalse(mempool.add(t1));
+        Assert.assertTrue(mempool.add(t5));
+
+        Assert.assertArrayEquals(new Transaction[] {t2, t3, t1, t5}, mempool.candidates());
+
+        // The child of t3 cannot be accepted in the same epoch and stays pending
+        Assert.assertArrayEquals(new Transaction[] {t2, t3, t1}, txHandler.handleTxs(mempool));
+        Assert.assertArrayEquals(new Transaction[] {t5}, mempool.candidates());
+        Assert.assertArrayEquals(new Transaction[] {t5}, txHandler.handleTxs(mempool));
+        Assert.assertEquals(0, mempool.size());
+        Assert.assertEquals(0, mempool.getTotalBytes());
+    }
+
+    @Test public void testEvictsLowestFeeRatePackage() {
+        Transaction transaction0 = coinbase(2);
+        UTXOPool pool = poolOf(transaction0);
+
+        Transaction t1 = spend(transaction0, 0, 99.0, privateKeys[0]);
+        Transaction t2 = spend(transaction0, 1, 90.0, privateKeys[0]);
+        Transaction t3 = spend(t1, 0, 89.0, privateKeys[1]);
+        t1.finalize();
+        t2.finalize();
+        t3.finalize();
+        long entrySize = t1.getRawTx().length + Mempool.ENTRY_OVERHEAD;
+
+        // Room for two transactions only
+        Mempool mempool = new Mempool(pool, 2 * entrySize + entrySize / 2);
+        Assert.assertTrue(mempool.add(t1));
+        Assert.assertTrue(mempool.add(t3));
+        // t2 pays more per byte than t1, so t1 is evicted along with its child t3
+        Assert.assertTrue(mempool.add(t2));
+
+        Assert.assertEquals(1, mempool.size());
+        Assert.assertTrue(mempool.contains(TxId.of(t2)));
+        Assert.assertFalse(mempool.contains(TxId.of(t3)));
+        Assert.assertTrue(mempool.getTotalBytes() <= mempool.getMaxBytes());
+    }
+
+    @Test public void testEvictionRanksWholePackage() {
+        Transaction transaction0 = coinbase(2);
+        UTXOPool pool = poolOf(transaction0);
+
+        // p pays 2 but its child c pays 20, while o pays 6 on its own
+        Transaction p = spend(transaction0, 0, 98.0, privateKeys[0]);
+        Transaction c = spend(p, 0, 78.0, privateKeys[1]);
+        Transaction o = spend(transaction0, 1, 94.0, privateKeys[0]);
+        p.finalize();
+        long entrySize = p.getRawSize() + Mempool.ENTRY_OVERHEAD;
+
+        Mempool mempool = new Mempool(pool, 2 * entrySize + entrySize / 2);
+        Assert.assertTrue(mempool.add(p));
+        Assert.assertTrue(mempool.add(c));
+        // p alone has the lowest fee-rate, but the package of p and c pays 11 per entry
+        Assert.assertFalse(mempool.add(o));
+        Assert.assertTrue(mempool.contains(TxId.of(p)));
+        Assert.assertTrue(mempool.contains(TxId.of(c)));
+        Assert.assertFalse(mempool.contains(TxId.of(o)));
+
+        // Once c is gone, p is rated on its own again and goes first
+        mempool.remove(TxId.of(c));
+        Assert.assertTrue(mempool.add(o));
+        Transaction x = spend(o, 0, 90.0, privateKeys[1]);
+        Assert.assertTrue(mempool.add(x));
+        Assert.assertFalse(mempool.contains(TxId.of(p)));
+        Assert.assertEquals(2, mempool.size());
+        Assert.assertEquals(2 * entrySize, mempool.getTotalBytes());
+    }
+
+    @Test public void testReplaceByFee() {
+        Transaction transaction0 = coinbase(1);
+        MaxFeeTxHandler txHandler = new MaxFeeTxHandler(poolOf(transaction0));
+        Mempool mempool = new Mempool(txHandler.getUTXOLookup(), Long.MAX_VALUE);
+
+        // t1 pays a fee of 2 and t2, its child, a fee of 3
+        Transaction t1 = spend(transaction0, 0, 98.0, privateKeys[0]);
+        Transaction t2 = spend(t1, 0, 95.0, privateKeys[1]);
+        Assert.assertTrue(mempool.add(t1));
+        Assert.assertTrue(mempool.add(t2));
+
+        // Without replace-by-fee, any conflict is refused
+        Transaction r1 = spend(transaction0, 0, 90.0, privateKeys[0]);
+        Assert.assertFalse(mempool.add(r1));
+
+        mempool.enableReplaceByFee(1.0);
+        // A fee of 5.5 does not beat 2 + 3 by the minimum bump of 1
+        Transaction r2 = spend(transaction0, 0, 94.5, privateKeys[0]);
+        Assert.assertFalse(mempool.add(r2));
+        Assert.assertEquals(2, mempool.size());
+
+        // A fee of 10 does, and evicts t1 together with its child
+        Assert.assertTrue(mempool.add(r1));
+        Assert.assertEquals(2, mempool.getLastReplaced().size());
+        Assert.assertTrue(mempool.getLastReplaced().contains(t1));
+        Assert.assertTrue(mempool.getLastReplaced().contains(t2));
+        Assert.assertArrayEquals(new Transaction[] {r1}, mempool.candidates());
+        Assert.assertNull(mempool.getSpender(new UTXO(TxId.of(t1).getHash(), 0)));
+
+        Assert.assertArrayEquals(new Transaction[] {r1}, txHandler.handleTxs(mempool));
+    }
+
+    @Test public void testReplaceByFee_EvictedReplacementRestoresConflicts() {
+        Transaction transaction0 = coinbase(2);
+        UTXOPool pool = poolOf(transaction0);
+        Transaction t1 = spend(transaction0, 0, 90.0, privateKeys[0]);
+        Transaction t2 = spend(transaction0, 1, 80.0, privateKeys[0]);
+        t1.finalize();
+        long entrySize = t1.getRawSize() + Mempool.ENTRY_OVERHEAD;
+        Mempool mempool = new Mempool(pool, 2 * entrySize + entrySize / 2);
+        mempool.enableReplaceByFee(1.0);
+        Assert.assertTrue(mempool.add(t1));
+        Assert.assertTrue(mempool.add(t2));
+
+        // Outbids t1, but is so large that its fee-rate is the lowest and the cap evicts it
+        Transaction r = new Transaction();
+        r.addInput(transaction0.getHash(), 0);
+        for (int i = 0; i < 8; ++i) {
+            r.addOutput(11.0, publicKeys[1]);
+        }
+        signInput(r.getInput(0), r.getRawDataToSign(0), privateKeys[0]);
+        Assert.assertFalse(mempool.add(r));
+
+        Assert.assertTrue(mempool.getLastReplaced().isEmpty());
+        Assert.assertEquals(2, mempool.size());
+        Assert.assertTrue(mempool.contains(TxId.of(t1)));
+        Assert.assertSame(t1, mempool.getSpender(new UTXO(transaction0.getHash(), 0)));
+        Assert.assertEquals(2 * entrySize, mempool.getTotalBytes());
+    }
+
+    private Transaction coinbase(int outputs) {
+        Transaction tx = new Transaction();
+        tx.addInput(null, 0);
+        for (int i = 0; i < outputs; ++i) {
+            tx.addOutput(100.0, publicKeys[0]);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    private UTXOPool poolOf(Transaction tx) {
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        return pool;
+    }
+
+    private Transaction spend(Transaction parent, int index, double value, PrivateKey privKey) {
+        parent.finalize();
+        Transaction tx = new Transaction();
+        tx.addInput(parent.getHash(), index);
+        tx.addOutput(value, publicKeys[1]);
+        signInput(tx.getInput(0), tx.getRawDataToSign(0), privKey);
+        return tx;
+    }
+
+    private void signInput(Transaction.Input input, byte[] rawData, PrivateKey privKey) {
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(privKey);
+            sig.update(rawData);
+            input.addSignature(sig.sign());
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        } catch (SignatureException e) {
+            e.printStackTrace();
+        }
+    }
+}
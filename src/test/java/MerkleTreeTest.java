@@ -0,0 +1,84 @@
+import org.junit.Test;
+import org.junit.Assert;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MerkleTreeTest {
+
+    @Test public void testIncrementalMatchesRfc6962() throws NoSuchAlgorithmException {
+        for (int n = 1; n <= 33; ++n) {
+            byte[][] hashes = txHashes(n);
+            MerkleTree tree = new MerkleTree();
+            for (int i = 0; i < n; ++i) {
+                tree.add(hashes[i]);
+            }
+            Assert.assertEquals(n, tree.size());
+            Assert.assertArrayEquals(referenceRoot(hashes, 0, n), tree.root());
+
+            for (int i = 0; i < n; ++i) {
+                List<MerkleTree.ProofStep> proof = tree.proof(i);
+                Assert.assertTrue(MerkleTree.verify(hashes[i], proof, tree.root()));
+                if (n > 1) {
+                    Assert.assertFalse(MerkleTree.verify(hashes[(i + 1) % n], proof, tree.root()));
+                }
+            }
+        }
+        Assert.assertNull(new MerkleTree().root());
+    }
+
+    @Test public void testParallelBuild() {
+        // Large enough for the levels to be hashed in several tasks
+        int n = 5000;
+        byte[][] hashes = txHashes(n);
+        Transaction[] txs = new Transaction[n];
+        MerkleTree incremental = new MerkleTree();
+        for (int i = 0; i < n; ++i) {
+            txs[i] = new Transaction();
+            txs[i].setHash(hashes[i]);
+            incremental.add(hashes[i]);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MerkleTree built = MerkleTree.build(txs, executor);
+            Assert.assertArrayEquals(incremental.root(), built.root());
+            Assert.assertTrue(MerkleTree.verify(hashes[4321], built.proof(4321), built.root()));
+            Assert.assertTrue(built.proof(4321).size() <= 13);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[][] txHashes(int n) {
+        byte[][] hashes = new byte[n][];
+        for (int i = 0; i < n; ++i) {
+            hashes[i] = new byte[32];
+            Arrays.fill(hashes[i], (byte) i);
+            hashes[i][0] = (byte) (i >> 8);
+        }
+        return hashes;
+    }
+
+    /** MTH of RFC 6962, section 2.1 */
+    private static byte[] referenceRoot(byte[][] hashes, int from, int to)
+            throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        if (to - from == 1) {
+            md.update((byte) 0);
+            md.update(hashes[from]);
+            return md.digest();
+        }
+        int k = Integer.highestOneBit(to - from - 1);
+        byte[] left = referenceRoot(hashes, from, from + k);
+        byte[] right = referenceRoot(hashes, from + k, to);
+        md.update((byte) 1);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+}
@@ -2,8 +2,14 @@
 import org.junit.Test;
 import org.junit.BeforeClass;
 import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -14,6 +20,10 @@ import java.security.Security;
 import java.security.Signature;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
@@ -23,6 +33,8 @@ public class TxHandlerTest {
     private static PublicKey[] publicKeys;
     private static PrivateKey[] privateKeys;
 
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
     @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException, NoSuchProviderException {
         Security.addProvider(new BouncyCastleProvider());
 
@@ -423,6 +435,459 @@ public class TxHandlerTest {
     }
 
 
+    @Test public void testRollbackEpoch() {
+        // Initialize pool with one UTXO that belongs to address0 / scrooge {@code publicKeys[0]}
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        Transaction.Output out = transaction0.getOutput(0);
+        transaction0.finalize();
+
+        UTXO utxo = new UTXO(transaction0.getHash(), 0);
+        pool.addUTXO(utxo, out);
+
+        TxHandler txHandler = new TxHandler(pool);
+
+        // Create transaction that gives 100 coin to address1 {@code publicKeys[1]}
+        Transaction transaction = new Transaction();
+        transaction.addInput(transaction0.getHash(), 0);
+        transaction.addOutput(100.0, publicKeys[1]);
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction[] txs = new Transaction[1];
+        txs[0] = transaction;
+
+        Assert.assertArrayEquals(txs, txHandler.handleTxs(txs));
+        Assert.assertArrayEquals(new Transaction[0], txHandler.handleTxs(txs));
+
+        // Rolling back the empty epoch and then the accepting one makes the coin spendable again
+        Assert.assertTrue(txHandler.rollbackEpoch());
+        Assert.assertTrue(txHandler.rollbackEpoch());
+        Assert.assertFalse(txHandler.rollbackEpoch());
+        Assert.assertArrayEquals(txs, txHandler.handleTxs(txs));
+    }
+
+    @Test public void testHandleTxs_ChainNetsOut() {
+        final int[] puts = new int[1];
+        ShardedUTXOStore counting = new ShardedUTXOStore() {
+            @Override
+            public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+                ++puts[0];
+                return super.put(utxo, txOut);
+            }
+
+            @Override
+            public ShardedUTXOStore copy() {
+                return this;
+            }
+        };
+        UTXOPool pool = new UTXOPool(counting);
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        TxHandler txHandler = new TxHandler(pool);
+
+        // t2 spends the output t1 creates in the same epoch
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(100.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+        t1.finalize();
+        Transaction t2 = new Transaction();
+        t2.addInput(t1.getHash(), 0);
+        t2.addOutput(100.0, publicKeys[0]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[1]);
+
+        puts[0] = 0;
+        Assert.assertArrayEquals(new Transaction[] {t1, t2},
+                txHandler.handleTxs(new Transaction[] {t1, t2}));
+        Assert.assertEquals(1, puts[0]);
+        Assert.assertFalse(txHandler.getUTXOLookup().contains(new UTXO(t1.getHash(), 0)));
+        Assert.assertTrue(txHandler.getUTXOLookup().contains(new UTXO(t2.getHash(), 0)));
+
+        Assert.assertTrue(txHandler.rollbackEpoch());
+        Assert.assertTrue(txHandler.getUTXOLookup().contains(
+                new UTXO(transaction0.getHash(), 0)));
+        Assert.assertFalse(txHandler.getUTXOLookup().contains(new UTXO(t2.getHash(), 0)));
+    }
+
+    @Test public void testHandleTxsUntil_DefersAfterDeadline() {
+        UTXOPool pool = new UTXOPool();
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        TxHandler txHandler = new TxHandler(pool);
+
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(100.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+        t1.finalize();
+        Transaction t2 = new Transaction();
+        t2.addInput(t1.getHash(), 0);
+        t2.addOutput(100.0, publicKeys[0]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[1]);
+        Transaction[] txs = new Transaction[] {t1, t2};
+
+        // An expired deadline defers everything and leaves the pool as it was
+        PartialEpochResult late = txHandler.handleTxsUntil(txs, System.nanoTime() - 1);
+        Assert.assertFalse(late.isComplete());
+        Assert.assertArrayEquals(new Transaction[0], late.getAccepted());
+        Assert.assertArrayEquals(txs, late.getDeferred());
+        Assert.assertFalse(txHandler.getUTXOLookup().contains(new UTXO(t1.getHash(), 0)));
+        Assert.assertTrue(txHandler.getUTXOLookup().contains(
+                new UTXO(transaction0.getHash(), 0)));
+
+        PartialEpochResult onTime = txHandler.handleTxsUntil(txs,
+                System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+        Assert.assertTrue(onTime.isComplete());
+        Assert.assertArrayEquals(txs, onTime.getAccepted());
+        Assert.assertTrue(txHandler.getUTXOLookup().contains(new UTXO(t2.getHash(), 0)));
+    }
+
+    @Test public void testSeenTxFilter_DropsDuplicates() {
+        UTXOPool pool = new UTXOPool();
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+        TxHandler txHandler = new TxHandler(pool);
+        SeenTxFilter filter = new SeenTxFilter(16);
+        txHandler.setSeenTxFilter(filter);
+
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(100.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+        t1.finalize();
+        Transaction t2 = new Transaction();
+        t2.addInput(t1.getHash(), 0);
+        t2.addOutput(100.0, publicKeys[0]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[1]);
+        // Signed with the wrong key
+        Transaction bad = new Transaction();
+        bad.addInput(transaction0.getHash(), 1);
+        bad.addOutput(100.0, publicKeys[1]);
+        signInput(bad.getInput(0), bad.getRawDataToSign(0), privateKeys[1]);
+
+        // t2 misses its input, which may come later, so only the bad signature is remembered
+        Assert.assertArrayEquals(new Transaction[0],
+                txHandler.handleTxs(new Transaction[] {t2, bad}));
+        Assert.assertEquals(1, filter.size());
+        // The second copy of t1 in the same epoch is dropped too, but not counted by the filter
+        Assert.assertArrayEquals(new Transaction[] {t1, t2},
+                txHandler.handleTxs(new Transaction[] {t1, t2, bad, t1}));
+        Assert.assertEquals(1, filter.getDropped());
+        Assert.assertArrayEquals(new Transaction[0],
+                txHandler.handleTxs(new Transaction[] {t1}));
+        Assert.assertEquals(2, filter.getDropped());
+
+        Assert.assertTrue(txHandler.rollbackEpoch());
+        Assert.assertEquals(0, filter.size());
+
+        // The ring only keeps the last additions
+        SeenTxFilter small = new SeenTxFilter(2);
+        small.add(TxId.of(t1));
+        small.add(TxId.of(t2));
+        small.add(TxId.of(bad));
+        Assert.assertFalse(small.contains(TxId.of(t1)));
+        Assert.assertTrue(small.contains(TxId.of(t2)));
+        Assert.assertTrue(small.contains(TxId.of(bad)));
+    }
+
+    @Test public void testSeenTxFilter_BeforeAdmission() {
+        UTXOPool pool = new UTXOPool();
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+        TxHandler txHandler = new TxHandler(pool);
+        SeenTxFilter filter = new SeenTxFilter(16);
+        txHandler.setSeenTxFilter(filter);
+        // Enough for exactly one input signed with a 512-bit key
+        txHandler.setAdmissionControl(new AdmissionControl(512));
+
+        // bad pays the higher fee but is signed with the wrong key
+        Transaction bad = new Transaction();
+        bad.addInput(transaction0.getHash(), 1);
+        bad.addOutput(90.0, publicKeys[1]);
+        signInput(bad.getInput(0), bad.getRawDataToSign(0), privateKeys[1]);
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(99.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+
+        Assert.assertArrayEquals(new Transaction[0],
+                txHandler.handleTxs(new Transaction[] {bad}));
+        // The relayed copy of bad no longer takes the budget of t1
+        Assert.assertArrayEquals(new Transaction[] {t1},
+                txHandler.handleTxs(new Transaction[] {bad, t1}));
+        Assert.assertEquals(1, filter.getDropped());
+        Assert.assertEquals(0, txHandler.getLastAdmission().getDeferred().length);
+
+        // The parallel path drops and remembers transactions too
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Assert.assertArrayEquals(new Transaction[0],
+                    txHandler.handleTxsParallel(new Transaction[] {t1, bad}, executor));
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(3, filter.getDropped());
+    }
+
+    @Test public void testTxHasherMatchesRawTx() throws GeneralSecurityException {
+        TxGenerator generator = new TxGenerator(2, 512, 5);
+        generator.genesis(1200, 10);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Transaction[] txs = generator.nextEpoch(600, executor);
+            byte[][] expected = new byte[txs.length][];
+            for (int i = 0; i < txs.length; ++i) {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                expected[i] = md.digest(txs[i].getRawTx());
+                txs[i].setHash(null);
+            }
+            TxHasher.hashAll(txs, executor);
+            for (int i = 0; i < txs.length; ++i) {
+                Assert.assertArrayEquals(expected[i], txs[i].getHash());
+            }
+
+            // Signing a copy changes the hash of the copy only
+            Transaction copy = new Transaction(txs[0]);
+            copy.addSignature(new byte[] {1, 2, 3}, 0);
+            copy.finalize();
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            Assert.assertArrayEquals(md.digest(copy.getRawTx()), copy.getHash());
+            Assert.assertArrayEquals(expected[0], txs[0].getHash());
+            md.reset();
+            Assert.assertArrayEquals(expected[0], md.digest(txs[0].getRawTx()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testHandleEpochs_Pipelined() throws InterruptedException {
+        // Initialize pool with one UTXO that belongs to address0 / scrooge {@code publicKeys[0]}
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        Transaction.Output out = transaction0.getOutput(0);
+        transaction0.finalize();
+
+        UTXO utxo = new UTXO(transaction0.getHash(), 0);
+        pool.addUTXO(utxo, out);
+
+        TxHandler txHandler = new TxHandler(pool);
+
+        // Epoch 1: t1 gives the coin to address1, t2 tries to spend it again
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(100.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction t2 = new Transaction();
+        t2.addInput(transaction0.getHash(), 0);
+        t2.addOutput(90.0, publicKeys[0]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[0]);
+
+        // Epoch 2: t3 spends the output of t1 and is prevalidated while epoch 1 commits,
+        // t4 signs the same spend with the wrong key
+        t1.finalize();
+        Transaction t3 = new Transaction();
+        t3.addInput(t1.getHash(), 0);
+        t3.addOutput(100.0, publicKeys[0]);
+        signInput(t3.getInput(0), t3.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction t4 = new Transaction();
+        t4.addInput(t1.getHash(), 0);
+        t4.addOutput(50.0, publicKeys[0]);
+        signInput(t4.getInput(0), t4.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction[][] epochs = new Transaction[][] {{t1, t2}, {t4, t3}};
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Transaction[][] accepted = txHandler.handleEpochs(epochs, executor);
+            Assert.assertArrayEquals(new Transaction[] {t1}, accepted[0]);
+            Assert.assertArrayEquals(new Transaction[] {t3}, accepted[1]);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testHandleTxsParallel() {
+        // Initialize pool with two UTXOs that belong to address0 / scrooge {@code publicKeys[0]}
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        TxHandler txHandler = new TxHandler(pool);
+
+        // t1 spends output 0, t2 spends the output t1 creates, t3 double-spends output 0 and
+        // t4 independently spends output 1
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(100.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+        t1.finalize();
+
+        Transaction t2 = new Transaction();
+        t2.addInput(t1.getHash(), 0);
+        t2.addOutput(60.0, publicKeys[0]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction t3 = new Transaction();
+        t3.addInput(transaction0.getHash(), 0);
+        t3.addOutput(10.0, publicKeys[1]);
+        signInput(t3.getInput(0), t3.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction t4 = new Transaction();
+        t4.addInput(transaction0.getHash(), 1);
+        t4.addOutput(100.0, publicKeys[1]);
+        signInput(t4.getInput(0), t4.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction[] txs = new Transaction[] {t1, t2, t3, t4};
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Assert.assertArrayEquals(new Transaction[] {t1, t2, t4},
+                    txHandler.handleTxsParallel(txs, executor));
+            MerkleTree tree = txHandler.getMerkleTree();
+            Assert.assertEquals(3, tree.size());
+            Assert.assertTrue(MerkleTree.verify(t4.getHash(), tree.proof(2), tree.root()));
+            Assert.assertArrayEquals(new Transaction[0], txHandler.handleTxsParallel(txs, executor));
+            Assert.assertNull(txHandler.getMerkleTree().root());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testHandleTxs_AdmissionBudget() {
+        // Initialize pool with two UTXOs that belong to address0 / scrooge {@code publicKeys[0]}
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        TxHandler txHandler = new TxHandler(pool);
+        // Enough for exactly one input signed with a 512-bit key
+        txHandler.setAdmissionControl(new AdmissionControl(512));
+
+        // t1 pays a fee of 1, t2 a fee of 10 and t3 spends more than its input
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(99.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction t2 = new Transaction();
+        t2.addInput(transaction0.getHash(), 1);
+        t2.addOutput(90.0, publicKeys[1]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction t3 = new Transaction();
+        t3.addInput(transaction0.getHash(), 0);
+        t3.addOutput(101.0, publicKeys[1]);
+        signInput(t3.getInput(0), t3.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction[] txs = new Transaction[] {t1, t2, t3};
+
+        // Neither the handler nor admission control hashes a transaction twice
+        TxHasher.hashAll(txs, null);
+        byte[] hash = t1.getHash();
+        Assert.assertArrayEquals(new Transaction[] {t2}, txHandler.handleTxs(txs));
+        Assert.assertSame(hash, t1.getHash());
+        AdmissionControl.Result admission = txHandler.getLastAdmission();
+        Assert.assertArrayEquals(new Transaction[] {t1}, admission.getDeferred());
+        Assert.assertArrayEquals(new Transaction[] {t3}, admission.getRejected());
+        Assert.assertEquals(512, admission.getCost());
+
+        // The deferred transaction goes through in the next epoch
+        Assert.assertArrayEquals(new Transaction[] {t1}, txHandler.handleTxs(admission.getDeferred()));
+    }
+
+    @Test public void testHandleTxs_AdmissionKeepsParentsWithChildren() {
+        UTXOPool pool = new UTXOPool();
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        // parent pays a fee of 1, its child 20 and other 5
+        Transaction parent = new Transaction();
+        parent.addInput(transaction0.getHash(), 0);
+        parent.addOutput(99.0, publicKeys[1]);
+        signInput(parent.getInput(0), parent.getRawDataToSign(0), privateKeys[0]);
+        parent.finalize();
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(79.0, publicKeys[0]);
+        signInput(child.getInput(0), child.getRawDataToSign(0), privateKeys[1]);
+        Transaction other = new Transaction();
+        other.addInput(transaction0.getHash(), 1);
+        other.addOutput(95.0, publicKeys[1]);
+        signInput(other.getInput(0), other.getRawDataToSign(0), privateKeys[0]);
+        Transaction[] txs = new Transaction[] {child, other, parent};
+
+        // One input fits: the child is not admitted without its parent
+        AdmissionControl.Result result = new AdmissionControl(512).admit(txs, pool);
+        Assert.assertArrayEquals(new Transaction[] {other}, result.getAdmitted());
+        Assert.assertArrayEquals(new Transaction[] {child, parent}, result.getDeferred());
+
+        // Two inputs fit: the child brings its parent in ahead of other
+        TxHandler txHandler = new TxHandler(pool);
+        txHandler.setAdmissionControl(new AdmissionControl(1024));
+        Assert.assertArrayEquals(new Transaction[] {parent, child},
+                txHandler.handleTxs(new Transaction[] {parent, child, other}));
+        Assert.assertArrayEquals(new Transaction[] {other},
+                txHandler.getLastAdmission().getDeferred());
+
+        // A child of a rejected transaction is rejected with it
+        Transaction overspend = new Transaction();
+        overspend.addInput(transaction0.getHash(), 1);
+        overspend.addOutput(101.0, publicKeys[1]);
+        signInput(overspend.getInput(0), overspend.getRawDataToSign(0), privateKeys[0]);
+        overspend.finalize();
+        Transaction orphan = new Transaction();
+        orphan.addInput(overspend.getHash(), 0);
+        orphan.addOutput(50.0, publicKeys[0]);
+        signInput(orphan.getInput(0), orphan.getRawDataToSign(0), privateKeys[1]);
+        result = new AdmissionControl(1024).admit(new Transaction[] {orphan, overspend}, pool);
+        Assert.assertEquals(0, result.getAdmitted().length);
+        Assert.assertArrayEquals(new Transaction[] {orphan, overspend}, result.getRejected());
+    }
+
     private void signInput(Transaction.Input input, byte[] rawData, PrivateKey privKey) {
         Signature sig = null;
         byte[] signatureBytes = null;
@@ -445,4 +910,80 @@ public class TxHandlerTest {
         }
         input.addSignature(signatureBytes);
     }
-}
\ No newline at end of file
+
+    @Test public void testHandleTxs_DiskBackedPool() throws IOException, GeneralSecurityException {
+        TxGenerator generator = new TxGenerator(4, 512, 3);
+        generator.setDoubleSpendRate(0.05);
+        UTXOPool genesis = generator.genesis(300, 100);
+
+        // The same UTXOs behind a small cache over an LSM store that flushes often
+        LsmUTXOStore lsm = new LsmUTXOStore(folder.newFolder("utxos"), 64, 2);
+        UTXOPool diskPool = new UTXOPool(new CachedUTXOStore(lsm, 32));
+        for (UTXO utxo : genesis.getAllUTXO()) {
+            diskPool.addUTXO(utxo, genesis.getTxOutput(utxo));
+        }
+        diskPool.flush();
+
+        TxHandler memory = new TxHandler(genesis);
+        TxHandler disk = new TxHandler(diskPool);
+        memory.enableUTXOCommitment();
+        disk.enableUTXOCommitment();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int e = 0; e < 6; ++e) {
+                Transaction[] epoch = generator.nextEpoch(80, executor);
+                Transaction[] expected = memory.handleTxs(Arrays.copyOf(epoch, epoch.length));
+                Transaction[] actual = e % 2 == 0
+                        ? disk.handleTxs(Arrays.copyOf(epoch, epoch.length))
+                        : disk.handleTxsParallel(Arrays.copyOf(epoch, epoch.length), executor);
+                Assert.assertEquals(expected.length, actual.length);
+                Assert.assertArrayEquals(memory.getUTXOCommitment(), disk.getUTXOCommitment());
+            }
+        } finally {
+            executor.shutdown();
+            disk.close();
+            lsm.close();
+        }
+    }
+
+    @Test public void testHandleTxs_LsmStoreIsDurable()
+            throws IOException, GeneralSecurityException, InterruptedException {
+        TxGenerator generator = new TxGenerator(4, 512, 13);
+        generator.setDoubleSpendRate(0.05);
+        UTXOPool genesis = generator.genesis(200, 100);
+        File dir = folder.newFolder("durable");
+        LsmUTXOStore lsm = new LsmUTXOStore(dir, 64, 2);
+        for (UTXO utxo : genesis.getAllUTXO()) {
+            lsm.put(utxo, genesis.getTxOutput(utxo));
+        }
+
+        // Given a pool, a handler works on a temporary copy that closing it deletes
+        TxHandler copying = new TxHandler(new UTXOPool(lsm));
+        Assert.assertEquals(2, dir.getParentFile().list().length);
+        copying.close();
+        Assert.assertEquals(1, dir.getParentFile().list().length);
+
+        // Given the store, it applies every epoch to the store's own directory
+        TxHandler memory = new TxHandler(genesis);
+        TxHandler disk = new TxHandler(lsm);
+        memory.enableUTXOCommitment();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int e = 0; e < 4; ++e) {
+                Transaction[] epoch = generator.nextEpoch(60, executor);
+                Assert.assertEquals(memory.handleTxs(Arrays.copyOf(epoch, epoch.length)).length,
+                        disk.handleTxs(Arrays.copyOf(epoch, epoch.length)).length);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Every epoch was flushed, so the directory holds it even if the process dies now
+        lsm.awaitCompaction();
+        UTXOPool restored = new UTXOPool(new LsmUTXOStore(dir, 64, 2));
+        restored.enableCommitment();
+        Assert.assertArrayEquals(memory.getUTXOCommitment(), restored.getCommitment());
+        restored.close();
+        disk.close();
+    }
+}
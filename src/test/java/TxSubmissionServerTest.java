@@ -0,0 +1,277 @@
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TxSubmissionServerTest {
+    private static final int NUM_KEYS = 2;
+
+    private static PublicKey[] publicKeys;
+    private static PrivateKey[] privateKeys;
+
+    @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException {
+        publicKeys = new PublicKey[NUM_KEYS];
+        privateKeys = new PrivateKey[NUM_KEYS];
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512, SecureRandom.getInstance("SHA1PRNG"));
+
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            KeyPair pair = keyGen.generateKeyPair();
+            publicKeys[i] = pair.getPublic();
+            privateKeys[i] = pair.getPrivate();
+        }
+    }
+
+    @Test public void testCodecRoundTrip() throws IOException {
+        Transaction transaction0 = coinbase(1);
+        Transaction t1 = spend(transaction0, 0, 95.0, privateKeys[0]);
+        t1.finalize();
+
+        Transaction decoded = TransactionCodec.decode(TransactionCodec.encode(t1));
+        Assert.assertArrayEquals(t1.getHash(), decoded.getHash());
+        Assert.assertEquals(t1.getOutput(0).address, decoded.getOutput(0).address);
+        Assert.assertArrayEquals(t1.getInput(0).signature, decoded.getInput(0).signature);
+    }
+
+    @Test public void testSubmitOverLoopback() throws IOException, InterruptedException {
+        Transaction transaction0 = coinbase(5);
+        TxHandler txHandler = new TxHandler(poolOf(transaction0));
+
+        List<Transaction> txs = new ArrayList<Transaction>();
+        for (int i = 0; i < 4; ++i) {
+            txs.add(spend(transaction0, i, 90.0, privateKeys[0]));
+        }
+        // Double spends of the first two outputs
+        txs.add(spend(transaction0, 0, 80.0, privateKeys[0]));
+        txs.add(spend(transaction0, 1, 80.0, privateKeys[0]));
+
+        TxSubmissionServer server = new TxSubmissionServer(txHandler, 16, 20);
+        try {
+            InetSocketAddress address = server.start(0);
+            TxLoadClient.Report report = TxLoadClient.run(address, txs, 3);
+            Assert.assertEquals(4, report.getAccepted());
+            Assert.assertEquals(2, report.getRejected());
+            Assert.assertEquals(0, report.getMalformed());
+
+            // A garbled frame gets a MALFORMED response and leaves the connection open
+            Socket socket = new Socket(address.getAddress(), address.getPort());
+            try {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeInt(3);
+                out.write(new byte[] {1, 2, 3});
+                out.flush();
+                Assert.assertEquals(1, in.readInt());
+                Assert.assertEquals(TxSubmissionServer.MALFORMED, in.readByte());
+
+                Transaction t5 = spend(transaction0, 4, 85.0, privateKeys[0]);
+                byte[] frame = TransactionCodec.encode(t5);
+                out.writeInt(frame.length);
+                out.write(frame);
+                out.flush();
+                byte[] response = new byte[in.readInt()];
+                in.readFully(response);
+                Assert.assertEquals(TxSubmissionServer.ACCEPTED, response[0]);
+                t5.finalize();
+                Assert.assertArrayEquals(t5.getHash(),
+                        Arrays.copyOfRange(response, 1, response.length));
+            } finally {
+                socket.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test public void testBusyWhenQueueFullOrEpochFails()
+            throws IOException, InterruptedException {
+        Transaction transaction0 = coinbase(3);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger epochs = new AtomicInteger();
+        EpochHandler handler = new EpochHandler() {
+            @Override
+            public Transaction[] handleTxs(Transaction[] possibleTxs) {
+                if (epochs.incrementAndGet() > 1) {
+                    throw new IllegalStateException("handler failed");
+                }
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return possibleTxs;
+            }
+        };
+
+        Transaction t1 = spend(transaction0, 0, 90.0, privateKeys[0]);
+        Transaction t2 = spend(transaction0, 1, 90.0, privateKeys[0]);
+        Transaction t3 = spend(transaction0, 2, 90.0, privateKeys[0]);
+        // Epochs of one transaction, and room for one more in the queue
+        TxSubmissionServer server = new TxSubmissionServer(handler, 1, 0, 1);
+        try {
+            InetSocketAddress address = server.start(0);
+            Socket socket = new Socket(address.getAddress(), address.getPort());
+            try {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                send(out, t1);
+                Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+                // t2 waits for the next epoch, t3 finds the queue full
+                send(out, t2);
+                send(out, t3);
+                assertResponse(in, TxSubmissionServer.BUSY, t3);
+
+                release.countDown();
+                assertResponse(in, TxSubmissionServer.ACCEPTED, t1);
+                // The epoch of t2 fails, so it is not known to be invalid
+                assertResponse(in, TxSubmissionServer.BUSY, t2);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            try {
+                server.close();
+                Assert.fail("The handler failure is rethrown");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("handler failed", e.getMessage());
+            }
+        }
+    }
+
+    @Test public void testStopsReadingWhileResponsesPending()
+            throws IOException, InterruptedException {
+        Transaction transaction0 = coinbase(3);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> epochSizes = new ArrayList<Integer>();
+        EpochHandler handler = new EpochHandler() {
+            @Override
+            public Transaction[] handleTxs(Transaction[] possibleTxs) {
+                synchronized (epochSizes) {
+                    epochSizes.add(possibleTxs.length);
+                }
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return possibleTxs;
+            }
+        };
+
+        Transaction t1 = spend(transaction0, 0, 90.0, privateKeys[0]);
+        Transaction t2 = spend(transaction0, 1, 90.0, privateKeys[0]);
+        Transaction t3 = spend(transaction0, 2, 90.0, privateKeys[0]);
+        TxSubmissionServer server = new TxSubmissionServer(handler, 16, 0);
+        server.setMaxPendingPerConnection(1);
+        try {
+            InetSocketAddress address = server.start(0);
+            Socket socket = new Socket(address.getAddress(), address.getPort());
+            try {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                send(out, t1);
+                Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+                // Without the limit both would be queued by now and handled as one epoch
+                send(out, t2);
+                send(out, t3);
+                Thread.sleep(200);
+                release.countDown();
+
+                assertResponse(in, TxSubmissionServer.ACCEPTED, t1);
+                assertResponse(in, TxSubmissionServer.ACCEPTED, t2);
+                assertResponse(in, TxSubmissionServer.ACCEPTED, t3);
+                synchronized (epochSizes) {
+                    Assert.assertEquals(Arrays.asList(1, 1, 1), epochSizes);
+                }
+            } finally {
+                socket.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private void send(DataOutputStream out, Transaction tx) throws IOException {
+        byte[] frame = TransactionCodec.encode(tx);
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    private void assertResponse(DataInputStream in, byte status, Transaction tx)
+            throws IOException {
+        byte[] response = new byte[in.readInt()];
+        in.readFully(response);
+        Assert.assertEquals(status, response[0]);
+        tx.finalize();
+        Assert.assertArrayEquals(tx.getHash(), Arrays.copyOfRange(response, 1, response.length));
+    }
+
+    private Transaction coinbase(int outputs) {
+        Transaction tx = new Transaction();
+        tx.addInput(null, 0);
+        for (int i = 0; i < outputs; ++i) {
+            tx.addOutput(100.0, publicKeys[0]);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    private UTXOPool poolOf(Transaction tx) {
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        return pool;
+    }
+
+    private Transaction spend(Transaction parent, int index, double value, PrivateKey privKey) {
+        parent.finalize();
+        Transaction tx = new Transaction();
+        tx.addInput(parent.getHash(), index);
+        tx.addOutput(value, publicKeys[1]);
+        signInput(tx.getInput(0), tx.getRawDataToSign(0), privKey);
+        return tx;
+    }
+
+    private void signInput(Transaction.Input input, byte[] rawData, PrivateKey privKey) {
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(privKey);
+            sig.update(rawData);
+            input.addSignature(sig.sign());
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        } catch (SignatureException e) {
+            e.printStackTrace();
+        }
+    }
+}
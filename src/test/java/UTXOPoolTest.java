@@ -0,0 +1,448 @@
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class UTXOPoolTest {
+    private static PublicKey publicKey;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512, SecureRandom.getInstance("SHA1PRNG"));
+        KeyPair pair = keyGen.generateKeyPair();
+        publicKey = pair.getPublic();
+    }
+
+    @Test public void testShardedBatchOperations() {
+        UTXOPool pool = new UTXOPool(8, 1000);
+
+        // Create a transaction with many outputs so the UTXOs spread over several hashes
+        Map<UTXO, Transaction.Output> entries = new HashMap<UTXO, Transaction.Output>();
+        for (int t = 0; t < 50; ++t) {
+            Transaction tx = new Transaction();
+            tx.addInput(null, t);
+            tx.addOutput(t, publicKey);
+            tx.addOutput(t + 1, publicKey);
+            tx.finalize();
+            entries.put(new UTXO(tx.getHash(), 0), tx.getOutput(0));
+            entries.put(new UTXO(tx.getHash(), 1), tx.getOutput(1));
+        }
+        pool.addAll(entries);
+
+        Assert.assertEquals(100, pool.size());
+        Assert.assertEquals(8, pool.shardSizes().length);
+        Assert.assertTrue(pool.containsAll(entries.keySet()));
+
+        List<UTXO> removed = new ArrayList<UTXO>(entries.keySet()).subList(0, 40);
+        pool.removeAll(removed);
+        Assert.assertEquals(60, pool.size());
+        Assert.assertFalse(pool.containsAll(entries.keySet()));
+        for (UTXO utxo : removed) {
+            Assert.assertNull(pool.getTxOutput(utxo));
+        }
+
+        UTXOPool copy = new UTXOPool(pool);
+        Assert.assertEquals(60, copy.getAllUTXO().size());
+    }
+
+    @Test public void testUndoRecordRollback() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction tx = new Transaction();
+        tx.addInput(null, 0);
+        tx.addOutput(10.0, publicKey);
+        tx.addOutput(20.0, publicKey);
+        tx.finalize();
+        UTXO kept = new UTXO(tx.getHash(), 0);
+        UTXO spent = new UTXO(tx.getHash(), 1);
+        pool.addUTXO(kept, tx.getOutput(0));
+        pool.addUTXO(spent, tx.getOutput(1));
+
+        pool.beginUndoRecord();
+        pool.removeUTXO(spent);
+        UTXO created = new UTXO("created".getBytes(), 0);
+        UTXO shortLived = new UTXO("transient".getBytes(), 0);
+        pool.addUTXO(created, tx.getOutput(1));
+        pool.addUTXO(shortLived, tx.getOutput(1));
+        pool.removeUTXO(shortLived);
+        UndoRecord record = pool.endUndoRecord();
+
+        // The output created and spent in the same epoch does not appear in the record
+        Assert.assertEquals(2, record.size());
+
+        pool.rollback(record);
+        Assert.assertEquals(2, pool.size());
+        Assert.assertTrue(pool.contains(kept));
+        Assert.assertSame(tx.getOutput(1), pool.getTxOutput(spent));
+        Assert.assertFalse(pool.contains(created));
+    }
+
+    @Test public void testNegativeLookupFilter() {
+        UTXOPool pool = new UTXOPool();
+        // Deliberately undersized so the filter has to grow
+        pool.enableNegativeLookupFilter(16, 0.001);
+
+        Transaction tx = new Transaction();
+        tx.addInput(null, 0);
+        tx.addOutput(1.0, publicKey);
+        tx.finalize();
+        Transaction.Output out = tx.getOutput(0);
+
+        List<UTXO> utxos = new ArrayList<UTXO>();
+        for (int i = 0; i < 2000; ++i) {
+            UTXO utxo = new UTXO(("tx" + i).getBytes(), i % 3);
+            utxos.add(utxo);
+            pool.addUTXO(utxo, out);
+        }
+        for (UTXO utxo : utxos) {
+            Assert.assertTrue(pool.contains(utxo));
+        }
+
+        pool.removeAll(utxos.subList(0, 1000));
+        for (int i = 0; i < 1000; ++i) {
+            Assert.assertFalse(pool.contains(utxos.get(i)));
+            Assert.assertTrue(pool.contains(utxos.get(1000 + i)));
+        }
+
+        // Copies keep their own filter
+        UTXOPool copy = new UTXOPool(pool);
+        copy.removeUTXO(utxos.get(1500));
+        Assert.assertTrue(pool.contains(utxos.get(1500)));
+        Assert.assertFalse(copy.contains(utxos.get(1500)));
+
+        CuckooFilter filter = pool.getNegativeLookupFilter();
+        Assert.assertEquals(1000, filter.size());
+        Assert.assertTrue(filter.memoryBytes() > 0);
+        // 10-bit fingerprints in 512 buckets of 4 are packed into 20480 bits
+        CuckooFilter packed = new CuckooFilter(1000, 0.01);
+        Assert.assertEquals(10, packed.getFingerprintBits());
+        Assert.assertEquals(2560, packed.memoryBytes());
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; ++i) {
+            if (pool.mightContain(("absent" + i).getBytes(), 0)) {
+                ++falsePositives;
+            }
+        }
+        Assert.assertTrue(falsePositives < 100);
+    }
+
+    @Test public void testSnapshotRoundTrip()
+            throws IOException, InterruptedException, ExecutionException {
+        UTXOPool pool = new UTXOPool();
+        for (int t = 0; t < 40; ++t) {
+            Transaction tx = new Transaction();
+            tx.addInput(null, t);
+            for (int i = 0; i < 3; ++i) {
+                tx.addOutput(t + i / 4.0, publicKey);
+            }
+            tx.finalize();
+            for (int i = 0; i < 3; ++i) {
+                pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Small blocks, so the snapshot spans several of them
+            File file = folder.newFile("pool.snapshot");
+            UTXOSnapshot.write(pool, file, 7);
+            UTXOPool loaded = UTXOSnapshot.load(file, executor);
+            Assert.assertEquals(pool.size(), loaded.size());
+            for (UTXO utxo : pool.getAllUTXO()) {
+                Transaction.Output expected = pool.getTxOutput(utxo);
+                Transaction.Output actual = loaded.getTxOutput(utxo);
+                Assert.assertNotNull(actual);
+                Assert.assertEquals(expected.value, actual.value, 0);
+                Assert.assertEquals(expected.address, actual.address);
+            }
+
+            // A corrupted block length is reported as a bad snapshot
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            ByteBuffer corrupted = ByteBuffer.wrap(bytes);
+            int indexOffset = (int) corrupted.getLong(bytes.length - 12);
+            corrupted.putInt(indexOffset + 4 + 8, -1);
+            File bad = folder.newFile("corrupted.snapshot");
+            Files.write(bad.toPath(), bytes);
+            try {
+                UTXOSnapshot.load(bad, executor);
+                Assert.fail();
+            } catch (IOException e) {
+                // Expected
+            }
+
+            // The background writer works on a copy taken when it is called
+            File background = folder.newFile("background.snapshot");
+            Future<File> written =
+                    UTXOSnapshot.writeInBackground(pool, background, executor);
+            pool.removeUTXO(pool.getAllUTXO().get(0));
+            Assert.assertEquals(120, UTXOSnapshot.load(written.get(), executor).size());
+
+            // The copy of an LSM-backed pool is closed, which deletes its temporary directory
+            File dir = folder.newFolder("snapshot-lsm", "store");
+            UTXOPool lsmPool = new UTXOPool(new LsmUTXOStore(dir, 32, 2));
+            for (UTXO utxo : pool.getAllUTXO()) {
+                lsmPool.addUTXO(utxo, pool.getTxOutput(utxo));
+            }
+            File lsmSnapshot = folder.newFile("lsm.snapshot");
+            UTXOSnapshot.writeInBackground(lsmPool, lsmSnapshot, executor).get();
+            Assert.assertArrayEquals(new String[] {"store"}, dir.getParentFile().list());
+            Assert.assertEquals(119, UTXOSnapshot.load(lsmSnapshot, executor).size());
+            lsmPool.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testSetCommitment() {
+        Transaction tx = new Transaction();
+        tx.addInput(null, 0);
+        for (int i = 0; i < 5; ++i) {
+            tx.addOutput(10 + i, publicKey);
+        }
+        tx.finalize();
+
+        UTXOPool pool = new UTXOPool();
+        pool.enableCommitment();
+        byte[] empty = pool.getCommitment();
+        for (int i = 0; i < 5; ++i) {
+            pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+
+        // Same set built in another order, starting from a non-empty pool
+        UTXOPool other = new UTXOPool();
+        for (int i = 4; i >= 2; --i) {
+            other.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        other.enableCommitment();
+        other.addUTXO(new UTXO(tx.getHash(), 0), tx.getOutput(0));
+        other.addUTXO(new UTXO(tx.getHash(), 1), tx.getOutput(1));
+        Assert.assertArrayEquals(pool.getCommitment(), other.getCommitment());
+
+        pool.beginUndoRecord();
+        pool.removeUTXO(new UTXO(tx.getHash(), 3));
+        UndoRecord record = pool.endUndoRecord();
+        Assert.assertFalse(Arrays.equals(pool.getCommitment(), other.getCommitment()));
+        pool.rollback(record);
+        Assert.assertArrayEquals(pool.getCommitment(), other.getCommitment());
+        Assert.assertArrayEquals(pool.getCommitment(), new UTXOPool(pool).getCommitment());
+
+        List<UTXO> all = pool.getAllUTXO();
+        pool.removeAll(all);
+        Assert.assertArrayEquals(empty, pool.getCommitment());
+    }
+
+    @Test public void testOrderedIndexScans() {
+        UTXOPool pool = new UTXOPool();
+        List<Transaction> txs = new ArrayList<Transaction>();
+        for (int t = 0; t < 30; ++t) {
+            Transaction tx = new Transaction();
+            tx.addInput(null, t);
+            for (int i = 0; i < 4; ++i) {
+                tx.addOutput(i, publicKey);
+            }
+            tx.finalize();
+            txs.add(tx);
+            for (int i = 0; i < 4; ++i) {
+                pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+        }
+        Transaction tx = txs.get(7);
+        pool.removeUTXO(new UTXO(tx.getHash(), 2));
+
+        // The linear fallback and the index answer the same
+        List<UTXO> expected = Arrays.asList(new UTXO(tx.getHash(), 0), new UTXO(tx.getHash(), 1),
+                new UTXO(tx.getHash(), 3));
+        Assert.assertEquals(expected, pool.getUTXOsOf(tx.getHash()));
+        pool.enableOrderedIndex();
+        Assert.assertEquals(expected, pool.getUTXOsOf(tx.getHash()));
+
+        pool.removeUTXO(new UTXO(tx.getHash(), 0));
+        Assert.assertEquals(expected.subList(1, 3), pool.getUTXOsOf(tx.getHash()));
+
+        byte[] prefix = Arrays.copyOf(tx.getHash(), 1);
+        List<UTXO> scanned = pool.scanPrefix(prefix, Integer.MAX_VALUE);
+        Assert.assertTrue(scanned.size() >= 2);
+        for (UTXO utxo : scanned) {
+            Assert.assertEquals(prefix[0], utxo.getTxHash()[0]);
+        }
+        Assert.assertEquals(1, pool.scanPrefix(prefix, 1).size());
+
+        List<UTXO> all = pool.getAllUTXOInHashOrder();
+        Assert.assertEquals(pool.size(), all.size());
+        for (int i = 1; i < all.size(); ++i) {
+            Assert.assertTrue(UTXO.HASH_ORDER.compare(all.get(i - 1), all.get(i)) < 0);
+        }
+        Assert.assertEquals(all, new UTXOPool(pool).getAllUTXOInHashOrder());
+    }
+
+    @Test public void testLsmStore() throws IOException, InterruptedException {
+        File dir = folder.newFolder("lsm");
+        LsmUTXOStore store = new LsmUTXOStore(dir, 64, 2);
+        ShardedUTXOStore expected = new ShardedUTXOStore();
+        Random random = new Random(7);
+        Transaction outputs = new Transaction();
+        List<UTXO> added = new ArrayList<UTXO>();
+        for (int i = 0; i < 3000; ++i) {
+            if (added.isEmpty() || random.nextInt(3) != 0) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                UTXO utxo = new UTXO(hash, random.nextInt(4));
+                Transaction.Output txOut = outputs.new Output(i, publicKey);
+                Assert.assertSame(expected.put(utxo, txOut), store.put(utxo, txOut));
+                added.add(utxo);
+            } else {
+                UTXO utxo = added.get(random.nextInt(added.size()));
+                Transaction.Output removed = store.remove(utxo);
+                Assert.assertEquals(expected.remove(utxo) == null, removed == null);
+            }
+        }
+        store.awaitCompaction();
+        Assert.assertEquals(expected.size(), store.size());
+        Assert.assertTrue(store.segmentCount() < 3000 / 64);
+        for (UTXO utxo : added) {
+            Transaction.Output txOut = store.get(utxo);
+            Transaction.Output want = expected.get(utxo);
+            Assert.assertEquals(want == null, txOut == null);
+            if (want != null) {
+                Assert.assertEquals(want.value, txOut.value, 0);
+                Assert.assertEquals(publicKey, txOut.address);
+            }
+        }
+
+        Map<UTXO, Transaction.Output> batch = store.getAll(added);
+        Assert.assertEquals(expected.size(), batch.size());
+        Assert.assertTrue(store.containsAll(expected.keys()));
+
+        // A copy diverges without affecting the original
+        LsmUTXOStore copy = store.copy();
+        UTXO first = expected.keys().get(0);
+        copy.remove(first);
+        Assert.assertFalse(copy.contains(first));
+        Assert.assertTrue(store.contains(first));
+        copy.close();
+
+        // Reopening restores the store
+        store.close();
+        LsmUTXOStore reopened = new LsmUTXOStore(dir, 64, 2);
+        Assert.assertEquals(expected.size(), reopened.size());
+        Assert.assertEquals(new HashSet<UTXO>(expected.keys()),
+                new HashSet<UTXO>(reopened.keys()));
+        UTXOPool pool = new UTXOPool(reopened);
+        Assert.assertTrue(pool.contains(first));
+        reopened.close();
+    }
+
+    @Test public void testCachedStore() throws IOException {
+        ShardedUTXOStore backing = new ShardedUTXOStore();
+        CachedUTXOStore store = new CachedUTXOStore(backing, 64, 4);
+        ShardedUTXOStore expected = new ShardedUTXOStore();
+        Random random = new Random(11);
+        Transaction outputs = new Transaction();
+        List<UTXO> added = new ArrayList<UTXO>();
+        for (int i = 0; i < 2000; ++i) {
+            if (added.isEmpty() || random.nextInt(3) != 0) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                UTXO utxo = new UTXO(hash, 0);
+                Transaction.Output txOut = outputs.new Output(i, publicKey);
+                Assert.assertSame(expected.put(utxo, txOut), store.put(utxo, txOut));
+                added.add(utxo);
+            } else {
+                // Mostly spend recent outputs, as real epochs do
+                int k = added.size() - 1 - Math.min(random.nextInt(16), added.size() - 1);
+                UTXO utxo = random.nextInt(4) == 0 ? added.get(random.nextInt(added.size()))
+                        : added.get(k);
+                Assert.assertSame(expected.remove(utxo), store.remove(utxo));
+            }
+        }
+        Assert.assertEquals(expected.size(), store.size());
+        Assert.assertTrue(store.cachedCount() <= 64);
+        Assert.assertTrue(store.getEvictions() > 0);
+        Assert.assertTrue(store.hitRate() > 0);
+        Assert.assertEquals(new HashSet<UTXO>(expected.keys()), new HashSet<UTXO>(store.keys()));
+
+        // A copy sees the updates not yet written back
+        CachedUTXOStore copy = store.copy();
+        Assert.assertEquals(new HashSet<UTXO>(expected.keys()), new HashSet<UTXO>(copy.keys()));
+
+        store.flush();
+        Assert.assertEquals(new HashSet<UTXO>(expected.keys()), new HashSet<UTXO>(backing.keys()));
+        for (UTXO utxo : added) {
+            Assert.assertSame(expected.get(utxo), store.get(utxo));
+        }
+    }
+
+    @Test public void testCachedStore_OverLsm() throws IOException, InterruptedException {
+        File dir = folder.newFolder("cached-lsm");
+        LsmUTXOStore lsm = new LsmUTXOStore(dir, 32, 2);
+        CachedUTXOStore store = new CachedUTXOStore(lsm, 24, 4);
+        ShardedUTXOStore expected = new ShardedUTXOStore();
+        Random random = new Random(13);
+        Transaction outputs = new Transaction();
+        List<UTXO> added = new ArrayList<UTXO>();
+        for (int i = 0; i < 600; ++i) {
+            if (added.isEmpty() || random.nextInt(3) != 0) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                UTXO utxo = new UTXO(hash, 0);
+                Transaction.Output txOut = outputs.new Output(i, publicKey);
+                Assert.assertSame(expected.put(utxo, txOut), store.put(utxo, txOut));
+                added.add(utxo);
+            } else {
+                UTXO utxo = added.get(random.nextInt(added.size()));
+                Transaction.Output removed = store.remove(utxo);
+                Assert.assertEquals(expected.remove(utxo) == null, removed == null);
+            }
+        }
+        Assert.assertTrue(store.cachedCount() <= 24);
+        Assert.assertTrue(store.getEvictionWriteBacks() > 0);
+
+        // Flushing the cache flushes the LSM memtable too, so the directory holds every update
+        store.flush();
+        lsm.awaitCompaction();
+        LsmUTXOStore reopened = new LsmUTXOStore(dir, 32, 2);
+        Assert.assertEquals(new HashSet<UTXO>(expected.keys()),
+                new HashSet<UTXO>(reopened.keys()));
+        reopened.close();
+        store.close();
+
+        // Shard capacities add up to the cache capacity
+        CachedUTXOStore small = new CachedUTXOStore(new ShardedUTXOStore(), 10);
+        for (UTXO utxo : added) {
+            small.put(utxo, outputs.new Output(1, publicKey));
+        }
+        Assert.assertTrue(small.cachedCount() <= 10);
+        try {
+            new CachedUTXOStore(new ShardedUTXOStore(), 10, 16);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected: fewer entries than shards
+        }
+    }
+}